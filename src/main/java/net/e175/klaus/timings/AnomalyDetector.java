@@ -0,0 +1,195 @@
+package net.e175.klaus.timings;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * AnomalyDetector is an EventBucketListener that compares each superseded
+ * EventBucket's mean value to a rolling baseline of the same name's earlier
+ * buckets, and notifies an {@link AnomalyListener} if it is too far above
+ * it, e.g. to catch latency regressions as soon as they show up in a bucket.
+ * <p>
+ * The baseline is an exponentially weighted moving average (and variance) of
+ * the buckets' mean values, updated once per superseded bucket, so detection
+ * costs nothing while recording into a bucket. A bucket is anomalous if its
+ * mean value exceeds the baseline mean by more than threshold standard
+ * deviations (at least {@link #MIN_RELATIVE_DEVIATION} of the baseline mean,
+ * so that near-constant values don't raise alarms over trifles). Anomalous
+ * buckets still become part of the baseline, so a lasting change is only
+ * reported for the first few buckets, until the baseline has adapted to it.
+ * <p>
+ * Like all EventBucketListeners, this only sees buckets as they are
+ * superseded, so late Events are not taken into account, and the newest
+ * bucket is only checked once the next one starts.
+ * <p>
+ * Pass it as the listener to an RrdEventRecorder. As a recorder has only
+ * one listener, superseded buckets can be passed on to another listener
+ * (e.g. a {@link BucketLog}).
+ *
+ * @ThreadSafe
+ */
+public final class AnomalyDetector implements EventBucketListener {
+    public static final double DEFAULT_THRESHOLD = 4;
+    public static final double DEFAULT_SMOOTHING = 0.05;
+    public static final int DEFAULT_WARMUP_BUCKETS = 10;
+    public static final long DEFAULT_MINIMUM_COUNT = 10;
+
+    /**
+     * Lower bound of the baseline standard deviation, relative to the
+     * baseline mean.
+     */
+    public static final double MIN_RELATIVE_DEVIATION = 0.01;
+
+    private final AnomalyListener listener;
+    private final double threshold;
+    private final double smoothing;
+    private final int warmupBuckets;
+    private final long minimumCount;
+    private final EventBucketListener next;
+
+    private final ConcurrentMap<String, Baseline> baselines = new ConcurrentHashMap<>();
+
+    /**
+     * Rolling baseline of one name. All access must be synchronized on the
+     * instance.
+     */
+    private static final class Baseline {
+        private double mean;
+        private double variance;
+        private int buckets;
+    }
+
+    /**
+     * Create an AnomalyDetector with the default settings.
+     *
+     * @param listener Listener to notify of anomalies. Must not be null.
+     * @see #DEFAULT_THRESHOLD
+     * @see #DEFAULT_SMOOTHING
+     * @see #DEFAULT_WARMUP_BUCKETS
+     * @see #DEFAULT_MINIMUM_COUNT
+     */
+    public AnomalyDetector(final AnomalyListener listener) {
+        this(listener, DEFAULT_THRESHOLD, DEFAULT_SMOOTHING, DEFAULT_WARMUP_BUCKETS, DEFAULT_MINIMUM_COUNT, null);
+    }
+
+    /**
+     * Create an AnomalyDetector.
+     *
+     * @param listener      Listener to notify of anomalies. Must not be null.
+     * @param threshold     Number of baseline standard deviations above the baseline mean at which a bucket is
+     *                      anomalous. Must be greater than 0.
+     * @param smoothing     Weight of each new bucket in the baseline. Must be greater than 0 and at most 1;
+     *                      smaller values make for a longer memory.
+     * @param warmupBuckets Number of buckets per name to build a baseline from before checking any. Must not be
+     *                      negative.
+     * @param minimumCount  Buckets with fewer Events than this are neither checked nor added to the baseline, as
+     *                      their mean values are mostly noise. Must not be negative.
+     * @param next          Listener to pass all superseded buckets on to. Ignored if null.
+     */
+    public AnomalyDetector(final AnomalyListener listener, final double threshold, final double smoothing,
+                           final int warmupBuckets, final long minimumCount, final EventBucketListener next) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener must not be null");
+        }
+        if (!(threshold > 0) || !(smoothing > 0) || smoothing > 1) {
+            throw new IllegalArgumentException("threshold must be greater than 0, smoothing between 0 and 1");
+        }
+        if (warmupBuckets < 0 || minimumCount < 0) {
+            throw new IllegalArgumentException("warmupBuckets and minimumCount must not be negative");
+        }
+
+        this.listener = listener;
+        this.threshold = threshold;
+        this.smoothing = smoothing;
+        this.warmupBuckets = warmupBuckets;
+        this.minimumCount = minimumCount;
+        this.next = next;
+    }
+
+    @Override
+    public void supersededBucket(final String name, final EventBucket bucket) {
+        if (!bucket.isEmpty() && bucket.getCount() >= minimumCount) {
+            check(name, bucket);
+        }
+
+        if (next != null) {
+            next.supersededBucket(name, bucket);
+        }
+    }
+
+    private void check(final String name, final EventBucket bucket) {
+        Baseline baseline = baselines.get(name);
+        if (baseline == null) {
+            final Baseline created = new Baseline();
+            baseline = baselines.putIfAbsent(name, created);
+            if (baseline == null) {
+                baseline = created;
+            }
+        }
+
+        final double value = bucket.getMeanValue();
+        boolean anomalous = false;
+        double baselineMean;
+        double baselineStdDev;
+        synchronized (baseline) {
+            baselineMean = baseline.mean;
+            baselineStdDev = Math.max(Math.sqrt(baseline.variance), MIN_RELATIVE_DEVIATION * Math.abs(baseline.mean));
+            if (baseline.buckets >= warmupBuckets && baseline.buckets > 0) {
+                anomalous = value - baselineMean > threshold * baselineStdDev;
+            }
+
+            // incremental EWMA of mean and variance
+            if (baseline.buckets == 0) {
+                baseline.mean = value;
+            } else {
+                final double diff = value - baseline.mean;
+                final double increment = smoothing * diff;
+                baseline.mean += increment;
+                baseline.variance = (1 - smoothing) * (baseline.variance + diff * increment);
+            }
+            if (baseline.buckets < Integer.MAX_VALUE) {
+                baseline.buckets++;
+            }
+        }
+
+        if (anomalous) {
+            listener.anomaly(name, bucket, baselineMean, baselineStdDev);
+        }
+    }
+
+    /**
+     * @return Current baseline mean value for name, or NaN if no bucket has
+     * been seen for it yet.
+     */
+    public double getBaselineMean(final String name) {
+        final Baseline baseline = baselines.get(name);
+        if (baseline == null) {
+            return Double.NaN;
+        }
+        synchronized (baseline) {
+            return baseline.mean;
+        }
+    }
+
+    /**
+     * @return Current baseline standard deviation for name (without the
+     * lower bound applied when checking), or NaN if no bucket has been seen
+     * for it yet.
+     */
+    public double getBaselineStdDev(final String name) {
+        final Baseline baseline = baselines.get(name);
+        if (baseline == null) {
+            return Double.NaN;
+        }
+        synchronized (baseline) {
+            return Math.sqrt(baseline.variance);
+        }
+    }
+
+    /**
+     * Forget all baselines, e.g. after a deliberate change in behaviour.
+     */
+    public void clear() {
+        baselines.clear();
+    }
+}
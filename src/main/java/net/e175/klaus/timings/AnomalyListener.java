@@ -0,0 +1,19 @@
+package net.e175.klaus.timings;
+
+/**
+ * This callback interface must be implemented by listeners interested in
+ * anomalies found by an {@link AnomalyDetector}, typically to alert someone.
+ */
+public interface AnomalyListener {
+
+    /**
+     * Callback method. As this method will be called while recording an event,
+     * its implementation should return quickly to prevent blocking the caller.
+     *
+     * @param name           The name of the Events collected in this EventBucket.
+     * @param bucket         A copy of the superseded bucket whose mean value is anomalous.
+     * @param baselineMean   The baseline mean value the bucket was compared to.
+     * @param baselineStdDev The baseline standard deviation the bucket was compared to.
+     */
+    void anomaly(String name, EventBucket bucket, double baselineMean, double baselineStdDev);
+}
@@ -0,0 +1,299 @@
+package net.e175.klaus.timings;
+
+import java.util.Arrays;
+
+/**
+ * BucketChunkCodec compresses a chunk of an RRD's buckets into a bit stream,
+ * using the techniques of Facebook's Gorilla time series database:
+ * <ul>
+ * <li>runs of empty slots (never used, or holding buckets that have dropped
+ * out of the window) are stored as a run length,</li>
+ * <li>interval starts are stored as delta-of-deltas in units of the bucket
+ * width (relative to the first one, so any alignment works), which take a
+ * single bit for consecutive buckets,</li>
+ * <li>counts and versions are stored as deltas to the previous bucket,
+ * and</li>
+ * <li>min, mean and max values are XORed with the previous bucket's value,
+ * storing only the bits in between the leading and trailing zeros.</li>
+ * </ul>
+ * A chunk of busy buckets with arbitrary values shrinks to about a third of
+ * the memory its bucket objects hold; regular values (e.g. whole
+ * milliseconds) and sparse chunks shrink much more.
+ * <p>
+ * It has no state at all.
+ *
+ * @Immutable
+ */
+final class BucketChunkCodec {
+    private static final int RUN_LENGTH_BITS = 6;
+
+    private BucketChunkCodec() {
+    }
+
+    /**
+     * Bit stream on top of a growing long array.
+     */
+    private static final class BitWriter {
+        private long[] words = new long[16];
+        private long position;
+
+        void write(final long value, final int bits) {
+            if (bits == 0) {
+                return;
+            }
+            final int word = (int) (position >>> 6);
+            if (word + 1 >= words.length) {
+                words = Arrays.copyOf(words, words.length * 2);
+            }
+
+            final long masked = bits == 64 ? value : value & ((1L << bits) - 1);
+            final int offset = (int) (position & 63);
+            final int free = 64 - offset;
+            if (bits <= free) {
+                words[word] |= masked << (free - bits);
+            } else {
+                words[word] |= masked >>> (bits - free);
+                words[word + 1] |= masked << (64 - (bits - free));
+            }
+            position += bits;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(words, (int) ((position + 63) >>> 6));
+        }
+    }
+
+    private static final class BitReader {
+        private final long[] words;
+        private long position;
+
+        BitReader(final long[] words) {
+            this.words = words;
+        }
+
+        long read(final int bits) {
+            if (bits == 0) {
+                return 0;
+            }
+            final int word = (int) (position >>> 6);
+            final int offset = (int) (position & 63);
+            final int available = 64 - offset;
+            long value;
+            if (bits <= available) {
+                value = words[word] >>> (available - bits);
+            } else {
+                value = (words[word] << (bits - available)) | (words[word + 1] >>> (64 - (bits - available)));
+            }
+            position += bits;
+            return bits == 64 ? value : value & ((1L << bits) - 1);
+        }
+
+        boolean readBit() {
+            return read(1) != 0;
+        }
+    }
+
+    /**
+     * Previous value of one double field, for XOR compression.
+     */
+    private static final class XorState {
+        private long previous;
+        private int leadingZeros = Integer.MAX_VALUE;
+        private int trailingZeros;
+
+        void write(final BitWriter out, final double value) {
+            final long bits = Double.doubleToRawLongBits(value);
+            final long xor = bits ^ previous;
+            previous = bits;
+            if (xor == 0) {
+                out.write(0, 1);
+                return;
+            }
+
+            final int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+            final int trailing = Long.numberOfTrailingZeros(xor);
+            if (leadingZeros != Integer.MAX_VALUE && leading >= leadingZeros && trailing >= trailingZeros) {
+                // fits into the previous window of meaningful bits
+                out.write(0b10, 2);
+                out.write(xor >>> trailingZeros, 64 - leadingZeros - trailingZeros);
+            } else {
+                leadingZeros = leading;
+                trailingZeros = trailing;
+                final int meaningful = 64 - leading - trailing;
+                out.write(0b11, 2);
+                out.write(leading, 5);
+                out.write(meaningful - 1, 6);
+                out.write(xor >>> trailing, meaningful);
+            }
+        }
+
+        double read(final BitReader in) {
+            if (in.readBit()) {
+                if (in.readBit()) {
+                    leadingZeros = (int) in.read(5);
+                    trailingZeros = 64 - leadingZeros - ((int) in.read(6) + 1);
+                }
+                previous ^= in.read(64 - leadingZeros - trailingZeros) << trailingZeros;
+            }
+            return Double.longBitsToDouble(previous);
+        }
+    }
+
+    /**
+     * Write a signed value with a variable-length prefix code favouring small
+     * magnitudes, as used for Gorilla's delta-of-deltas.
+     */
+    private static void writeSigned(final BitWriter out, final long value) {
+        if (value == 0) {
+            out.write(0, 1);
+        } else if (value >= -63 && value <= 64) {
+            out.write(0b10, 2);
+            out.write(value + 63, 7);
+        } else if (value >= -255 && value <= 256) {
+            out.write(0b110, 3);
+            out.write(value + 255, 9);
+        } else if (value >= -2047 && value <= 2048) {
+            out.write(0b1110, 4);
+            out.write(value + 2047, 12);
+        } else {
+            out.write(0b1111, 4);
+            out.write(value, 64);
+        }
+    }
+
+    private static long readSigned(final BitReader in) {
+        if (!in.readBit()) {
+            return 0;
+        }
+        if (!in.readBit()) {
+            return in.read(7) - 63;
+        }
+        if (!in.readBit()) {
+            return in.read(9) - 255;
+        }
+        if (!in.readBit()) {
+            return in.read(12) - 2047;
+        }
+        return in.read(64);
+    }
+
+    /**
+     * Compress a chunk of buckets, all of the given width. Null slots and
+     * buckets starting before earliestTime are stored as empty slots.
+     */
+    static long[] encode(final MutableBucket[] chunk, final long earliestTime, final long bucketWidth) {
+        final BitWriter out = new BitWriter();
+        final XorState min = new XorState();
+        final XorState mean = new XorState();
+        final XorState max = new XorState();
+        long previousStart = 0;
+        long previousDelta = 0;
+        long previousCount = 0;
+        long previousVersion = 0;
+        boolean first = true;
+
+        int i = 0;
+        while (i < chunk.length) {
+            int empty = 0;
+            while (i + empty < chunk.length && empty < (1 << RUN_LENGTH_BITS) && isEmptySlot(chunk[i + empty],
+                    earliestTime)) {
+                empty++;
+            }
+            if (empty > 0) {
+                out.write(0, 1);
+                out.write(empty - 1, RUN_LENGTH_BITS);
+                i += empty;
+                continue;
+            }
+
+            final MutableBucket bucket = chunk[i++];
+            assert bucket.getIntervalEnd() - bucket.getIntervalStart() == bucketWidth;
+            out.write(1, 1);
+
+            final long start = bucket.getIntervalStart();
+            if (first) {
+                out.write(start, 64);
+                first = false;
+            } else {
+                final long delta = (start - previousStart) / bucketWidth;
+                writeSigned(out, delta - previousDelta);
+                previousDelta = delta;
+            }
+            previousStart = start;
+
+            writeSigned(out, bucket.getCount() - previousCount);
+            previousCount = bucket.getCount();
+            min.write(out, bucket.getMinValue());
+            mean.write(out, bucket.getMeanValue());
+            max.write(out, bucket.getMaxValue());
+            writeSigned(out, bucket.version - previousVersion);
+            previousVersion = bucket.version;
+        }
+        return out.toArray();
+    }
+
+    private static boolean isEmptySlot(final MutableBucket bucket, final long earliestTime) {
+        return bucket == null || bucket.getIntervalStart() < earliestTime;
+    }
+
+    /**
+     * Decode a chunk compressed by {@link #encode(MutableBucket[], long, long)}
+     * into target, which must be as long as the original chunk. Empty slots
+     * are set to null.
+     *
+     * @param pool Bucket objects to reuse for the decoded buckets, at the same index. If
+     *             null, new bucket objects are created.
+     * @return Number of non-empty slots.
+     */
+    static int decode(final long[] encoded, final long bucketWidth, final MutableBucket[] pool,
+                      final MutableBucket[] target) {
+        final BitReader in = new BitReader(encoded);
+        final XorState min = new XorState();
+        final XorState mean = new XorState();
+        final XorState max = new XorState();
+        long previousStart = 0;
+        long previousDelta = 0;
+        long previousCount = 0;
+        long previousVersion = 0;
+        boolean first = true;
+        int used = 0;
+
+        int i = 0;
+        while (i < target.length) {
+            if (!in.readBit()) {
+                final int empty = (int) in.read(RUN_LENGTH_BITS) + 1;
+                Arrays.fill(target, i, i + empty, null);
+                i += empty;
+                continue;
+            }
+
+            final long start;
+            if (first) {
+                start = in.read(64);
+                first = false;
+            } else {
+                previousDelta += readSigned(in);
+                start = previousStart + previousDelta * bucketWidth;
+            }
+            previousStart = start;
+
+            previousCount += readSigned(in);
+            final double minValue = min.read(in);
+            final double meanValue = mean.read(in);
+            final double maxValue = max.read(in);
+            previousVersion += readSigned(in);
+
+            MutableBucket bucket = pool != null ? pool[i] : null;
+            if (bucket == null) {
+                bucket = new MutableBucket(start, start + bucketWidth, null);
+            } else {
+                bucket.setInterval(start, start + bucketWidth);
+            }
+            bucket.setValues(previousCount, minValue, meanValue, maxValue);
+            bucket.version = previousVersion;
+            target[i++] = bucket;
+            used++;
+        }
+        return used;
+    }
+}
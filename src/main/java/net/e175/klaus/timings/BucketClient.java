@@ -0,0 +1,241 @@
+package net.e175.klaus.timings;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BucketClient ships the buckets of an RrdEventRecorder to a
+ * {@link BucketServer}, e.g. to aggregate the timings of many nodes in one
+ * place. See {@link BucketWireFormat} for the protocol.
+ * <p>
+ * Each call to {@link #ship()} sends the buckets modified since the previous
+ * one (see {@link RrdEventRecorder#getEventBucketsSince(long)}), everything
+ * on the first call of each connection. Names are sent once per connection
+ * and referred to by number afterwards, interval starts as small deltas.
+ * Names longer than the protocol allows, and names beyond the first
+ * {@link BucketWireFormat#MAX_NAMES} of a connection, are not shipped.
+ * <p>
+ * The client never blocks: ship() connects in the background and writes as
+ * much as the socket takes. If the server hasn't read everything shipped
+ * previously, nothing new is fetched until it has, so a slow server gets
+ * fewer, more up-to-date buckets instead of a growing backlog. After a
+ * connection failure, the next ship() connects again and sends everything
+ * anew.
+ * <p>
+ * BucketClient does not start a thread of its own; use
+ * {@link #scheduleWith(ScheduledExecutorService, long)} to ship periodically
+ * on an executor of your choice.
+ *
+ * @ThreadSafe
+ */
+public final class BucketClient implements Closeable {
+    /**
+     * Maximum number of buckets per BUCKETS frame.
+     */
+    static final int MAX_FRAME_BUCKETS = 4096;
+
+    private final RrdEventRecorder recorder;
+    private final InetSocketAddress server;
+    private final String node;
+
+    private final AtomicLong shipErrors = new AtomicLong();
+    private volatile Exception lastError;
+
+    // guarded by this
+    private SocketChannel channel;
+    private final Queue<ByteBuffer> outgoing = new ArrayDeque<>();
+    private final Map<String, Integer> nameIds = new HashMap<>();
+    private long cursor;
+    private long bytesShipped;
+
+    /**
+     * @param recorder Recorder to ship. Must not be null.
+     * @param server   Address of the BucketServer. Must not be null.
+     * @param node     Name identifying this node (e.g. the host name) on the server. Must not be null, and not
+     *                 longer than 1024 UTF-8 bytes.
+     */
+    public BucketClient(final RrdEventRecorder recorder, final InetSocketAddress server, final String node) {
+        if (recorder == null || server == null || node == null) {
+            throw new IllegalArgumentException("recorder, server and node must not be null");
+        }
+        if (!BucketWireFormat.isValidName(node)) {
+            throw new IllegalArgumentException("node name is too long");
+        }
+
+        this.recorder = recorder;
+        this.server = server;
+        this.node = node;
+    }
+
+    /**
+     * Ship all buckets modified since the last call, as far as possible
+     * without blocking.
+     *
+     * @return true if everything has been written to the socket, false if
+     * the connection is still being established or the socket didn't take
+     * everything; the rest follows on the next call.
+     * @throws IOException If the connection failed. It is closed, and the
+     *                     next call connects again.
+     */
+    public synchronized boolean ship() throws IOException {
+        try {
+            if (!connect()) {
+                return false;
+            }
+            if (!write()) {
+                return false;
+            }
+            encodeModifiedBuckets();
+            return write();
+        } catch (IOException | RuntimeException e) {
+            disconnect();
+            throw e;
+        }
+    }
+
+    private boolean connect() throws IOException {
+        if (channel == null) {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.connect(server);
+            outgoing.add(BucketWireFormat.encodeHello(new BucketWireFormat.Hello(node,
+                    recorder.getNumberOfBuckets(), recorder.getBucketWidth(), recorder.getAlignmentOffset())));
+        }
+        return channel.isConnected() || channel.finishConnect();
+    }
+
+    private void encodeModifiedBuckets() {
+        final EventBucketsDelta delta = recorder.getEventBucketsSince(cursor);
+        cursor = delta.getCursor();
+
+        final List<String> newNames = new ArrayList<>();
+        int count = 0;
+        for (final Map.Entry<String, List<EventBucket>> entry : delta.getEventBuckets().entrySet()) {
+            if (!nameIds.containsKey(entry.getKey())) {
+                if (nameIds.size() >= BucketWireFormat.MAX_NAMES || !BucketWireFormat.isValidName(entry.getKey())) {
+                    continue; // the server would reject it
+                }
+                nameIds.put(entry.getKey(), nameIds.size());
+                newNames.add(entry.getKey());
+            }
+            count += entry.getValue().size();
+        }
+        for (int from = 0; from < newNames.size(); from += BucketWireFormat.MAX_FRAME_NAMES) {
+            outgoing.add(BucketWireFormat.encodeNames(newNames.subList(from,
+                    Math.min(newNames.size(), from + BucketWireFormat.MAX_FRAME_NAMES))));
+        }
+
+        final int[] ids = new int[count];
+        final EventBucket[] buckets = new EventBucket[count];
+        int i = 0;
+        for (final Map.Entry<String, List<EventBucket>> entry : delta.getEventBuckets().entrySet()) {
+            final Integer id = nameIds.get(entry.getKey());
+            if (id == null) {
+                continue;
+            }
+            for (final EventBucket bucket : entry.getValue()) {
+                ids[i] = id;
+                buckets[i++] = bucket;
+            }
+        }
+        for (int from = 0; from < count; from += MAX_FRAME_BUCKETS) {
+            outgoing.add(BucketWireFormat.encodeBuckets(ids, buckets, from, Math.min(count, from + MAX_FRAME_BUCKETS),
+                    recorder.getBucketWidth()));
+        }
+    }
+
+    private boolean write() throws IOException {
+        while (!outgoing.isEmpty()) {
+            final ByteBuffer frame = outgoing.peek();
+            bytesShipped += channel.write(frame);
+            if (frame.hasRemaining()) {
+                return false;
+            }
+            outgoing.remove();
+        }
+        return true;
+    }
+
+    private void disconnect() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing left to do about it
+            }
+            channel = null;
+        }
+        outgoing.clear();
+        nameIds.clear();
+        cursor = 0;
+    }
+
+    /**
+     * Ship buckets every periodMillis on the given executor, starting after
+     * one period. Failures are counted (see {@link #getShipErrors()}) and
+     * retried at the next period.
+     *
+     * @param periodMillis Must be greater than 0.
+     * @return Future to cancel the periodic shipping.
+     */
+    public ScheduledFuture<?> scheduleWith(final ScheduledExecutorService executor, final long periodMillis) {
+        if (executor == null || periodMillis <= 0) {
+            throw new IllegalArgumentException("executor must not be null, periodMillis must be greater than 0");
+        }
+
+        return executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ship();
+                } catch (IOException | RuntimeException e) {
+                    shipErrors.incrementAndGet();
+                    lastError = e;
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return Number of scheduled shipments that failed so far.
+     */
+    public long getShipErrors() {
+        return shipErrors.get();
+    }
+
+    /**
+     * @return The last error of a scheduled shipment, or null.
+     */
+    public Exception getLastError() {
+        return lastError;
+    }
+
+    /**
+     * @return Number of bytes written to the server so far.
+     */
+    public synchronized long getBytesShipped() {
+        return bytesShipped;
+    }
+
+    /**
+     * Close the connection. Buckets not yet written are dropped; a later
+     * call to {@link #ship()} connects again.
+     */
+    @Override
+    public synchronized void close() {
+        disconnect();
+    }
+}
@@ -0,0 +1,645 @@
+package net.e175.klaus.timings;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BucketLog is an EventBucketListener that appends superseded EventBuckets to
+ * an append-only log on local disk, keeping history far beyond the window of
+ * an RrdEventRecorder.
+ * <p>
+ * The log is a directory of segment files with fixed-size binary records
+ * (plus a file mapping names to the numeric IDs used in the records).
+ * Superseded buckets are collected in memory and written in batches, each
+ * followed by a single fsync ("group commit"): a batch is written when it is
+ * full, when its oldest bucket has waited for maxDelayMillis (checked when
+ * the next bucket arrives), or when {@link #flush()} is called. So only the
+ * recording thread that completes a batch pays for disk I/O, and buckets not
+ * yet flushed are lost if the process dies. When a segment is full, it is
+ * sealed and an index of the time ranges and names covered by its blocks of
+ * records is written next to it. {@link #getEventBuckets(String, long, long)}
+ * uses these indexes and memory-mapped reads to load only the blocks
+ * relevant to a query; see {@link EventBucketHistory} to combine them with a
+ * recorder's current buckets.
+ * <p>
+ * {@link #compact(long, long)} downsamples old segments into wider buckets,
+ * bounding disk usage for long histories. BucketLog does not start a thread
+ * of its own; call compact() periodically (e.g. from a scheduled executor) to
+ * keep compacting in the background.
+ * <p>
+ * As EventBucketListener methods cannot throw checked exceptions, I/O errors
+ * while writing are counted and kept for {@link #getLastError()}; the buckets
+ * concerned are lost.
+ *
+ * @ThreadSafe
+ */
+public final class BucketLog implements EventBucketListener, Closeable {
+    public static final int DEFAULT_SEGMENT_RECORDS = 64 * 1024;
+    public static final int DEFAULT_BATCH_RECORDS = 256;
+    public static final long DEFAULT_MAX_DELAY = RrdEventRecorder.SECOND;
+
+    static final String NAMES_FILE = "names";
+    private static final int MAX_READ_ATTEMPTS = 3;
+
+    private final File directory;
+    private final int segmentRecords;
+    private final int batchRecords;
+    private final long maxDelayMillis;
+
+    private final ConcurrentMap<String, Integer> nameIds = new ConcurrentHashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    private final Object pendingLock = new Object();
+    private ByteBuffer pending;
+    private long pendingSince;
+
+    /**
+     * Guards the channels, the active segment and the list of segments.
+     */
+    private final Object writeLock = new Object();
+    private final FileChannel namesChannel;
+    private FileChannel activeChannel;
+    private BucketLogSegment activeSegment;
+    private final List<BucketLogSegment> sealedSegments = new ArrayList<>();
+    private long nextSequence;
+    private boolean closed;
+
+    private final Object compactLock = new Object();
+
+    private final AtomicLong writeErrors = new AtomicLong();
+    private volatile IOException lastError;
+
+    /**
+     * Open (or create) a BucketLog with the default segment size, batch size
+     * and delay.
+     *
+     * @param directory Directory to keep the log in. Created if it doesn't exist.
+     * @see #DEFAULT_SEGMENT_RECORDS
+     * @see #DEFAULT_BATCH_RECORDS
+     * @see #DEFAULT_MAX_DELAY
+     */
+    public BucketLog(final File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_RECORDS, DEFAULT_BATCH_RECORDS, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * Open (or create) a BucketLog.
+     *
+     * @param directory      Directory to keep the log in. Created if it doesn't exist.
+     * @param segmentRecords Number of buckets per segment file. Must be greater than 0.
+     * @param batchRecords   Number of buckets written per batch. Must be greater than 0.
+     * @param maxDelayMillis Maximum time buckets wait for a batch to fill up. Must be greater than or equal to 0.
+     */
+    public BucketLog(final File directory, final int segmentRecords, final int batchRecords,
+                     final long maxDelayMillis) throws IOException {
+        if (directory == null) {
+            throw new IllegalArgumentException("directory must not be null");
+        }
+        if (segmentRecords <= 0 || batchRecords <= 0 || maxDelayMillis < 0) {
+            throw new IllegalArgumentException(
+                    "segmentRecords and batchRecords must be greater than 0, maxDelayMillis must not be negative");
+        }
+
+        this.directory = directory;
+        this.segmentRecords = segmentRecords;
+        this.batchRecords = batchRecords;
+        this.maxDelayMillis = maxDelayMillis;
+        pending = newBatch();
+
+        Files.createDirectories(directory.toPath());
+        namesChannel = FileChannel.open(new File(directory, NAMES_FILE).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            loadNames();
+            loadSegments();
+        } catch (IOException | RuntimeException e) {
+            namesChannel.close();
+            throw e;
+        }
+    }
+
+    private ByteBuffer newBatch() {
+        return ByteBuffer.allocate(batchRecords * BucketLogSegment.RECORD_SIZE);
+    }
+
+    private void loadNames() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(new File(directory, NAMES_FILE).toPath()));
+        int valid = 0;
+        while (buffer.remaining() >= 4) {
+            final int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                break;
+            }
+            final byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            final String name = new String(bytes, StandardCharsets.UTF_8);
+            nameIds.put(name, names.size());
+            names.add(name);
+            valid = buffer.position();
+        }
+        // drop a partially written entry
+        namesChannel.truncate(valid);
+        namesChannel.position(valid);
+    }
+
+    private void loadSegments() throws IOException {
+        final Map<Long, BucketLogSegment> segments = new TreeMap<>();
+        final String[] files = directory.list();
+        long maxSequence = -1;
+        for (final String file : files != null ? files : new String[0]) {
+            final long sequence = parseSequence(file);
+            if (sequence < 0) {
+                continue;
+            }
+            maxSequence = Math.max(maxSequence, sequence);
+            if (file.endsWith(BucketLogSegment.SEGMENT_SUFFIX)) {
+                segments.put(sequence, BucketLogSegment.load(directory, sequence));
+            }
+        }
+        nextSequence = maxSequence + 1;
+
+        // finish compactions interrupted after writing their result
+        for (final BucketLogSegment segment : new ArrayList<>(segments.values())) {
+            for (final long replaced : segment.getReplaces()) {
+                final BucketLogSegment old = segments.remove(replaced);
+                if (old != null) {
+                    old.delete();
+                }
+            }
+        }
+        // remove leftovers of compactions interrupted before that
+        for (final String file : files != null ? files : new String[0]) {
+            final long sequence = parseSequence(file);
+            if (sequence >= 0 && !segments.containsKey(sequence)) {
+                Files.deleteIfExists(new File(directory, file).toPath());
+            }
+        }
+        sealedSegments.addAll(segments.values());
+    }
+
+    /**
+     * @return Sequence number of a segment, index or temporary file, or -1 for other files.
+     */
+    private static long parseSequence(final String file) {
+        final int dot = file.indexOf('.');
+        if (dot != 16) {
+            return -1;
+        }
+        for (int i = 0; i < dot; i++) {
+            if (!Character.isDigit(file.charAt(i))) {
+                return -1;
+            }
+        }
+        return Long.parseLong(file.substring(0, dot));
+    }
+
+    /**
+     * Queue a superseded bucket for writing. Writes the current batch if it is
+     * full or has waited long enough. Empty buckets are ignored.
+     */
+    @Override
+    public void supersededBucket(final String name, final EventBucket bucket) {
+        if (bucket == null || bucket.isEmpty()) {
+            return;
+        }
+
+        ByteBuffer batch = null;
+        try {
+            final int nameId = nameId(name);
+            synchronized (pendingLock) {
+                final long now = System.currentTimeMillis();
+                if (pending.position() == 0) {
+                    pendingSince = now;
+                }
+                BucketLogSegment.putRecord(pending, nameId, bucket);
+                if (!pending.hasRemaining() || now - pendingSince >= maxDelayMillis) {
+                    batch = pending;
+                    pending = newBatch();
+                }
+            }
+            if (batch != null) {
+                writeBatch(batch);
+            }
+        } catch (IOException e) {
+            writeErrors.incrementAndGet();
+            lastError = e;
+        }
+    }
+
+    private int nameId(final String name) throws IOException {
+        final Integer id = nameIds.get(name);
+        if (id != null) {
+            return id;
+        }
+
+        synchronized (writeLock) {
+            final Integer existing = nameIds.get(name);
+            if (existing != null) {
+                return existing;
+            }
+            checkOpen();
+
+            final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            final ByteBuffer entry = ByteBuffer.allocate(4 + bytes.length);
+            entry.putInt(bytes.length).put(bytes).flip();
+            while (entry.hasRemaining()) {
+                namesChannel.write(entry);
+            }
+            final int newId;
+            synchronized (names) {
+                newId = names.size();
+                names.add(name);
+            }
+            nameIds.put(name, newId);
+            return newId;
+        }
+    }
+
+    String getName(final int nameId) {
+        synchronized (names) {
+            return nameId >= 0 && nameId < names.size() ? names.get(nameId) : null;
+        }
+    }
+
+    /**
+     * @return ID of the given name, or -1 if it has never been written.
+     */
+    int getNameId(final String name) {
+        final Integer id = nameIds.get(name);
+        return id != null ? id : -1;
+    }
+
+    private void writeBatch(final ByteBuffer batch) throws IOException {
+        batch.flip();
+        if (!batch.hasRemaining()) {
+            return;
+        }
+
+        synchronized (writeLock) {
+            checkOpen();
+            // names must be durable before the records referring to them
+            namesChannel.force(false);
+
+            while (batch.hasRemaining()) {
+                if (activeSegment == null || activeSegment.getRecordCount() >= segmentRecords) {
+                    rollSegment();
+                }
+
+                final int records = Math.min(batch.remaining() / BucketLogSegment.RECORD_SIZE,
+                        segmentRecords - activeSegment.getRecordCount());
+                final ByteBuffer slice = batch.duplicate();
+                slice.limit(slice.position() + records * BucketLogSegment.RECORD_SIZE);
+                while (slice.hasRemaining()) {
+                    activeChannel.write(slice);
+                }
+                for (int r = 0; r < records; r++) {
+                    activeSegment.indexRecord(batch, batch.position() + r * BucketLogSegment.RECORD_SIZE);
+                }
+                batch.position(slice.position());
+            }
+            activeChannel.force(false);
+        }
+    }
+
+    /**
+     * Seal the active segment (if any) and start a new one. Must hold writeLock.
+     */
+    private void rollSegment() throws IOException {
+        sealActiveSegment();
+
+        activeSegment = new BucketLogSegment(directory, nextSequence++);
+        activeChannel = FileChannel.open(activeSegment.getFile().toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+    }
+
+    private void sealActiveSegment() throws IOException {
+        if (activeSegment == null) {
+            return;
+        }
+
+        activeChannel.force(true);
+        activeChannel.close();
+        activeSegment.writeIndex();
+        sealedSegments.add(activeSegment);
+        activeSegment = null;
+        activeChannel = null;
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("log has been closed");
+        }
+    }
+
+    /**
+     * Write and fsync all queued buckets.
+     */
+    public void flush() throws IOException {
+        final ByteBuffer batch;
+        synchronized (pendingLock) {
+            batch = pending;
+            pending = newBatch();
+        }
+        writeBatch(batch);
+    }
+
+    /**
+     * Downsample all sealed segments containing only buckets that end at or
+     * before olderThanMillis into a single segment of buckets of the given
+     * width (aligned like those of RrdEventRecorder). Buckets that are already
+     * at least that wide are kept as they are. The original segments are
+     * deleted afterwards.
+     * <p>
+     * Compaction only blocks writers while the list of segments is updated,
+     * not while reading and writing segment files.
+     *
+     * @param olderThanMillis   Only compact segments whose buckets all end at or before this time.
+     * @param bucketWidthMillis Width of the compacted buckets. Must be greater than 0.
+     * @return Number of segments compacted.
+     */
+    public int compact(final long olderThanMillis, final long bucketWidthMillis) throws IOException {
+        if (bucketWidthMillis <= 0) {
+            throw new IllegalArgumentException("bucketWidthMillis must be greater than 0");
+        }
+
+        synchronized (compactLock) {
+            final List<BucketLogSegment> candidates = new ArrayList<>();
+            final BucketLogSegment target;
+            synchronized (writeLock) {
+                checkOpen();
+                for (final BucketLogSegment segment : sealedSegments) {
+                    if (segment.getMaxIntervalEnd() <= olderThanMillis) {
+                        candidates.add(segment);
+                    }
+                }
+                if (candidates.isEmpty() || (candidates.size() == 1
+                        && candidates.get(0).getCompactedWidth() == bucketWidthMillis)) {
+                    return 0;
+                }
+                target = new BucketLogSegment(directory, nextSequence++);
+            }
+
+            final Map<Integer, TreeMap<Long, MutableBucket>> merged = new TreeMap<>();
+            for (final BucketLogSegment segment : candidates) {
+                segment.forEachRecord(Long.MIN_VALUE, Long.MAX_VALUE, BucketLogSegment.ALL_NAMES,
+                        new BucketLogSegment.RecordVisitor() {
+                    @Override
+                    public void visit(final int nameId, final MutableBucket bucket) {
+                        merge(merged, nameId, bucket, bucketWidthMillis);
+                    }
+                });
+            }
+
+            final long[] replaces = new long[candidates.size()];
+            for (int i = 0; i < replaces.length; i++) {
+                replaces[i] = candidates.get(i).getSequence();
+            }
+            writeCompacted(target, merged, bucketWidthMillis, replaces);
+
+            synchronized (writeLock) {
+                sealedSegments.removeAll(candidates);
+                sealedSegments.add(target);
+                Collections.sort(sealedSegments, new Comparator<BucketLogSegment>() {
+                    @Override
+                    public int compare(final BucketLogSegment a, final BucketLogSegment b) {
+                        return Long.compare(a.getSequence(), b.getSequence());
+                    }
+                });
+            }
+            for (final BucketLogSegment segment : candidates) {
+                segment.delete();
+            }
+            return candidates.size();
+        }
+    }
+
+    private static void merge(final Map<Integer, TreeMap<Long, MutableBucket>> merged, final int nameId,
+                              final EventBucket bucket, final long bucketWidthMillis) {
+        final long start;
+        final long end;
+        if (bucket.getIntervalEnd() - bucket.getIntervalStart() >= bucketWidthMillis) {
+            start = bucket.getIntervalStart();
+            end = bucket.getIntervalEnd();
+        } else {
+            start = Math.floorDiv(bucket.getIntervalStart(), bucketWidthMillis) * bucketWidthMillis;
+            end = Math.max(start + bucketWidthMillis, bucket.getIntervalEnd());
+        }
+
+        TreeMap<Long, MutableBucket> byStart = merged.get(nameId);
+        if (byStart == null) {
+            byStart = new TreeMap<>();
+            merged.put(nameId, byStart);
+        }
+        final MutableBucket existing = byStart.get(start);
+        if (existing == null) {
+            final MutableBucket copy = new MutableBucket(start, end, null);
+            copy.addBucket(bucket);
+            byStart.put(start, copy);
+        } else {
+            if (end > existing.getIntervalEnd()) {
+                existing.setInterval(start, end);
+            }
+            existing.addBucket(bucket);
+        }
+    }
+
+    /**
+     * Write the index first, then atomically move the segment file in place,
+     * so a segment never appears without the list of segments it replaces.
+     * The directory is synced before returning, so the move is durable before
+     * the replaced segments are deleted.
+     */
+    private void writeCompacted(final BucketLogSegment target, final Map<Integer, TreeMap<Long, MutableBucket>> merged,
+                                final long bucketWidthMillis, final long[] replaces) throws IOException {
+        final File tmp = new File(target.getFile().getPath() + ".tmp");
+        final ByteBuffer buffer = newBatch();
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // sorted by name and time, so reads for one name touch as few blocks as possible
+            for (final Map.Entry<Integer, TreeMap<Long, MutableBucket>> name : merged.entrySet()) {
+                for (final MutableBucket bucket : name.getValue().values()) {
+                    if (!buffer.hasRemaining()) {
+                        writeFully(channel, buffer);
+                    }
+                    BucketLogSegment.putRecord(buffer, name.getKey(), bucket);
+                    target.indexRecord(name.getKey(), bucket.getIntervalStart(), bucket.getIntervalEnd());
+                }
+            }
+            writeFully(channel, buffer);
+            channel.force(true);
+        }
+
+        target.setCompactedWidth(bucketWidthMillis);
+        target.setReplaces(replaces);
+        target.writeIndex();
+        Files.move(tmp.toPath(), target.getFile().toPath(), StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+    }
+
+    /**
+     * Make renames durable, where the platform allows opening directories.
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not supported on this platform
+        }
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * @return Snapshot of all segments (sealed ones first, in order of their
+     * sequence numbers, then the active one), for reading.
+     */
+    List<BucketLogSegment> getSegments() {
+        synchronized (writeLock) {
+            final List<BucketLogSegment> result = new ArrayList<>(sealedSegments);
+            if (activeSegment != null) {
+                result.add(activeSegment.snapshot());
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Read all buckets of the given name overlapping [fromMillis, untilMillis)
+     * that have been written to disk, i.e. not those still queued for writing.
+     *
+     * @return List of non-empty EventBuckets in chronological order, possibly
+     * of different widths if some of them have been compacted.
+     */
+    public List<EventBucket> getEventBuckets(final String name, final long fromMillis, final long untilMillis)
+            throws IOException {
+        final int nameId = getNameId(name);
+        if (nameId < 0 || fromMillis >= untilMillis) {
+            return Collections.emptyList();
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return readEventBuckets(nameId, fromMillis, untilMillis);
+            } catch (NoSuchFileException e) {
+                // deleted by a concurrent compaction, whose result is already in the new list of segments
+                if (attempt == MAX_READ_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private List<EventBucket> readEventBuckets(final int nameId, final long fromMillis, final long untilMillis)
+            throws IOException {
+        final TreeMap<Long, TreeMap<Long, MutableBucket>> byStartAndEnd = new TreeMap<>();
+        for (final BucketLogSegment segment : getSegments()) {
+            segment.forEachRecord(fromMillis, untilMillis, nameId, new BucketLogSegment.RecordVisitor() {
+                @Override
+                public void visit(final int recordNameId, final MutableBucket bucket) {
+                    if (bucket.getIntervalStart() >= untilMillis || bucket.getIntervalEnd() <= fromMillis) {
+                        return;
+                    }
+
+                    TreeMap<Long, MutableBucket> byEnd = byStartAndEnd.get(bucket.getIntervalStart());
+                    if (byEnd == null) {
+                        byEnd = new TreeMap<>();
+                        byStartAndEnd.put(bucket.getIntervalStart(), byEnd);
+                    }
+                    final MutableBucket existing = byEnd.get(bucket.getIntervalEnd());
+                    if (existing == null) {
+                        final MutableBucket copy = new MutableBucket(bucket.getIntervalStart(),
+                                bucket.getIntervalEnd(), null);
+                        copy.addBucket(bucket);
+                        byEnd.put(bucket.getIntervalEnd(), copy);
+                    } else {
+                        existing.addBucket(bucket); // updated by late Events after being superseded
+                    }
+                }
+            });
+        }
+
+        final List<EventBucket> result = new ArrayList<>();
+        for (final TreeMap<Long, MutableBucket> byEnd : byStartAndEnd.values()) {
+            for (final MutableBucket bucket : byEnd.values()) {
+                result.add(new ImmutableBucket(bucket));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return Number of segments currently in the log.
+     */
+    public int getSegmentCount() {
+        return getSegments().size();
+    }
+
+    /**
+     * @return Number of write operations that failed so far.
+     */
+    public long getWriteErrors() {
+        return writeErrors.get();
+    }
+
+    /**
+     * @return The last I/O error encountered while writing, or null.
+     */
+    public IOException getLastError() {
+        return lastError;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Flush all queued buckets, seal the active segment and close all files.
+     * Buckets superseded afterwards are counted as write errors.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            synchronized (writeLock) {
+                if (!closed) {
+                    closed = true;
+                    try {
+                        sealActiveSegment();
+                    } finally {
+                        namesChannel.close();
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BucketLog [directory=" + directory + ", segments=" + Arrays.toString(getSegments().toArray()) + "]";
+    }
+}
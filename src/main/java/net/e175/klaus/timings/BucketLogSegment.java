@@ -0,0 +1,382 @@
+package net.e175.klaus.timings;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * One segment file of a {@link BucketLog}, plus its index.
+ * <p>
+ * A segment is a sequence of fixed-size records, one per bucket:
+ * intervalStart, intervalEnd, nameId, (unused), count, minValue, meanValue,
+ * maxValue. The index (a separate file, written when the segment is sealed)
+ * keeps the time range covered by each block of BLOCK_RECORDS records, and a
+ * 64 bit mask of the name IDs (modulo 64) occurring in it, so reads for a
+ * time range and name can skip all other blocks. Records within a segment
+ * written by the log are roughly in time order, as buckets are appended when
+ * superseded; compacted segments are sorted by name and time.
+ * <p>
+ * Reads use memory-mapped files, so only the pages of the blocks actually
+ * read are loaded.
+ *
+ * @NotThreadSafe
+ */
+final class BucketLogSegment {
+    static final int RECORD_SIZE = 56;
+    static final int BLOCK_RECORDS = 128;
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final String INDEX_SUFFIX = ".idx";
+    /**
+     * Passed as nameId to read records of all names.
+     */
+    static final int ALL_NAMES = -1;
+
+    private static final int INDEX_MAGIC = 0x544c4958;
+
+    /**
+     * Receives records read from a segment. The bucket is reused for each
+     * record.
+     */
+    interface RecordVisitor {
+        void visit(int nameId, MutableBucket bucket) throws IOException;
+    }
+
+    private final long sequence;
+    private final File file;
+    private final File indexFile;
+
+    private int recordCount;
+    private long compactedWidth;
+    private long[] replaces = new long[0];
+    private long[] blockMinStart = new long[4];
+    private long[] blockMaxEnd = new long[4];
+    private long[] blockNames = new long[4];
+
+    BucketLogSegment(final File directory, final long sequence) {
+        this.sequence = sequence;
+        this.file = new File(directory, fileName(sequence, SEGMENT_SUFFIX));
+        this.indexFile = new File(directory, fileName(sequence, INDEX_SUFFIX));
+    }
+
+    /**
+     * @return A copy of this segment's index as it is now, for reading while
+     * more records are appended to this segment.
+     */
+    BucketLogSegment snapshot() {
+        final BucketLogSegment copy = new BucketLogSegment(file.getParentFile(), sequence);
+        copy.recordCount = recordCount;
+        copy.compactedWidth = compactedWidth;
+        copy.replaces = replaces;
+        copy.blockMinStart = blockMinStart.clone();
+        copy.blockMaxEnd = blockMaxEnd.clone();
+        copy.blockNames = blockNames.clone();
+        return copy;
+    }
+
+    static String fileName(final long sequence, final String suffix) {
+        return String.format("%016d%s", sequence, suffix);
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    File getIndexFile() {
+        return indexFile;
+    }
+
+    int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return Bucket width this segment was downsampled to, or 0 for segments
+     * written by the log itself.
+     */
+    long getCompactedWidth() {
+        return compactedWidth;
+    }
+
+    void setCompactedWidth(final long compactedWidth) {
+        this.compactedWidth = compactedWidth;
+    }
+
+    /**
+     * @return Sequence numbers of the segments this compacted segment
+     * replaces.
+     */
+    long[] getReplaces() {
+        return replaces.clone();
+    }
+
+    void setReplaces(final long[] replaces) {
+        this.replaces = replaces.clone();
+    }
+
+    long getMinIntervalStart() {
+        long min = Long.MAX_VALUE;
+        for (int b = 0; b < blockCount(); b++) {
+            min = Math.min(min, blockMinStart[b]);
+        }
+        return min;
+    }
+
+    long getMaxIntervalEnd() {
+        long max = Long.MIN_VALUE;
+        for (int b = 0; b < blockCount(); b++) {
+            max = Math.max(max, blockMaxEnd[b]);
+        }
+        return max;
+    }
+
+    boolean overlaps(final long fromMillis, final long untilMillis) {
+        return recordCount > 0 && getMinIntervalStart() < untilMillis && getMaxIntervalEnd() > fromMillis;
+    }
+
+    private int blockCount() {
+        return (recordCount + BLOCK_RECORDS - 1) / BLOCK_RECORDS;
+    }
+
+    /**
+     * Account for a record appended to the segment file.
+     */
+    void indexRecord(final int nameId, final long intervalStart, final long intervalEnd) {
+        final int block = recordCount / BLOCK_RECORDS;
+        if (block == blockMinStart.length) {
+            blockMinStart = Arrays.copyOf(blockMinStart, block * 2);
+            blockMaxEnd = Arrays.copyOf(blockMaxEnd, block * 2);
+            blockNames = Arrays.copyOf(blockNames, block * 2);
+        }
+        if (recordCount % BLOCK_RECORDS == 0) {
+            blockMinStart[block] = intervalStart;
+            blockMaxEnd[block] = intervalEnd;
+            blockNames[block] = nameBit(nameId);
+        } else {
+            blockMinStart[block] = Math.min(blockMinStart[block], intervalStart);
+            blockMaxEnd[block] = Math.max(blockMaxEnd[block], intervalEnd);
+            blockNames[block] |= nameBit(nameId);
+        }
+        recordCount++;
+    }
+
+    /**
+     * Account for a record appended to the segment file, given as stored at
+     * the given position of source.
+     */
+    void indexRecord(final ByteBuffer source, final int position) {
+        indexRecord(source.getInt(position + 16), source.getLong(position), source.getLong(position + 8));
+    }
+
+    private static long nameBit(final int nameId) {
+        return 1L << (nameId & 63);
+    }
+
+    private boolean blockMatches(final int block, final long fromMillis, final long untilMillis,
+                                 final int nameId) {
+        return blockMinStart[block] < untilMillis && blockMaxEnd[block] > fromMillis
+                && (nameId == ALL_NAMES || (blockNames[block] & nameBit(nameId)) != 0);
+    }
+
+    static void putRecord(final ByteBuffer target, final int nameId, final EventBucket bucket) {
+        target.putLong(bucket.getIntervalStart());
+        target.putLong(bucket.getIntervalEnd());
+        target.putInt(nameId);
+        target.putInt(0);
+        target.putLong(bucket.getCount());
+        target.putDouble(bucket.getMinValue());
+        target.putDouble(bucket.getMeanValue());
+        target.putDouble(bucket.getMaxValue());
+    }
+
+    private static int getRecord(final ByteBuffer source, final MutableBucket target) {
+        final long intervalStart = source.getLong();
+        final long intervalEnd = source.getLong();
+        final int nameId = source.getInt();
+        source.getInt();
+        final long count = source.getLong();
+        final double minValue = source.getDouble();
+        final double meanValue = source.getDouble();
+        final double maxValue = source.getDouble();
+        target.setInterval(intervalStart, intervalEnd);
+        target.setValues(count, minValue, meanValue, maxValue);
+        return nameId;
+    }
+
+    /**
+     * Read all records of blocks overlapping [fromMillis, untilMillis) that
+     * may contain records of the given name (or of all names, for ALL_NAMES).
+     * Records outside that range or of other names may be passed to the
+     * visitor as well.
+     */
+    void forEachRecord(final long fromMillis, final long untilMillis, final int nameId,
+                       final RecordVisitor visitor) throws IOException {
+        if (!overlaps(fromMillis, untilMillis)) {
+            return;
+        }
+
+        final int blocks = blockCount();
+        int first = 0;
+        while (first < blocks && !blockMatches(first, fromMillis, untilMillis, nameId)) {
+            first++;
+        }
+        int last = blocks - 1;
+        while (last >= first && !blockMatches(last, fromMillis, untilMillis, nameId)) {
+            last--;
+        }
+        if (first > last) {
+            return;
+        }
+
+        final long position = (long) first * BLOCK_RECORDS * RECORD_SIZE;
+        final long size = Math.min((long) (last + 1) * BLOCK_RECORDS, recordCount) * RECORD_SIZE - position;
+        final MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        }
+
+        final MutableBucket bucket = new MutableBucket(0, 1, null);
+        for (int b = first; b <= last; b++) {
+            if (!blockMatches(b, fromMillis, untilMillis, nameId)) {
+                continue; // its pages are never touched
+            }
+
+            final int records = Math.min(BLOCK_RECORDS, recordCount - b * BLOCK_RECORDS);
+            mapped.position((b - first) * BLOCK_RECORDS * RECORD_SIZE);
+            for (int r = 0; r < records; r++) {
+                final int recordNameId = getRecord(mapped, bucket);
+                if (nameId == ALL_NAMES || recordNameId == nameId) {
+                    visitor.visit(recordNameId, bucket);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the index file, atomically replacing any previous one.
+     */
+    void writeIndex() throws IOException {
+        final int blocks = blockCount();
+        final ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 8 + 4 + replaces.length * 8 + blocks * 24);
+        buffer.putInt(INDEX_MAGIC);
+        buffer.putInt(recordCount);
+        buffer.putLong(compactedWidth);
+        buffer.putInt(replaces.length);
+        for (final long r : replaces) {
+            buffer.putLong(r);
+        }
+        for (int b = 0; b < blocks; b++) {
+            buffer.putLong(blockMinStart[b]);
+            buffer.putLong(blockMaxEnd[b]);
+            buffer.putLong(blockNames[b]);
+        }
+        buffer.flip();
+
+        final File tmp = new File(indexFile.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load the index of an existing segment, or rebuild it from the segment
+     * file if it is missing or damaged (e.g. after a crash). A partial record
+     * at the end of the segment file is ignored.
+     */
+    static BucketLogSegment load(final File directory, final long sequence) throws IOException {
+        final BucketLogSegment segment = new BucketLogSegment(directory, sequence);
+        if (segment.indexFile.isFile() && segment.readIndex()) {
+            return segment;
+        }
+
+        segment.recordCount = 0;
+        segment.compactedWidth = 0;
+        segment.replaces = new long[0];
+        final int records = (int) (segment.file.length() / RECORD_SIZE);
+        final MutableBucket bucket = new MutableBucket(0, 1, null);
+        final ByteBuffer buffer = ByteBuffer.allocate(BLOCK_RECORDS * RECORD_SIZE);
+        try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            for (int done = 0; done < records; ) {
+                final int chunk = Math.min(BLOCK_RECORDS, records - done);
+                buffer.clear().limit(chunk * RECORD_SIZE);
+                while (buffer.hasRemaining()) {
+                    final int read = channel.read(buffer, position);
+                    if (read < 0) {
+                        throw new IOException("unexpected end of segment " + segment.file);
+                    }
+                    position += read;
+                }
+                buffer.flip();
+                for (int r = 0; r < chunk; r++) {
+                    final int nameId = getRecord(buffer, bucket);
+                    segment.indexRecord(nameId, bucket.getIntervalStart(), bucket.getIntervalEnd());
+                }
+                done += chunk;
+            }
+        }
+        segment.writeIndex();
+        return segment;
+    }
+
+    private boolean readIndex() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(indexFile.toPath()));
+        if (buffer.remaining() < 20 || buffer.getInt() != INDEX_MAGIC) {
+            return false;
+        }
+
+        final int records = buffer.getInt();
+        final long width = buffer.getLong();
+        final int replaced = buffer.getInt();
+        final int blocks = (records + BLOCK_RECORDS - 1) / BLOCK_RECORDS;
+        if (records < 0 || replaced < 0 || buffer.remaining() != replaced * 8L + blocks * 24L
+                || file.length() < (long) records * RECORD_SIZE) {
+            return false;
+        }
+
+        recordCount = records;
+        compactedWidth = width;
+        replaces = new long[replaced];
+        for (int i = 0; i < replaced; i++) {
+            replaces[i] = buffer.getLong();
+        }
+        blockMinStart = new long[Math.max(blocks, 4)];
+        blockMaxEnd = new long[Math.max(blocks, 4)];
+        blockNames = new long[Math.max(blocks, 4)];
+        for (int b = 0; b < blocks; b++) {
+            blockMinStart[b] = buffer.getLong();
+            blockMaxEnd[b] = buffer.getLong();
+            blockNames[b] = buffer.getLong();
+        }
+        return true;
+    }
+
+    /**
+     * Delete the segment and its index.
+     */
+    void delete() throws IOException {
+        Files.deleteIfExists(indexFile.toPath());
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @Override
+    public String toString() {
+        return "BucketLogSegment [sequence=" + sequence + ", recordCount=" + recordCount + ", compactedWidth="
+                + compactedWidth + "]";
+    }
+}
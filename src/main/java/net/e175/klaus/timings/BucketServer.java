@@ -0,0 +1,355 @@
+package net.e175.klaus.timings;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BucketServer receives the buckets shipped by {@link BucketClient}s, e.g.
+ * to aggregate the timings of many nodes in one place.
+ * <p>
+ * Each node's buckets are kept in an RrdEventRecorder of their own, with the
+ * node's settings (see {@link #getRecorder(String)}). As clients ship the
+ * current state of modified buckets, not increments, received buckets
+ * replace what the node's recorder held for the same interval. Use
+ * {@link #getEventBuckets(String)} to combine the buckets of all nodes.
+ * <p>
+ * All connections are handled with non-blocking I/O on a single selector.
+ * BucketServer does not start a thread of its own: call
+ * {@link #poll(long)} in a loop on a thread of your choice. Malformed data
+ * or I/O errors close only the connection concerned; they are counted and
+ * kept for {@link #getLastError()}.
+ * <p>
+ * What clients can make the server allocate is bounded: connections are
+ * limited in number, each with a receive buffer of at most about 1 MB, and
+ * so are nodes; per node, there are limits on the number of buckets, the
+ * bucket width, the number of names and their length. Connections
+ * exceeding them are closed as erroneous.
+ *
+ * @ThreadSafe
+ */
+public final class BucketServer implements Closeable {
+    public static final int DEFAULT_MAX_NODES = 1024;
+    public static final int DEFAULT_MAX_CONNECTIONS = 256;
+
+    private static final int INITIAL_BUFFER_BYTES = 64 * 1024;
+
+    private final int maxNodes;
+    private final int maxConnections;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+
+    private final ConcurrentMap<String, RrdEventRecorder> recorders = new ConcurrentHashMap<>();
+
+    private final AtomicLong connectionErrors = new AtomicLong();
+    private volatile Exception lastError;
+
+    /**
+     * State of one client connection, only used by poll().
+     */
+    private static final class Connection {
+        private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+        private BucketWireFormat.Hello hello;
+        private final List<String> dictionary = new ArrayList<>();
+        private RrdEventRecorder recorder;
+    }
+
+    /**
+     * Start listening.
+     *
+     * @param bindAddress Address to listen on, e.g. new InetSocketAddress(port). Must not be null.
+     */
+    public BucketServer(final InetSocketAddress bindAddress) throws IOException {
+        this(bindAddress, DEFAULT_MAX_NODES, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * Start listening.
+     *
+     * @param bindAddress    Address to listen on, e.g. new InetSocketAddress(port). Must not be null.
+     * @param maxNodes       Maximum number of nodes to keep buckets for. Must be greater than 0.
+     * @param maxConnections Maximum number of open connections; further ones are closed right away. Must be
+     *                       greater than 0.
+     */
+    public BucketServer(final InetSocketAddress bindAddress, final int maxNodes, final int maxConnections)
+            throws IOException {
+        if (bindAddress == null) {
+            throw new IllegalArgumentException("bindAddress must not be null");
+        }
+        if (maxNodes <= 0 || maxConnections <= 0) {
+            throw new IllegalArgumentException("maxNodes and maxConnections must be greater than 0");
+        }
+
+        this.maxNodes = maxNodes;
+        this.maxConnections = maxConnections;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.configureBlocking(false);
+            serverChannel.bind(bindAddress);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The address actually listened on, e.g. to find out the port
+     * if port 0 was given.
+     */
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    /**
+     * Accept new connections and read whatever has arrived, waiting up to
+     * timeoutMillis for something to arrive.
+     *
+     * @param timeoutMillis 0 to return immediately if nothing has arrived. Must not be negative.
+     * @return Number of buckets received.
+     * @throws IOException If the server itself failed (errors of single connections are not thrown).
+     */
+    public synchronized int poll(final long timeoutMillis) throws IOException {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("timeoutMillis must not be negative");
+        }
+
+        if (timeoutMillis == 0) {
+            selector.selectNow();
+        } else {
+            selector.select(timeoutMillis);
+        }
+
+        int received = 0;
+        final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            final SelectionKey key = keys.next();
+            keys.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+
+            if (key.isAcceptable()) {
+                accept();
+            } else if (key.isReadable()) {
+                try {
+                    received += read(key);
+                } catch (IOException | RuntimeException e) {
+                    connectionErrors.incrementAndGet();
+                    lastError = e;
+                    closeConnection(key);
+                }
+            }
+        }
+        return received;
+    }
+
+    private void accept() throws IOException {
+        final SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        // the selector's keys are the server's and those of open connections
+        if (selector.keys().size() > maxConnections) {
+            connectionErrors.incrementAndGet();
+            lastError = new IOException("more than " + maxConnections + " connections");
+            channel.close();
+        } else {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new Connection());
+        }
+    }
+
+    private int read(final SelectionKey key) throws IOException {
+        final SocketChannel channel = (SocketChannel) key.channel();
+        final Connection connection = (Connection) key.attachment();
+
+        if (!connection.in.hasRemaining()) {
+            // a frame larger than the buffer: grow it, the frame length has been checked already
+            final ByteBuffer larger = ByteBuffer.allocate(Math.min(connection.in.capacity() * 2,
+                    BucketWireFormat.MAX_FRAME_BYTES + 4));
+            connection.in.flip();
+            larger.put(connection.in);
+            connection.in = larger;
+        }
+        if (channel.read(connection.in) < 0) {
+            closeConnection(key);
+            return 0;
+        }
+
+        int received = 0;
+        connection.in.flip();
+        try {
+            ByteBuffer frame;
+            while ((frame = BucketWireFormat.nextFrame(connection.in)) != null) {
+                received += process(connection, frame);
+            }
+        } finally {
+            connection.in.compact();
+        }
+        return received;
+    }
+
+    private int process(final Connection connection, final ByteBuffer frame) throws IOException {
+        final Map<String, List<EventBucket>> byName = new HashMap<>();
+        final BucketWireFormat.Hello hello = BucketWireFormat.decodeFrame(frame, connection.hello,
+                connection.dictionary, new BucketWireFormat.BucketSink() {
+                    @Override
+                    public void bucket(final String name, final EventBucket bucket) {
+                        List<EventBucket> buckets = byName.get(name);
+                        if (buckets == null) {
+                            buckets = new ArrayList<>();
+                            byName.put(name, buckets);
+                        }
+                        buckets.add(bucket);
+                    }
+                });
+        if (hello != null) {
+            connection.hello = hello;
+            connection.recorder = recorderFor(hello);
+        }
+
+        int received = 0;
+        for (final Map.Entry<String, List<EventBucket>> entry : byName.entrySet()) {
+            // names sent on earlier connections count as well
+            if (connection.recorder.getRRD(entry.getKey()) == null
+                    && connection.recorder.getFootprint().getNameCount() >= BucketWireFormat.MAX_NAMES) {
+                throw new IOException("more than " + BucketWireFormat.MAX_NAMES + " names from node "
+                        + connection.hello.node);
+            }
+            connection.recorder.getOrCreateRRD(entry.getKey()).replace(entry.getValue());
+            received += entry.getValue().size();
+        }
+        return received;
+    }
+
+    private RrdEventRecorder recorderFor(final BucketWireFormat.Hello hello) throws IOException {
+        final RrdEventRecorder existing = recorders.get(hello.node);
+        if (existing != null && existing.getNumberOfBuckets() == hello.numberOfBuckets
+                && existing.getBucketWidth() == hello.bucketWidth
+                && existing.getAlignmentOffset() == hello.alignmentOffset) {
+            return existing;
+        }
+        if (existing == null && recorders.size() >= maxNodes) {
+            throw new IOException("more than " + maxNodes + " nodes, not accepting node " + hello.node);
+        }
+
+        // new node, or the node's settings have changed
+        final RrdEventRecorder created = new RrdEventRecorder.Builder(hello.numberOfBuckets, hello.bucketWidth)
+                .alignmentOffset(hello.alignmentOffset)
+                .build();
+        recorders.put(hello.node, created);
+        return created;
+    }
+
+    private void closeConnection(final SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // nothing left to do about it
+        }
+    }
+
+    /**
+     * @return Names of all nodes that have connected so far, sorted.
+     */
+    public List<String> getNodes() {
+        final List<String> result = new ArrayList<>(recorders.keySet());
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * @return The recorder holding the buckets received from node, or null
+     * if the node has never connected. Its groups are not kept up to date.
+     */
+    public RrdEventRecorder getRecorder(final String node) {
+        return recorders.get(node);
+    }
+
+    /**
+     * Get the buckets received for name from all nodes, combining buckets of
+     * the same interval.
+     *
+     * @return Non-empty buckets in chronological order. Empty if nothing has
+     * been received for name.
+     */
+    public List<EventBucket> getEventBuckets(final String name) {
+        final TreeMap<Long, MutableBucket> combined = new TreeMap<>();
+        for (final RrdEventRecorder recorder : recorders.values()) {
+            for (final EventBucket bucket : recorder.getEventBuckets(name)) {
+                if (bucket.isEmpty()) {
+                    continue;
+                }
+                MutableBucket target = combined.get(bucket.getIntervalStart());
+                if (target == null) {
+                    target = new MutableBucket(bucket.getIntervalStart(), bucket.getIntervalEnd(), null);
+                    combined.put(bucket.getIntervalStart(), target);
+                }
+                target.addBucket(bucket);
+            }
+        }
+
+        final List<EventBucket> result = new ArrayList<>(combined.size());
+        for (final MutableBucket bucket : combined.values()) {
+            result.add(new ImmutableBucket(bucket));
+        }
+        return result;
+    }
+
+    public int getMaxNodes() {
+        return maxNodes;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return Number of connections closed because of errors so far.
+     */
+    public long getConnectionErrors() {
+        return connectionErrors.get();
+    }
+
+    /**
+     * @return The last error of a connection, or null.
+     */
+    public Exception getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Stop listening and close all connections. The received buckets remain
+     * available.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        for (final SelectionKey key : new ArrayList<>(selector.keys())) {
+            if (key.channel() != serverChannel) {
+                closeConnection(key);
+            }
+        }
+        serverChannel.close();
+        selector.close();
+    }
+}
@@ -0,0 +1,342 @@
+package net.e175.klaus.timings;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * BucketWireFormat encodes and decodes the frames exchanged by
+ * {@link BucketClient} and {@link BucketServer}.
+ * <p>
+ * Each frame is a 4 byte length (of the rest of the frame), a type byte and
+ * the payload. Integers in payloads are variable-length (7 bits per byte,
+ * signed values zigzag-encoded), so small values take a single byte:
+ * <ul>
+ * <li>HELLO: magic, version, node name, numberOfBuckets, bucket width,
+ * alignment offset. Sent once per connection, before anything else.</li>
+ * <li>NAMES: number of names, then each name. Names are numbered in the
+ * order they are sent, starting at 0 for each connection, and referred to by
+ * that number from then on. A connection holds at most {@link #MAX_NAMES}
+ * names.</li>
+ * <li>BUCKETS: number of buckets, the first bucket's interval start, then
+ * per bucket the name number, the interval start as a multiple of the bucket
+ * width relative to the previous bucket's, the count and (for non-empty
+ * buckets) the values: just one for a count of 1, or min, mean and max.</li>
+ * </ul>
+ * Strings are a length followed by at most {@link #MAX_NAME_BYTES} UTF-8
+ * bytes; values are raw IEEE 754 doubles.
+ * <p>
+ * It has no state at all.
+ *
+ * @Immutable
+ */
+final class BucketWireFormat {
+    static final int MAGIC = 0x54524257;
+    static final int VERSION = 1;
+
+    static final byte HELLO = 1;
+    static final byte NAMES = 2;
+    static final byte BUCKETS = 3;
+
+    static final int HEADER_BYTES = 5;
+    static final int MAX_FRAME_BYTES = 1 << 20;
+    /**
+     * Upper limit of a single bucket's size in a BUCKETS frame, to split
+     * frames before they exceed {@link #MAX_FRAME_BYTES}.
+     */
+    static final int MAX_BUCKET_BYTES = 4 * 10 + 3 * 8;
+    /**
+     * Limits of the recorder settings in a HELLO frame, and of the names per
+     * connection, so a peer can't make the receiver allocate without bound.
+     */
+    static final int MAX_NUMBER_OF_BUCKETS = 1 << 16;
+    static final long MAX_BUCKET_WIDTH = 366 * RrdEventRecorder.DAY;
+    static final int MAX_NAMES = 1 << 16;
+    /**
+     * Maximum length of node names and names in UTF-8 bytes.
+     */
+    static final int MAX_NAME_BYTES = 1024;
+    /**
+     * Maximum number of names per NAMES frame, to keep frames well below
+     * {@link #MAX_FRAME_BYTES}.
+     */
+    static final int MAX_FRAME_NAMES = 512;
+
+    private BucketWireFormat() {
+    }
+
+    /**
+     * Frame contents as sent in a HELLO frame.
+     */
+    static final class Hello {
+        final String node;
+        final int numberOfBuckets;
+        final long bucketWidth;
+        final long alignmentOffset;
+
+        Hello(final String node, final int numberOfBuckets, final long bucketWidth, final long alignmentOffset) {
+            this.node = node;
+            this.numberOfBuckets = numberOfBuckets;
+            this.bucketWidth = bucketWidth;
+            this.alignmentOffset = alignmentOffset;
+        }
+    }
+
+    static void writeVarLong(final ByteBuffer out, final long value) {
+        long v = value;
+        while ((v & ~0x7FL) != 0) {
+            out.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    static long readVarLong(final ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed variable-length integer");
+    }
+
+    static void writeSignedVarLong(final ByteBuffer out, final long value) {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    static long readSignedVarLong(final ByteBuffer in) throws IOException {
+        final long zigzag = readVarLong(in);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    static int readCount(final ByteBuffer in) throws IOException {
+        final long count = readVarLong(in);
+        if (count < 0 || count > in.remaining()) {
+            throw new IOException("invalid count " + count);
+        }
+        return (int) count;
+    }
+
+    private static void writeString(final ByteBuffer out, final byte[] utf8) {
+        writeVarLong(out, utf8.length);
+        out.put(utf8);
+    }
+
+    static boolean isValidName(final String name) {
+        return name.length() <= MAX_NAME_BYTES / 3
+                || name.getBytes(StandardCharsets.UTF_8).length <= MAX_NAME_BYTES;
+    }
+
+    private static String readString(final ByteBuffer in) throws IOException {
+        final int length = readCount(in);
+        if (length > MAX_NAME_BYTES) {
+            throw new IOException("name longer than " + MAX_NAME_BYTES + " bytes");
+        }
+        final byte[] utf8 = new byte[length];
+        in.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return Buffer positioned after the header of a new frame of the given
+     * type, with room for payloadBytes.
+     */
+    private static ByteBuffer startFrame(final byte type, final int payloadBytes) {
+        final ByteBuffer frame = ByteBuffer.allocate(HEADER_BYTES + payloadBytes);
+        frame.position(4);
+        frame.put(type);
+        return frame;
+    }
+
+    /**
+     * Fill in the frame's length and flip it for writing to a channel.
+     */
+    private static ByteBuffer finishFrame(final ByteBuffer frame) {
+        frame.putInt(0, frame.position() - 4);
+        frame.flip();
+        return frame;
+    }
+
+    static ByteBuffer encodeHello(final Hello hello) {
+        final byte[] node = hello.node.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer frame = startFrame(HELLO, 8 + 10 + node.length + 3 * 10);
+        frame.putInt(MAGIC);
+        frame.putInt(VERSION);
+        writeString(frame, node);
+        writeVarLong(frame, hello.numberOfBuckets);
+        writeVarLong(frame, hello.bucketWidth);
+        writeVarLong(frame, hello.alignmentOffset);
+        return finishFrame(frame);
+    }
+
+    static Hello decodeHello(final ByteBuffer payload) throws IOException {
+        if (payload.getInt() != MAGIC || payload.getInt() != VERSION) {
+            throw new IOException("unknown protocol or version");
+        }
+        final String node = readString(payload);
+        final long numberOfBuckets = readVarLong(payload);
+        final long bucketWidth = readVarLong(payload);
+        final long alignmentOffset = readVarLong(payload);
+        if (numberOfBuckets <= 0 || numberOfBuckets > MAX_NUMBER_OF_BUCKETS
+                || bucketWidth <= 0 || bucketWidth > MAX_BUCKET_WIDTH
+                || alignmentOffset < 0 || alignmentOffset >= bucketWidth) {
+            throw new IOException("invalid recorder settings from node " + node);
+        }
+        return new Hello(node, (int) numberOfBuckets, bucketWidth, alignmentOffset);
+    }
+
+    static ByteBuffer encodeNames(final List<String> names) {
+        final byte[][] utf8 = new byte[names.size()][];
+        int bytes = 10;
+        for (int i = 0; i < utf8.length; i++) {
+            utf8[i] = names.get(i).getBytes(StandardCharsets.UTF_8);
+            bytes += 5 + utf8[i].length;
+        }
+
+        final ByteBuffer frame = startFrame(NAMES, bytes);
+        writeVarLong(frame, utf8.length);
+        for (final byte[] name : utf8) {
+            writeString(frame, name);
+        }
+        return finishFrame(frame);
+    }
+
+    /**
+     * Decode the names of a NAMES frame, appending them to the connection's
+     * dictionary.
+     */
+    static void decodeNames(final ByteBuffer payload, final List<String> dictionary) throws IOException {
+        final int count = readCount(payload);
+        if (dictionary.size() + count > MAX_NAMES) {
+            throw new IOException("more than " + MAX_NAMES + " names");
+        }
+        for (int i = 0; i < count; i++) {
+            dictionary.add(readString(payload));
+        }
+    }
+
+    /**
+     * Encode buckets from..until of the given arrays (of equal length) as one
+     * BUCKETS frame. Buckets are best ordered by name, then chronologically,
+     * to keep the interval start deltas small.
+     */
+    static ByteBuffer encodeBuckets(final int[] nameIds, final EventBucket[] buckets, final int from, final int until,
+                                    final long bucketWidth) {
+        final ByteBuffer frame = startFrame(BUCKETS, 2 * 10 + (until - from) * MAX_BUCKET_BYTES);
+        writeVarLong(frame, until - from);
+        long previousStart = from < until ? buckets[from].getIntervalStart() : 0;
+        writeSignedVarLong(frame, previousStart);
+        for (int i = from; i < until; i++) {
+            final EventBucket bucket = buckets[i];
+            assert (bucket.getIntervalStart() - previousStart) % bucketWidth == 0;
+            writeVarLong(frame, nameIds[i]);
+            writeSignedVarLong(frame, (bucket.getIntervalStart() - previousStart) / bucketWidth);
+            previousStart = bucket.getIntervalStart();
+
+            writeVarLong(frame, bucket.getCount());
+            if (bucket.getCount() == 1) {
+                frame.putDouble(bucket.getMeanValue());
+            } else if (bucket.getCount() > 1) {
+                frame.putDouble(bucket.getMinValue());
+                frame.putDouble(bucket.getMeanValue());
+                frame.putDouble(bucket.getMaxValue());
+            }
+        }
+        return finishFrame(frame);
+    }
+
+    /**
+     * Receives decoded buckets.
+     */
+    interface BucketSink {
+        void bucket(String name, EventBucket bucket);
+    }
+
+    static void decodeBuckets(final ByteBuffer payload, final List<String> dictionary, final long bucketWidth,
+                              final BucketSink sink) throws IOException {
+        final int count = readCount(payload);
+        long start = readSignedVarLong(payload);
+        for (int i = 0; i < count; i++) {
+            final long nameId = readVarLong(payload);
+            if (nameId < 0 || nameId >= dictionary.size()) {
+                throw new IOException("unknown name number " + nameId);
+            }
+            start += readSignedVarLong(payload) * bucketWidth;
+
+            final MutableBucket bucket = new MutableBucket(start, start + bucketWidth, null);
+            final long bucketCount = readVarLong(payload);
+            if (bucketCount < 0) {
+                throw new IOException("invalid bucket count " + bucketCount);
+            }
+            if (bucketCount == 1) {
+                final double value = payload.getDouble();
+                bucket.setValues(1, value, value, value);
+            } else if (bucketCount > 1) {
+                bucket.setValues(bucketCount, payload.getDouble(), payload.getDouble(), payload.getDouble());
+            }
+            sink.bucket(dictionary.get((int) nameId), new ImmutableBucket(bucket));
+        }
+    }
+
+    /**
+     * Take the next complete frame out of in (in read mode), or return null
+     * if it doesn't hold a complete frame yet.
+     *
+     * @return Frame payload, with the frame type as its first byte.
+     */
+    static ByteBuffer nextFrame(final ByteBuffer in) throws IOException {
+        if (in.remaining() < 4) {
+            return null;
+        }
+        final int length = in.getInt(in.position());
+        if (length < 1 || length > MAX_FRAME_BYTES) {
+            throw new IOException("invalid frame length " + length);
+        }
+        if (in.remaining() < 4 + length) {
+            return null;
+        }
+
+        final byte[] frame = Arrays.copyOfRange(in.array(), in.arrayOffset() + in.position() + 4,
+                in.arrayOffset() + in.position() + 4 + length);
+        in.position(in.position() + 4 + length);
+        return ByteBuffer.wrap(frame);
+    }
+
+    /**
+     * Decode a complete frame, passing its contents on.
+     *
+     * @return The HELLO frame's contents for a HELLO frame, otherwise null.
+     */
+    static Hello decodeFrame(final ByteBuffer frame, final Hello hello, final List<String> dictionary,
+                             final BucketSink sink) throws IOException {
+        try {
+            final byte type = frame.get();
+            if (hello == null && type != HELLO) {
+                throw new IOException("expected HELLO frame, got type " + type);
+            }
+            switch (type) {
+                case HELLO:
+                    if (hello != null) {
+                        throw new IOException("unexpected HELLO frame");
+                    }
+                    return decodeHello(frame);
+                case NAMES:
+                    decodeNames(frame, dictionary);
+                    return null;
+                case BUCKETS:
+                    decodeBuckets(frame, dictionary, hello.bucketWidth, sink);
+                    return null;
+                default:
+                    throw new IOException("unknown frame type " + type);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("truncated frame", e);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package net.e175.klaus.timings;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * BufferedEventRecorder is an EventRecorder that pre-aggregates Events in a
+ * small per-thread buffer before passing them on to an RrdEventRecorder.
+ * <p>
+ * Each thread keeps one partial bucket per name. Recording an Event only
+ * touches the current thread's buffer, without taking any locks: flush()
+ * takes over a thread's buffered partial buckets with an atomic exchange, so
+ * recording threads neither contend with each other nor with flush(). Partial buckets are merged into the target
+ * recorder:
+ * <ul>
+ * <li>when an Event for the same name falls into a different bucket
+ * interval,</li>
+ * <li>when a thread's buffer holds more than maxNames names,</li>
+ * <li>when an Event's trigger time is maxDelayMillis or more after the
+ * oldest buffered Event's trigger time, and</li>
+ * <li>when {@link #flush()} is called.</li>
+ * </ul>
+ * Buffered Events are not visible in the target recorder until they are
+ * merged. As threads that stop recording never reach any of the automatic
+ * flush conditions, applications should call flush() periodically (e.g.
+ * from a scheduled executor, or before reading the target recorder) to bound
+ * this delay.
+ * <p>
+ * Each thread that has ever recorded an Event holds a buffer until it is
+ * flushed after the thread's death, so this class is best used with a
+ * bounded number of (pooled) threads.
+ *
+ * @ThreadSafe
+ */
+public final class BufferedEventRecorder implements EventRecorder {
+    public static final int DEFAULT_MAX_NAMES = 64;
+    public static final long DEFAULT_MAX_DELAY = RrdEventRecorder.SECOND;
+
+    private final RrdEventRecorder target;
+    private final long bucketWidthMilliseconds;
+    private final long alignmentOffset;
+    private final int maxNames;
+    private final long maxDelayMillis;
+
+    private final Set<ThreadBuffer> buffers = ConcurrentHashMap.newKeySet();
+    private final ThreadLocal<ThreadBuffer> localBuffer = new ThreadLocal<ThreadBuffer>() {
+        @Override
+        protected ThreadBuffer initialValue() {
+            final ThreadBuffer buffer = new ThreadBuffer(Thread.currentThread());
+            buffers.add(buffer);
+            return buffer;
+        }
+    };
+
+    /**
+     * Per-thread buffer. The owning thread takes its Partials out of the slot
+     * for each Event and puts them back afterwards; flush() takes them out
+     * for good and leaves empty ones behind. Neither ever blocks the other:
+     * if flush() has taken the Partials, the owner simply starts new ones.
+     */
+    private final class ThreadBuffer {
+        private final Thread owner;
+        private final AtomicReference<Partials> slot = new AtomicReference<>(new Partials());
+
+        private ThreadBuffer(final Thread owner) {
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * Partial buckets of one thread. Only ever used by the thread that has
+     * taken it out of its ThreadBuffer's slot.
+     */
+    private final class Partials {
+        private final Map<String, MutableBucket> partials = new HashMap<>();
+        private long oldestTriggerTime = Long.MAX_VALUE;
+
+        private void add(final Event event) {
+            final long triggerTime = event.getTriggerTime();
+            final String name = event.getName();
+            final MutableBucket partial = partials.get(name);
+            if (partial != null && triggerTime >= partial.getIntervalStart()
+                    && triggerTime < partial.getIntervalEnd()) {
+                partial.addEvent(event);
+            } else {
+                if (partial != null) {
+                    target.recordBucket(name, partial);
+                } else if (partials.size() >= maxNames) {
+                    flushAll();
+                }
+                final long start = RRD.intervalStart(triggerTime, bucketWidthMilliseconds, alignmentOffset);
+                partials.put(name, new MutableBucket(start, start + bucketWidthMilliseconds, event));
+            }
+
+            if (triggerTime < oldestTriggerTime) {
+                oldestTriggerTime = triggerTime;
+            } else if (triggerTime - oldestTriggerTime >= maxDelayMillis) {
+                flushAll();
+            }
+        }
+
+        private void flushAll() {
+            for (final Map.Entry<String, MutableBucket> entry : partials.entrySet()) {
+                target.recordBucket(entry.getKey(), entry.getValue());
+            }
+            partials.clear();
+            oldestTriggerTime = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Create a BufferedEventRecorder with the default maxNames and maxDelay.
+     *
+     * @param target Recorder to pass buffered Events on to. Must not be null.
+     * @see #DEFAULT_MAX_NAMES
+     * @see #DEFAULT_MAX_DELAY
+     */
+    public BufferedEventRecorder(final RrdEventRecorder target) {
+        this(target, DEFAULT_MAX_NAMES, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * Create a BufferedEventRecorder.
+     *
+     * @param target         Recorder to pass buffered Events on to. Must not be null.
+     * @param maxNames       Maximum number of names buffered per thread. Must be greater than 0.
+     * @param maxDelayMillis Maximum difference in trigger times between buffered Events of a thread.
+     *                       Must be greater than 0.
+     */
+    public BufferedEventRecorder(final RrdEventRecorder target, final int maxNames, final long maxDelayMillis) {
+        if (target == null) {
+            throw new IllegalArgumentException("target must not be null");
+        }
+        if (maxNames <= 0 || maxDelayMillis <= 0) {
+            throw new IllegalArgumentException("maxNames and maxDelayMillis must be greater than 0");
+        }
+
+        this.target = target;
+        this.bucketWidthMilliseconds = target.getBucketWidth();
+        this.alignmentOffset = target.getAlignmentOffset();
+        this.maxNames = maxNames;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Record an event into the current thread's buffer.
+     *
+     * @param event Event object. Null values are silently ignored.
+     */
+    @Override
+    public void record(final Event event) {
+        if (event == null) {
+            return;
+        }
+
+        if (event.getTriggerTime() < 0) {
+            throw new IllegalArgumentException(
+                    "negative trigger times are not correctly handled by current implementation");
+        }
+
+        final ThreadBuffer buffer = localBuffer.get();
+        Partials partials = buffer.slot.getAndSet(null);
+        if (partials == null) {
+            // taken by flush()
+            partials = new Partials();
+        }
+        try {
+            partials.add(event);
+        } finally {
+            buffer.slot.lazySet(partials);
+        }
+    }
+
+    /**
+     * Merge all buffered Events of all threads into the target recorder.
+     * Recording threads are not held up by this; Events recorded while
+     * flush() runs may or may not be merged by it.
+     */
+    public void flush() {
+        for (final Iterator<ThreadBuffer> it = buffers.iterator(); it.hasNext(); ) {
+            final ThreadBuffer buffer = it.next();
+            Partials partials;
+            while ((partials = buffer.slot.getAndSet(null)) == null) {
+                // the owner is in the middle of recording a single Event
+                Thread.yield();
+            }
+            buffer.slot.compareAndSet(null, new Partials());
+            partials.flushAll();
+            if (!buffer.owner.isAlive()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return The target recorder.
+     */
+    public RrdEventRecorder getTarget() {
+        return target;
+    }
+}
@@ -0,0 +1,77 @@
+package net.e175.klaus.timings;
+
+/**
+ * A columnar wrapper/transfer class for exporting EventBuckets via data binding libraries.
+ * <p>
+ * Unlike {@link EventBuckets}, which creates one object (and several boxed numbers) per bucket, this class
+ * keeps the buckets of each name in a handful of primitive arrays, one per field. The arrays are filled
+ * directly from the recorder's storage, so exporting many names and buckets is much cheaper in terms of
+ * both allocation and serialization. All names share the same bucket width, so interval ends are not
+ * stored: the end of bucket i is intervalStart[i] + bucketWidth.
+ * <p>
+ * As with EventBucket, the min/mean/max values of a bucket are only valid if its count is greater than 0.
+ * It should not be used for any other purpose.
+ *
+ * @NotThreadSafe
+ * @see RrdEventRecorder#getEventBucketColumns()
+ */
+@SuppressWarnings("all")
+public final class EventBucketColumns {
+
+    public long bucketWidth;
+    public NameToColumns[] buckets;
+
+    /**
+     * Create an empty instance.
+     */
+    public EventBucketColumns() {
+        buckets = new NameToColumns[0];
+    }
+
+    EventBucketColumns(final long bucketWidth, final NameToColumns[] buckets) {
+        assert buckets != null;
+
+        this.bucketWidth = bucketWidth;
+        this.buckets = buckets;
+    }
+
+    static class NameToColumns {
+        public String name;
+        public long[] intervalStart;
+        public long[] count;
+        public double[] minValue;
+        public double[] meanValue;
+        public double[] maxValue;
+
+        NameToColumns() {
+        }
+
+        NameToColumns(final String name, final int size) {
+            this.name = name;
+            intervalStart = new long[size];
+            count = new long[size];
+            minValue = new double[size];
+            meanValue = new double[size];
+            maxValue = new double[size];
+        }
+
+        int size() {
+            return intervalStart.length;
+        }
+
+        void set(final int i, final long start, final EventBucket source) {
+            intervalStart[i] = start;
+            if (source != null) {
+                count[i] = source.getCount();
+                minValue[i] = source.getMinValue();
+                meanValue[i] = source.getMeanValue();
+                maxValue[i] = source.getMaxValue();
+            } else {
+                count[i] = 0;
+                minValue[i] = 0;
+                meanValue[i] = 0;
+                maxValue[i] = 0;
+            }
+        }
+    }
+}
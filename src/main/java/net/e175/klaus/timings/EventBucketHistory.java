@@ -0,0 +1,76 @@
+package net.e175.klaus.timings;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * EventBucketHistory answers queries for arbitrary time ranges by combining
+ * the buckets currently held by an RrdEventRecorder with those written to a
+ * {@link BucketLog} (typically the recorder's listener) after they were
+ * superseded.
+ * <p>
+ * Within the recorder's current window, its own buckets are used, as they
+ * include Events recorded after their bucket was superseded. Before the
+ * window, buckets are read from the log, skipping all index blocks outside
+ * the requested time range or without records for the requested name. Buckets
+ * compacted to a width larger than the recorder's may extend into the window.
+ *
+ * @ThreadSafe
+ */
+public final class EventBucketHistory {
+    private final RrdEventRecorder recorder;
+    private final BucketLog log;
+
+    /**
+     * @param recorder Recorder holding the most recent buckets. Must not be null.
+     * @param log      Log holding older buckets. Must not be null.
+     */
+    public EventBucketHistory(final RrdEventRecorder recorder, final BucketLog log) {
+        if (recorder == null || log == null) {
+            throw new IllegalArgumentException("recorder and log must not be null");
+        }
+
+        this.recorder = recorder;
+        this.log = log;
+    }
+
+    /**
+     * Get all non-empty buckets of the given name overlapping
+     * [fromMillis, untilMillis), in chronological order.
+     *
+     * @param name        Event name for which to retrieve the list.
+     * @param fromMillis  Start of the time range (milliseconds-since-epoch), inclusive.
+     * @param untilMillis End of the time range (milliseconds-since-epoch), exclusive.
+     * @return List of EventBuckets, possibly of different widths. Empty if
+     * nothing was recorded for name in that time range.
+     */
+    public List<EventBucket> getEventBuckets(final String name, final long fromMillis, final long untilMillis)
+            throws IOException {
+        if (fromMillis >= untilMillis) {
+            return new ArrayList<>();
+        }
+
+        final List<EventBucket> live = recorder.getEventBuckets(name);
+        final long windowStart = live.isEmpty() ? Long.MAX_VALUE : live.get(0).getIntervalStart();
+
+        final List<EventBucket> result = new ArrayList<>();
+        if (fromMillis < windowStart) {
+            result.addAll(log.getEventBuckets(name, fromMillis, Math.min(untilMillis, windowStart)));
+        }
+        for (final EventBucket bucket : live) {
+            if (!bucket.isEmpty() && bucket.getIntervalStart() < untilMillis && bucket.getIntervalEnd() > fromMillis) {
+                result.add(bucket);
+            }
+        }
+        return result;
+    }
+
+    public RrdEventRecorder getRecorder() {
+        return recorder;
+    }
+
+    public BucketLog getLog() {
+        return log;
+    }
+}
@@ -0,0 +1,33 @@
+package net.e175.klaus.timings;
+
+/**
+ * This callback interface must be implemented by consumers of a push
+ * subscription to bucket updates, see
+ * {@link RrdEventRecorder#subscribe(EventBucketSubscriber, java.util.concurrent.Executor)}.
+ * <p>
+ * It follows the shape of a Reactive Streams subscriber: nothing is
+ * delivered until buckets have been requested through the
+ * {@link EventBucketSubscription}, and no more buckets are delivered than
+ * have been requested. Calls are never concurrent, so implementations need no
+ * synchronization of their own.
+ */
+public interface EventBucketSubscriber {
+
+    /**
+     * Called once, before any buckets are delivered.
+     *
+     * @param subscription Subscription to request buckets from, or to cancel.
+     */
+    void onSubscribe(EventBucketSubscription subscription);
+
+    /**
+     * Called for each updated bucket, on a thread of the subscription's
+     * executor. Implementations should not throw any runtime exceptions; if
+     * they do, the subscription is cancelled
+     * (see {@link EventBucketSubscription#getLastError()}).
+     *
+     * @param name   Name of the Events collected in this bucket.
+     * @param bucket A copy of the updated bucket.
+     */
+    void onNext(String name, EventBucket bucket);
+}
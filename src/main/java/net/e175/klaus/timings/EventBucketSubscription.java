@@ -0,0 +1,212 @@
+package net.e175.klaus.timings;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * EventBucketSubscription pushes bucket updates of an RrdEventRecorder to an
+ * {@link EventBucketSubscriber}, with back-pressure: buckets are only
+ * delivered as far as the subscriber has requested them with
+ * {@link #request(long)}.
+ * <p>
+ * The first delivery holds all current buckets (like
+ * {@link RrdEventRecorder#getEventBuckets()}), after that only updated
+ * buckets are delivered (like
+ * {@link RrdEventRecorder#getEventBucketsSince(long)}). Updates to the same
+ * bucket are coalesced while the subscriber hasn't requested more, so a slow
+ * subscriber only ever gets the latest state of a bucket, and nothing piles
+ * up in between. Buckets which have merely dropped out of the time window
+ * are not reported.
+ * <p>
+ * Recording an Event only wakes up the subscription if nothing else has done
+ * so since the last delivery; all the work of finding and delivering updates
+ * is done on the given executor, one task at a time.
+ *
+ * @ThreadSafe
+ */
+public final class EventBucketSubscription {
+
+    private final RrdEventRecorder recorder;
+    private final EventBucketSubscriber subscriber;
+    private final Executor executor;
+
+    private final AtomicLong demand = new AtomicLong();
+    /**
+     * Set by recording threads when there may be updates; cleared when they
+     * are fetched.
+     */
+    private final AtomicBoolean updated = new AtomicBoolean(true);
+    private final AtomicInteger drainRequests = new AtomicInteger();
+    private volatile boolean cancelled;
+    private volatile RuntimeException lastError;
+
+    // accessed by drain() only, which never runs concurrently
+    private long cursor;
+    private final Map<BucketKey, EventBucket> pending = new LinkedHashMap<>();
+
+    private static final class BucketKey {
+        private final String name;
+        private final long intervalStart;
+
+        private BucketKey(final String name, final long intervalStart) {
+            this.name = name;
+            this.intervalStart = intervalStart;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof BucketKey)) {
+                return false;
+            }
+            final BucketKey other = (BucketKey) o;
+            return intervalStart == other.intervalStart && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * name.hashCode() + Long.hashCode(intervalStart);
+        }
+    }
+
+    EventBucketSubscription(final RrdEventRecorder recorder, final EventBucketSubscriber subscriber,
+                            final Executor executor) {
+        assert recorder != null && subscriber != null && executor != null;
+
+        this.recorder = recorder;
+        this.subscriber = subscriber;
+        this.executor = executor;
+    }
+
+    /**
+     * Request up to n more buckets.
+     *
+     * @param n Must be greater than 0. Long.MAX_VALUE means no limit.
+     */
+    public void request(final long n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("n must be greater than 0");
+        }
+
+        while (true) {
+            final long current = demand.get();
+            final long next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            if (demand.compareAndSet(current, next)) {
+                break;
+            }
+        }
+        scheduleDrain();
+    }
+
+    /**
+     * Stop delivering buckets. Buckets already being delivered may still
+     * arrive.
+     */
+    public void cancel() {
+        cancelled = true;
+        recorder.unsubscribe(this);
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return The exception thrown by the subscriber or the executor that
+     * cancelled this subscription, or null.
+     */
+    public RuntimeException getLastError() {
+        return lastError;
+    }
+
+    /**
+     * @return Number of buckets requested, but not delivered yet.
+     */
+    public long getDemand() {
+        return demand.get();
+    }
+
+    /**
+     * Called by the recorder after recording. Costs a single read unless
+     * this is the first update since the last fetch.
+     */
+    void signal() {
+        if (!updated.get() && updated.compareAndSet(false, true)) {
+            scheduleDrain();
+        }
+    }
+
+    private void scheduleDrain() {
+        if (drainRequests.getAndIncrement() == 0) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        drain();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // nothing will ever drain, so give up instead of throwing into every record() call
+                drainRequests.set(0);
+                lastError = e;
+                cancel();
+            }
+        }
+    }
+
+    private void drain() {
+        int missed = 1;
+        while (true) {
+            if (cancelled) {
+                pending.clear();
+            } else {
+                deliver();
+            }
+
+            missed = drainRequests.addAndGet(-missed);
+            if (missed == 0) {
+                return;
+            }
+        }
+    }
+
+    private void deliver() {
+        if (demand.get() == 0) {
+            // leave updates where they are: fetching them later coalesces them for free
+            return;
+        }
+
+        if (updated.getAndSet(false)) {
+            final EventBucketsDelta delta = recorder.getEventBucketsSince(cursor);
+            cursor = delta.getCursor();
+            for (final Map.Entry<String, List<EventBucket>> entry : delta.getEventBuckets().entrySet()) {
+                for (final EventBucket bucket : entry.getValue()) {
+                    pending.put(new BucketKey(entry.getKey(), bucket.getIntervalStart()), bucket);
+                }
+            }
+        }
+
+        final Iterator<Map.Entry<BucketKey, EventBucket>> it = pending.entrySet().iterator();
+        while (it.hasNext() && !cancelled && demand.get() > 0) {
+            final Map.Entry<BucketKey, EventBucket> entry = it.next();
+            it.remove();
+            if (demand.get() != Long.MAX_VALUE) {
+                demand.decrementAndGet();
+            }
+
+            try {
+                subscriber.onNext(entry.getKey().name, entry.getValue());
+            } catch (RuntimeException e) {
+                // don't let it escape into the executor, which may well be a recording thread
+                lastError = e;
+                cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package net.e175.klaus.timings;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The result of an incremental export: all EventBuckets modified since a
+ * given cursor, plus the cursor to use for the next export.
+ *
+ * @Immutable
+ * @see RrdEventRecorder#getEventBucketsSince(long)
+ */
+public final class EventBucketsDelta {
+
+    private final long cursor;
+    private final Map<String, List<EventBucket>> buckets;
+
+    EventBucketsDelta(final long cursor, final Map<String, List<EventBucket>> buckets) {
+        assert buckets != null;
+
+        this.cursor = cursor;
+        this.buckets = Collections.unmodifiableMap(buckets);
+    }
+
+    /**
+     * @return The cursor to pass to the next call of
+     * {@link RrdEventRecorder#getEventBucketsSince(long)}.
+     */
+    public long getCursor() {
+        return cursor;
+    }
+
+    /**
+     * @return Modified buckets in chronological order, by name. Names without
+     * modified buckets are not included.
+     */
+    public Map<String, List<EventBucket>> getEventBuckets() {
+        return buckets;
+    }
+
+    /**
+     * @return true if nothing was modified.
+     */
+    public boolean isEmpty() {
+        return buckets.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "EventBucketsDelta [cursor=" + cursor + ", buckets=" + buckets + "]";
+    }
+}
@@ -0,0 +1,345 @@
+package net.e175.klaus.timings;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Writes the contents of an RrdEventRecorder as JSON, without any data binding library.
+ * <p>
+ * The output uses the same schema that a typical data binding library produces for {@link EventBuckets}:
+ * <pre>
+ * {"buckets":[{"name":"foo","buckets":[{"intervalStart":0,"intervalEnd":1000,"count":1,
+ *     "minValue":10.0,"meanValue":10.0,"maxValue":10.0},...]},...]}
+ * </pre>
+ * The min/mean/max values of empty buckets are written as null. Buckets are read directly from the recorder's
+ * storage into columns that are reused across calls, and numbers are formatted into a reusable buffer, so
+ * writing does not create any per-bucket garbage.
+ * <p>
+ * Values are written with at most fractionDigits digits after the decimal point (trailing zeros removed). Values
+ * that are too large for that precision fall back to Double.toString(); NaN and infinite values are written as
+ * null, as JSON cannot represent them.
+ * <p>
+ * Instances can (and should) be reused, but not concurrently.
+ *
+ * @NotThreadSafe
+ */
+public final class EventBucketsJsonWriter {
+    public static final int DEFAULT_FRACTION_DIGITS = 6;
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_NUMBER_LENGTH = 32;
+    private static final double MAX_EXACT_LONG = 9007199254740992.0; // 2^53
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final int fractionDigits;
+    private final double fractionScale;
+
+    private final char[] chars = new char[BUFFER_SIZE];
+    private final byte[] bytes = new byte[BUFFER_SIZE * 3];
+    private final char[] digits = new char[MAX_NUMBER_LENGTH];
+    private int position;
+
+    private Appendable appendable;
+    private OutputStream stream;
+
+    private EventBucketColumns.NameToColumns columns = new EventBucketColumns.NameToColumns("", 0);
+
+    /**
+     * Create a writer using {@link #DEFAULT_FRACTION_DIGITS}.
+     */
+    public EventBucketsJsonWriter() {
+        this(DEFAULT_FRACTION_DIGITS);
+    }
+
+    /**
+     * Create a writer.
+     *
+     * @param fractionDigits Maximum number of digits after the decimal point. Must be between 0 and 9.
+     */
+    public EventBucketsJsonWriter(final int fractionDigits) {
+        if (fractionDigits < 0 || fractionDigits > 9) {
+            throw new IllegalArgumentException("fractionDigits must be between 0 and 9");
+        }
+        this.fractionDigits = fractionDigits;
+        this.fractionScale = Math.pow(10, fractionDigits);
+    }
+
+    /**
+     * Write all buckets for all names, like {@link RrdEventRecorder#getEventBuckets()}.
+     */
+    public void write(final RrdEventRecorder recorder, final Appendable out) throws IOException {
+        begin(out, null);
+        writeRecorder(recorder, false, 0);
+    }
+
+    /**
+     * Write all buckets for all names, like {@link RrdEventRecorder#getEventBuckets(long)}.
+     */
+    public void write(final RrdEventRecorder recorder, final long untilMillis, final Appendable out)
+            throws IOException {
+        begin(out, null);
+        writeRecorder(recorder, true, untilMillis);
+    }
+
+    /**
+     * Write all buckets for all names as UTF-8, like {@link RrdEventRecorder#getEventBuckets()}. The stream is
+     * neither flushed nor closed.
+     */
+    public void write(final RrdEventRecorder recorder, final OutputStream out) throws IOException {
+        begin(null, out);
+        writeRecorder(recorder, false, 0);
+    }
+
+    /**
+     * Write all buckets for all names as UTF-8, like {@link RrdEventRecorder#getEventBuckets(long)}. The stream
+     * is neither flushed nor closed.
+     */
+    public void write(final RrdEventRecorder recorder, final long untilMillis, final OutputStream out)
+            throws IOException {
+        begin(null, out);
+        writeRecorder(recorder, true, untilMillis);
+    }
+
+    /**
+     * Write previously exported columns.
+     */
+    public void write(final EventBucketColumns source, final Appendable out) throws IOException {
+        begin(out, null);
+        append("{\"buckets\":[");
+        for (int i = 0; i < source.buckets.length; i++) {
+            final EventBucketColumns.NameToColumns c = source.buckets[i];
+            writeName(i > 0, c.name);
+            writeColumns(c, c.size(), source.bucketWidth);
+            append("]}");
+        }
+        append("]}");
+        end();
+    }
+
+    private void begin(final Appendable out, final OutputStream outStream) {
+        appendable = out;
+        stream = outStream;
+        position = 0;
+    }
+
+    private void end() throws IOException {
+        flushBuffer(true);
+        appendable = null;
+        stream = null;
+    }
+
+    private void writeRecorder(final RrdEventRecorder recorder, final boolean extrapolate, final long untilMillis)
+            throws IOException {
+        final int numberOfBuckets = recorder.getNumberOfBuckets();
+        if (columns.size() < numberOfBuckets) {
+            columns = new EventBucketColumns.NameToColumns("", numberOfBuckets);
+        }
+
+        append("{\"buckets\":[");
+        final List<String> names = recorder.getNames();
+        boolean first = true;
+        for (final String name : names) {
+            final int count = extrapolate ? recorder.copyEventBuckets(name, columns, untilMillis)
+                    : recorder.copyEventBuckets(name, columns);
+            if (count < 0) {
+                continue; // removed concurrently
+            }
+            writeName(!first, name);
+            writeColumns(columns, count, recorder.getBucketWidth());
+            append("]}");
+            first = false;
+        }
+        append("]}");
+        end();
+    }
+
+    private void writeName(final boolean separator, final String name) throws IOException {
+        if (separator) {
+            append(',');
+        }
+        append("{\"name\":");
+        appendString(name);
+        append(",\"buckets\":[");
+    }
+
+    private void writeColumns(final EventBucketColumns.NameToColumns c, final int count, final long bucketWidth)
+            throws IOException {
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                append(',');
+            }
+            append("{\"intervalStart\":");
+            appendLong(c.intervalStart[i]);
+            append(",\"intervalEnd\":");
+            appendLong(c.intervalStart[i] + bucketWidth);
+            append(",\"count\":");
+            appendLong(c.count[i]);
+            if (c.count[i] > 0) {
+                append(",\"minValue\":");
+                appendDouble(c.minValue[i]);
+                append(",\"meanValue\":");
+                appendDouble(c.meanValue[i]);
+                append(",\"maxValue\":");
+                appendDouble(c.maxValue[i]);
+                append('}');
+            } else {
+                append(",\"minValue\":null,\"meanValue\":null,\"maxValue\":null}");
+            }
+        }
+    }
+
+    private void append(final char c) throws IOException {
+        if (position == chars.length) {
+            flushBuffer(false);
+        }
+        chars[position++] = c;
+    }
+
+    private void append(final String s) throws IOException {
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            append(s.charAt(i));
+        }
+    }
+
+    private void appendString(final String s) throws IOException {
+        append('"');
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                append('\\');
+                append(c);
+            } else if (c < 0x20) {
+                append("\\u00");
+                append(HEX_DIGITS[c >> 4]);
+                append(HEX_DIGITS[c & 0xF]);
+            } else {
+                append(c);
+            }
+        }
+        append('"');
+    }
+
+    private void appendLong(final long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            append(Long.toString(value));
+            return;
+        }
+
+        long v = Math.abs(value);
+        int i = digits.length;
+        do {
+            digits[--i] = (char) ('0' + v % 10);
+            v /= 10;
+        } while (v != 0);
+        if (value < 0) {
+            digits[--i] = '-';
+        }
+        for (; i < digits.length; i++) {
+            append(digits[i]);
+        }
+    }
+
+    private void appendDouble(final double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            append("null");
+            return;
+        }
+
+        final double scaled = Math.abs(value) * fractionScale;
+        if (scaled >= MAX_EXACT_LONG) {
+            append(Double.toString(value));
+            return;
+        }
+
+        long v = Math.round(scaled);
+        int i = digits.length;
+        int fraction = fractionDigits;
+        // skip trailing zeros of the fraction, but keep at least one digit after the decimal point
+        while (fraction > 1 && v % 10 == 0) {
+            v /= 10;
+            fraction--;
+        }
+        if (fraction == 0) {
+            digits[--i] = '0';
+        }
+        for (; fraction > 0; fraction--) {
+            digits[--i] = (char) ('0' + v % 10);
+            v /= 10;
+        }
+        digits[--i] = '.';
+        do {
+            digits[--i] = (char) ('0' + v % 10);
+            v /= 10;
+        } while (v != 0);
+        if (value < 0 && !isZero(i)) {
+            digits[--i] = '-';
+        }
+        for (; i < digits.length; i++) {
+            append(digits[i]);
+        }
+    }
+
+    private boolean isZero(final int from) {
+        for (int i = from; i < digits.length; i++) {
+            if (digits[i] != '0' && digits[i] != '.') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void flushBuffer(final boolean complete) throws IOException {
+        if (position == 0) {
+            return;
+        }
+
+        if (stream != null) {
+            // don't split surrogate pairs across buffer boundaries
+            final int keep = !complete && Character.isHighSurrogate(chars[position - 1]) ? 1 : 0;
+            position -= keep;
+            stream.write(bytes, 0, encodeUtf8());
+            if (keep > 0) {
+                chars[0] = chars[position];
+            }
+            position = keep;
+            return;
+        } else if (appendable instanceof Writer) {
+            ((Writer) appendable).write(chars, 0, position);
+        } else if (appendable instanceof StringBuilder) {
+            ((StringBuilder) appendable).append(chars, 0, position);
+        } else {
+            for (int i = 0; i < position; i++) {
+                appendable.append(chars[i]);
+            }
+        }
+        position = 0;
+    }
+
+    private int encodeUtf8() {
+        int length = 0;
+        for (int i = 0; i < position; i++) {
+            final char c = chars[i];
+            if (c < 0x80) {
+                bytes[length++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[length++] = (byte) (0xC0 | (c >> 6));
+                bytes[length++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < position && Character.isLowSurrogate(chars[i + 1])) {
+                final int cp = Character.toCodePoint(c, chars[++i]);
+                bytes[length++] = (byte) (0xF0 | (cp >> 18));
+                bytes[length++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                bytes[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                bytes[length++] = (byte) (0x80 | (cp & 0x3F));
+            } else {
+                bytes[length++] = (byte) (0xE0 | (c >> 12));
+                bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[length++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,75 @@
+package net.e175.klaus.timings;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts buckets and estimated bytes allocated by a number of RRDs. Updated
+ * only when memory is actually allocated or released, i.e. rarely compared to
+ * recording.
+ *
+ * @ThreadSafe
+ */
+final class FootprintCounter {
+    /*
+     * Estimated object sizes for a 64 bit HotSpot JVM with compressed oops.
+     */
+    static final int OBJECT_HEADER_BYTES = 12;
+    static final int ARRAY_HEADER_BYTES = 16;
+    static final int REFERENCE_BYTES = 4;
+
+    /**
+     * Counter for RRDs that have been removed from their recorder, ignoring
+     * all updates.
+     */
+    static final FootprintCounter DETACHED = new FootprintCounter(false);
+
+    private final boolean counting;
+    private final AtomicLong buckets = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    FootprintCounter() {
+        this(true);
+    }
+
+    private FootprintCounter(final boolean counting) {
+        this.counting = counting;
+    }
+
+    void add(final long bucketDelta, final long byteDelta) {
+        if (!counting) {
+            return;
+        }
+        if (bucketDelta != 0) {
+            buckets.addAndGet(bucketDelta);
+        }
+        if (byteDelta != 0) {
+            bytes.addAndGet(byteDelta);
+        }
+    }
+
+    long getBuckets() {
+        return buckets.get();
+    }
+
+    long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return Estimated size of an array, rounded up to 8 bytes.
+     */
+    static long arrayBytes(final int length, final int elementBytes) {
+        return align(ARRAY_HEADER_BYTES + (long) length * elementBytes);
+    }
+
+    /**
+     * @return Estimated size of a String, including its character array.
+     */
+    static long stringBytes(final String s) {
+        return align(OBJECT_HEADER_BYTES + REFERENCE_BYTES + 8) + arrayBytes(s == null ? 0 : s.length(), 2);
+    }
+
+    static long align(final long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+}
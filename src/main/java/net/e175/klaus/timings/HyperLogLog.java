@@ -0,0 +1,136 @@
+package net.e175.klaus.timings;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * HyperLogLog estimates the number of distinct keys added to it in fixed
+ * memory: 2^precision bytes. The relative standard error of the estimate is
+ * about 1.04 / sqrt(2^precision), e.g. 1.6% for precision 12. Instances with
+ * the same precision can be merged losslessly, so the distinct count of a
+ * union (e.g. several buckets or names) can be computed from the individual
+ * sketches.
+ * <p>
+ * It has no synchronization whatsoever.
+ *
+ * @NotThreadSafe
+ */
+final class HyperLogLog {
+    static final int MIN_PRECISION = 4;
+    static final int MAX_PRECISION = 16;
+
+    private final int precision;
+    private final byte[] registers;
+
+    HyperLogLog(final int precision) {
+        assert precision >= MIN_PRECISION && precision <= MAX_PRECISION;
+
+        this.precision = precision;
+        registers = new byte[1 << precision];
+    }
+
+    void addKey(final long key) {
+        final long hash = mix(key);
+        final int index = (int) (hash >>> (64 - precision));
+        // the sentinel bit limits the rank to 64 - precision + 1
+        final long remaining = (hash << precision) | (1L << (precision - 1));
+        final byte rank = (byte) (Long.numberOfLeadingZeros(remaining) + 1);
+        if (rank > registers[index]) {
+            registers[index] = rank;
+        }
+    }
+
+    void merge(final HyperLogLog other) {
+        assert other.precision == precision;
+
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    void clear() {
+        Arrays.fill(registers, (byte) 0);
+    }
+
+    HyperLogLog copy() {
+        final HyperLogLog copy = new HyperLogLog(precision);
+        System.arraycopy(registers, 0, copy.registers, 0, registers.length);
+        return copy;
+    }
+
+    /**
+     * Write the registers (2^precision bytes), e.g. for a checkpoint.
+     */
+    void writeTo(final DataOutput out) throws IOException {
+        out.write(registers);
+    }
+
+    /**
+     * Read a sketch written by {@link #writeTo(DataOutput)}.
+     */
+    static HyperLogLog readFrom(final ByteBuffer source, final int precision) {
+        final HyperLogLog sketch = new HyperLogLog(precision);
+        source.get(sketch.registers);
+        return sketch;
+    }
+
+    int getPrecision() {
+        return precision;
+    }
+
+    long getEstimatedBytes() {
+        return FootprintCounter.align(FootprintCounter.OBJECT_HEADER_BYTES + 4 + FootprintCounter.REFERENCE_BYTES)
+                + FootprintCounter.arrayBytes(registers.length, 1);
+    }
+
+    long estimate() {
+        final int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (final byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+
+        final double estimate = alpha(m) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            // small range correction: linear counting
+            return Math.round(m * Math.log((double) m / zeros));
+        }
+        return Math.round(estimate);
+    }
+
+    private static double alpha(final int m) {
+        switch (m) {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / (1 + 1.079 / m);
+        }
+    }
+
+    /**
+     * MurmurHash3 64 bit finalizer, so that sequential keys are spread evenly.
+     * The finalizer maps 0 to 0, which would always hit register 0 with the
+     * maximum rank, so the key is offset by the golden ratio constant first.
+     */
+    static long mix(final long key) {
+        long h = key + 0x9e3779b97f4a7c15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
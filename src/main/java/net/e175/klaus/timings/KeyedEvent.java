@@ -0,0 +1,19 @@
+package net.e175.klaus.timings;
+
+/**
+ * A KeyedEvent is an Event that additionally identifies "who" or "what" it
+ * was about, e.g. a user or session, so that distinct keys can be counted.
+ *
+ * @see RrdEventRecorder#getDistinctCount(String)
+ */
+public interface KeyedEvent extends Event {
+
+    /**
+     * Key to be counted as distinct. Keys need not be well distributed (e.g.
+     * user IDs 1, 2, 3... are fine), as they are hashed before use. Larger
+     * identifiers can be reduced to a long using any decent 64 bit hash
+     * function.
+     */
+    long getDistinctKey();
+
+}
@@ -22,7 +22,19 @@ final class MutableBucket implements EventBucket {
     private double meanValue = 0;
     private double maxValue = 0;
 
+    /**
+     * Version of the last modification, maintained by the owning RRD.
+     */
+    long version;
+
     MutableBucket(final long intervalStart, final long intervalEnd, final Event event) {
+        reset(intervalStart, intervalEnd, event);
+    }
+
+    /**
+     * Reuse this bucket for a new interval, as if it had been newly created.
+     */
+    void reset(final long intervalStart, final long intervalEnd, final Event event) {
         setInterval(intervalStart, intervalEnd);
 
         if (event != null) {
@@ -30,6 +42,11 @@ final class MutableBucket implements EventBucket {
             maxValue = event.getValue();
             minValue = maxValue;
             meanValue = maxValue;
+        } else {
+            count = 0;
+            minValue = 0;
+            meanValue = 0;
+            maxValue = 0;
         }
     }
 
@@ -39,6 +56,18 @@ final class MutableBucket implements EventBucket {
         this.intervalEnd = intervalEnd;
     }
 
+    /**
+     * Overwrite this bucket's contents, e.g. to describe a number of events
+     * estimated elsewhere.
+     */
+    void setValues(final long count, final double minValue, final double meanValue, final double maxValue) {
+        assert count >= 0;
+        this.count = count;
+        this.minValue = minValue;
+        this.meanValue = meanValue;
+        this.maxValue = maxValue;
+    }
+
     void addEvent(final Event event) {
         if (event == null) {
             return;
@@ -56,6 +85,29 @@ final class MutableBucket implements EventBucket {
         meanValue = meanValue + (value - meanValue) / count;
     }
 
+    /**
+     * Merge another bucket's contents into this one. The other bucket's interval
+     * is not checked.
+     */
+    void addBucket(final EventBucket bucket) {
+        if (bucket == null || bucket.isEmpty()) {
+            return;
+        }
+
+        if (count == 0) {
+            count = bucket.getCount();
+            minValue = bucket.getMinValue();
+            meanValue = bucket.getMeanValue();
+            maxValue = bucket.getMaxValue();
+            return;
+        }
+
+        count += bucket.getCount();
+        minValue = Math.min(minValue, bucket.getMinValue());
+        maxValue = Math.max(maxValue, bucket.getMaxValue());
+        meanValue = meanValue + (bucket.getMeanValue() - meanValue) * bucket.getCount() / count;
+    }
+
     @Override
     public long getIntervalStart() {
         return intervalStart;
@@ -0,0 +1,45 @@
+package net.e175.klaus.timings;
+
+/**
+ * Mutable implementation of Event, for reuse where allocating an Event per
+ * recording would be too expensive.
+ * <p>
+ * It has no synchronization whatsoever. The recorders in this package don't
+ * keep references to Events once record() has returned, so an instance may
+ * be reused from then on.
+ *
+ * @NotThreadSafe
+ */
+final class MutableEvent implements Event {
+
+    private long triggerTime;
+    private String name;
+    private double value;
+
+    MutableEvent set(final String name, final long triggerTime, final double value) {
+        this.name = name;
+        this.triggerTime = triggerTime;
+        this.value = value;
+        return this;
+    }
+
+    @Override
+    public long getTriggerTime() {
+        return triggerTime;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public double getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "MutableEvent [triggerTime=" + triggerTime + ", name=" + name + ", value=" + value + "]";
+    }
+}
@@ -1,7 +1,9 @@
 package net.e175.klaus.timings;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * RRD implements a fixed-size "round-robin database" (or circular buffer) of EventBuckets.
@@ -12,51 +14,415 @@ final class RRD {
     /**
      * Keeps all shared mutable data. Use synchronized(instance) for single and
      * composite operations.
+     * <p>
+     * Bucket objects are reused when their slot is taken over by a newer
+     * interval; chunks whose buckets have all dropped out of the window are
+     * released whenever a new newest bucket is started. If compression is
+     * enabled, chunks whose buckets are all more than CHUNK_SIZE intervals
+     * older than the newest bucket are compressed at that point as well.
+     * Writing to a compressed chunk (e.g. for late Events) decompresses it;
+     * reading decodes it into a single reused chunk of bucket objects.
      */
     private static final class RRDStorage {
-        private final MutableBucket[] buckets;
+        /**
+         * Buckets, split into chunks of CHUNK_SIZE which are only allocated
+         * when written to, so names recorded in short bursts within a long
+         * window hold only a few chunks.
+         */
+        private final MutableBucket[][] bucketChunks;
+        /**
+         * Newest interval start written to each chunk, to find chunks that
+         * have completely dropped out of the window.
+         */
+        private final long[] newestIntervalStartInChunk;
+        /**
+         * Chunks compressed by {@link BucketChunkCodec} (where bucketChunks
+         * holds null), or null if compression is disabled.
+         */
+        private final long[][] compressedChunks;
+        private final int numberOfBuckets;
         private final long bucketWidthInMilliseconds;
+        private final int indexMask;
+        /**
+         * Distinct key sketches per bucket (created on demand), or null if
+         * distinct counting is disabled.
+         */
+        private final HyperLogLog[] distinctKeys;
+        private final int distinctCountPrecision;
+        /**
+         * Replaced by {@link FootprintCounter#DETACHED} when the RRD is
+         * removed from its recorder.
+         */
+        private FootprintCounter footprint;
+        private int allocatedBuckets;
+        private long allocatedBytes;
+        /**
+         * The compressed chunk most recently decoded for reading, and the
+         * bucket objects reused for that.
+         */
+        private int decodedChunkIndex = -1;
+        private MutableBucket[] decodedChunk;
+        private MutableBucket[] decodedPool;
+        /**
+         * Running aggregate of all buckets within the window except the newest
+         * one, updated on rollovers and late Events only, so summaries of the
+         * whole window need no walk over the buckets. Min and max can't be
+         * taken back when a bucket drops out of the window, so if it held
+         * either, the aggregate is marked stale and recomputed on the next
+         * query. The same happens after numberOfBuckets rollovers, so rounding
+         * errors of the sum don't pile up.
+         */
+        private long olderCount;
+        private double olderSum;
+        private double olderMin;
+        private double olderMax;
+        private boolean olderAggregateStale;
+        private int rolloversSinceRecompute;
 
         private int newestBucketIndex = -1;
+        private MutableBucket newestBucket;
+        private long newestIntervalStart = Long.MAX_VALUE;
+        private long newestIntervalEnd = Long.MIN_VALUE;
+        private long version = -1;
 
-        private RRDStorage(final int numberOfBuckets, final long bucketWidthInMilliseconds) {
-            buckets = new MutableBucket[numberOfBuckets];
+        private RRDStorage(final int numberOfBuckets, final long bucketWidthInMilliseconds,
+                           final int distinctCountPrecision, final FootprintCounter footprint,
+                           final boolean compressOlderBuckets) {
+            final int numberOfChunks = (numberOfBuckets + CHUNK_SIZE - 1) >>> CHUNK_SHIFT;
+            bucketChunks = new MutableBucket[numberOfChunks][];
+            newestIntervalStartInChunk = new long[numberOfChunks];
+            compressedChunks = compressOlderBuckets ? new long[numberOfChunks][] : null;
+            this.numberOfBuckets = numberOfBuckets;
             this.bucketWidthInMilliseconds = bucketWidthInMilliseconds;
+            indexMask = indexMaskFor(numberOfBuckets);
+            distinctKeys = distinctCountPrecision > 0 ? new HyperLogLog[numberOfBuckets] : null;
+            this.distinctCountPrecision = distinctCountPrecision;
+            this.footprint = footprint;
         }
 
-        private EventBucket updateNewestBucketIndexReturnPreviousBucket(final int targetBucket) {
-            EventBucket oldBucket = null;
-            if (newestBucketIndex < 0
-                    || buckets[targetBucket].getIntervalStart() > buckets[newestBucketIndex].getIntervalStart()) {
+        private void account(final int bucketDelta, final long byteDelta) {
+            allocatedBuckets += bucketDelta;
+            allocatedBytes += byteDelta;
+            footprint.add(bucketDelta, byteDelta);
+        }
+
+        /**
+         * @return The bucket in the given slot for modification, or null.
+         */
+        private MutableBucket bucket(final int realIndex) {
+            final int chunkIndex = realIndex >>> CHUNK_SHIFT;
+            MutableBucket[] chunk = bucketChunks[chunkIndex];
+            if (chunk == null && compressedChunks != null && compressedChunks[chunkIndex] != null) {
+                chunk = decompress(chunkIndex);
+            }
+            return chunk != null ? chunk[realIndex & CHUNK_MASK] : null;
+        }
+
+        /**
+         * @return The bucket in the given slot for reading only, or null. If
+         * its chunk is compressed, the bucket is only valid until another
+         * compressed chunk is read.
+         */
+        private MutableBucket readBucket(final int realIndex) {
+            final int chunkIndex = realIndex >>> CHUNK_SHIFT;
+            final MutableBucket[] chunk = bucketChunks[chunkIndex];
+            if (chunk != null) {
+                return chunk[realIndex & CHUNK_MASK];
+            }
+            if (compressedChunks == null || compressedChunks[chunkIndex] == null) {
+                return null;
+            }
+
+            if (decodedChunkIndex != chunkIndex) {
+                if (decodedPool == null) {
+                    decodedPool = new MutableBucket[CHUNK_SIZE];
+                    decodedChunk = new MutableBucket[CHUNK_SIZE];
+                    for (int i = 0; i < CHUNK_SIZE; i++) {
+                        decodedPool[i] = new MutableBucket(0, 1, null);
+                    }
+                    account(0, 2 * FootprintCounter.arrayBytes(CHUNK_SIZE, FootprintCounter.REFERENCE_BYTES)
+                            + CHUNK_SIZE * MUTABLE_BUCKET_BYTES);
+                }
+                final MutableBucket[] target = chunkLength(chunkIndex) == CHUNK_SIZE ? decodedChunk
+                        : new MutableBucket[chunkLength(chunkIndex)];
+                BucketChunkCodec.decode(compressedChunks[chunkIndex], bucketWidthInMilliseconds, decodedPool,
+                        target);
+                System.arraycopy(target, 0, decodedChunk, 0, target.length);
+                decodedChunkIndex = chunkIndex;
+            }
+            return decodedChunk[realIndex & CHUNK_MASK];
+        }
+
+        private int chunkLength(final int chunkIndex) {
+            return Math.min(CHUNK_SIZE, numberOfBuckets - (chunkIndex << CHUNK_SHIFT));
+        }
+
+        private MutableBucket[] decompress(final int chunkIndex) {
+            final long[] compressed = compressedChunks[chunkIndex];
+            final MutableBucket[] chunk = new MutableBucket[chunkLength(chunkIndex)];
+            final int used = BucketChunkCodec.decode(compressed, bucketWidthInMilliseconds, null, chunk);
+            compressedChunks[chunkIndex] = null;
+            bucketChunks[chunkIndex] = chunk;
+            if (decodedChunkIndex == chunkIndex) {
+                decodedChunkIndex = -1;
+            }
+            account(used, FootprintCounter.arrayBytes(chunk.length, FootprintCounter.REFERENCE_BYTES)
+                    + used * MUTABLE_BUCKET_BYTES - FootprintCounter.arrayBytes(compressed.length, 8));
+            return chunk;
+        }
+
+        private void compress(final int chunkIndex, final long earliestTime) {
+            final MutableBucket[] chunk = bucketChunks[chunkIndex];
+            final long[] compressed = BucketChunkCodec.encode(chunk, earliestTime, bucketWidthInMilliseconds);
+            int released = 0;
+            for (final MutableBucket bucket : chunk) {
+                if (bucket != null) {
+                    released++;
+                }
+            }
+            bucketChunks[chunkIndex] = null;
+            compressedChunks[chunkIndex] = compressed;
+            account(-released, FootprintCounter.arrayBytes(compressed.length, 8)
+                    - FootprintCounter.arrayBytes(chunk.length, FootprintCounter.REFERENCE_BYTES)
+                    - released * MUTABLE_BUCKET_BYTES);
+        }
+
+        /**
+         * Start a new interval in the given slot, reusing the slot's bucket
+         * object if there is one.
+         */
+        private MutableBucket resetBucket(final int targetBucket, final long intervalStart, final Event event,
+                                          final EventBucket partial) {
+            final int chunkIndex = targetBucket >>> CHUNK_SHIFT;
+            MutableBucket[] chunk = bucketChunks[chunkIndex];
+            if (chunk == null && compressedChunks != null && compressedChunks[chunkIndex] != null) {
+                if (newestIntervalStartInChunk[chunkIndex] <= intervalStart
+                        - numberOfBuckets * bucketWidthInMilliseconds) {
+                    // all of its buckets are out of the window from now on
+                    releaseCompressedChunk(chunkIndex);
+                } else {
+                    chunk = decompress(chunkIndex);
+                }
+            }
+            if (chunk == null) {
+                final int chunkSize = chunkLength(chunkIndex);
+                chunk = new MutableBucket[chunkSize];
+                account(0, FootprintCounter.arrayBytes(chunkSize, FootprintCounter.REFERENCE_BYTES));
+                bucketChunks[chunkIndex] = chunk;
+                newestIntervalStartInChunk[chunkIndex] = intervalStart;
+            }
+
+            final long intervalEnd = intervalStart + bucketWidthInMilliseconds;
+            MutableBucket bucket = chunk[targetBucket & CHUNK_MASK];
+            if (bucket == null) {
+                bucket = new MutableBucket(intervalStart, intervalEnd, event);
+                account(1, MUTABLE_BUCKET_BYTES);
+                chunk[targetBucket & CHUNK_MASK] = bucket;
+            } else {
+                bucket.reset(intervalStart, intervalEnd, event);
+            }
+            bucket.addBucket(partial);
+
+            if (intervalStart > newestIntervalStartInChunk[chunkIndex]) {
+                newestIntervalStartInChunk[chunkIndex] = intervalStart;
+            }
+            if (distinctKeys != null && distinctKeys[targetBucket] != null) {
+                distinctKeys[targetBucket].clear();
+            }
+            return bucket;
+        }
+
+        private void releaseChunksBefore(final long earliestTime) {
+            for (int c = 0; c < bucketChunks.length; c++) {
+                if (compressedChunks != null && compressedChunks[c] != null
+                        && newestIntervalStartInChunk[c] < earliestTime) {
+                    releaseCompressedChunk(c);
+                    continue;
+                }
+
+                final MutableBucket[] chunk = bucketChunks[c];
+                if (chunk != null && newestIntervalStartInChunk[c] < earliestTime) {
+                    bucketChunks[c] = null;
+                    int released = 0;
+                    for (final MutableBucket bucket : chunk) {
+                        if (bucket != null) {
+                            released++;
+                        }
+                    }
+                    account(-released, -FootprintCounter.arrayBytes(chunk.length, FootprintCounter.REFERENCE_BYTES)
+                            - released * MUTABLE_BUCKET_BYTES);
+                    releaseDistinctKeys(c);
+                }
+            }
+        }
+
+        private void releaseCompressedChunk(final int chunkIndex) {
+            account(0, -FootprintCounter.arrayBytes(compressedChunks[chunkIndex].length, 8));
+            compressedChunks[chunkIndex] = null;
+            if (decodedChunkIndex == chunkIndex) {
+                decodedChunkIndex = -1;
+            }
+            releaseDistinctKeys(chunkIndex);
+        }
+
+        private void releaseDistinctKeys(final int chunkIndex) {
+            if (distinctKeys != null) {
+                final int from = chunkIndex << CHUNK_SHIFT;
+                for (int i = from; i < from + chunkLength(chunkIndex); i++) {
+                    if (distinctKeys[i] != null) {
+                        account(0, -distinctKeys[i].getEstimatedBytes());
+                        distinctKeys[i] = null;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Compress all chunks whose buckets are more than CHUNK_SIZE
+         * intervals older than the newest one, but still within the window.
+         */
+        private void compressChunksBefore(final long threshold, final long earliestTime) {
+            for (int c = 0; c < bucketChunks.length; c++) {
+                if (bucketChunks[c] != null && newestIntervalStartInChunk[c] < threshold
+                        && newestIntervalStartInChunk[c] >= earliestTime) {
+                    compress(c, earliestTime);
+                }
+            }
+        }
+
+        private void addToOlderAggregate(final long count, final double sum, final double min, final double max) {
+            if (count == 0) {
+                return;
+            }
+            if (olderCount == 0) {
+                olderMin = min;
+                olderMax = max;
+            } else {
+                olderMin = Math.min(olderMin, min);
+                olderMax = Math.max(olderMax, max);
+            }
+            olderCount += count;
+            olderSum += sum;
+        }
+
+        private void addToOlderAggregate(final EventBucket bucket) {
+            addToOlderAggregate(bucket.getCount(), bucket.getMeanValue() * bucket.getCount(),
+                    bucket.getMinValue(), bucket.getMaxValue());
+        }
+
+        private void removeFromOlderAggregate(final EventBucket bucket) {
+            if (bucket.isEmpty()) {
+                return;
+            }
+            olderCount -= bucket.getCount();
+            if (olderCount == 0) {
+                clearOlderAggregate();
+                return;
+            }
+            olderSum -= bucket.getMeanValue() * bucket.getCount();
+            if (bucket.getMinValue() <= olderMin || bucket.getMaxValue() >= olderMax) {
+                olderAggregateStale = true;
+            }
+        }
 
-                if (newestBucketIndex >= 0) {
-                    oldBucket = new ImmutableBucket(buckets[newestBucketIndex]);
+        private void clearOlderAggregate() {
+            olderCount = 0;
+            olderSum = 0;
+            olderMin = 0;
+            olderMax = 0;
+        }
+
+        /**
+         * Recompute the older buckets' aggregate from scratch.
+         */
+        private void recomputeOlderAggregate() {
+            clearOlderAggregate();
+            final long earliestTime = getEarliestTimeForCurrentBuckets();
+            for (int i = 0; i < numberOfBuckets - 1; i++) {
+                final EventBucket bucket = at(i);
+                if (bucket != null && bucket.getIntervalStart() >= earliestTime) {
+                    addToOlderAggregate(bucket);
                 }
+            }
+            olderAggregateStale = false;
+            rolloversSinceRecompute = 0;
+        }
 
-                newestBucketIndex = targetBucket;
+        private HyperLogLog distinctKeysFor(final int targetBucket) {
+            HyperLogLog sketch = distinctKeys[targetBucket];
+            if (sketch == null) {
+                sketch = new HyperLogLog(distinctCountPrecision);
+                account(0, sketch.getEstimatedBytes());
+                distinctKeys[targetBucket] = sketch;
+            }
+            return sketch;
+        }
+
+        private void addDistinctKey(final int targetBucket, final Event e) {
+            if (distinctKeys != null && e instanceof KeyedEvent) {
+                distinctKeysFor(targetBucket).addKey(((KeyedEvent) e).getDistinctKey());
+            }
+        }
+
+        private HyperLogLog currentDistinctKeys(final int realIndex, final long earliestTime) {
+            final EventBucket bucket = readBucket(realIndex);
+            if (distinctKeys == null || bucket == null || bucket.getIntervalStart() < earliestTime) {
+                return null;
+            }
+            return distinctKeys[realIndex];
+        }
+
+        private void markModified(final MutableBucket bucket, final long currentVersion) {
+            version = currentVersion;
+            bucket.version = currentVersion;
+        }
+
+        private boolean isInNewestBucket(final long eventTime) {
+            return eventTime >= newestIntervalStart && eventTime < newestIntervalEnd;
+        }
+
+        private boolean isNewerThanNewestBucket(final long eventTime) {
+            return eventTime >= newestIntervalEnd;
+        }
+
+        private EventBucket copyOfNewestBucket() {
+            return newestBucket != null ? new ImmutableBucket(newestBucket) : null;
+        }
+
+        private void setNewestBucketIndex(final int targetBucket) {
+            newestBucketIndex = targetBucket;
+            newestBucket = bucket(targetBucket);
+            newestIntervalStart = newestBucket.getIntervalStart();
+            newestIntervalEnd = newestBucket.getIntervalEnd();
+            if (bucketChunks.length > 1) {
+                final long earliestTime = getEarliestTimeForCurrentBuckets();
+                releaseChunksBefore(earliestTime);
+                if (compressedChunks != null) {
+                    compressChunksBefore(newestIntervalStart - CHUNK_SIZE * bucketWidthInMilliseconds, earliestTime);
+                }
             }
-            return oldBucket;
         }
 
         private int virtualToRealIndex(final int virtualIndex) {
-            assert virtualIndex >= 0 && virtualIndex < buckets.length;
-            return (newestBucketIndex + 1 + virtualIndex) % buckets.length;
+            assert virtualIndex >= 0 && virtualIndex < numberOfBuckets;
+            final int index = newestBucketIndex + 1 + virtualIndex;
+            return indexMask >= 0 ? index & indexMask : index % numberOfBuckets;
         }
 
         private EventBucket at(final int virtualIndex) {
-            return buckets[virtualToRealIndex(virtualIndex)];
+            return readBucket(virtualToRealIndex(virtualIndex));
         }
 
         private long getLatestTimeForCurrentBuckets() {
             assert newestBucketIndex >= 0;
 
-            return buckets[newestBucketIndex].getIntervalEnd();
+            return newestIntervalEnd;
         }
 
         private long getEarliestTimeForCurrentBuckets() {
             assert newestBucketIndex >= 0;
 
-            return getLatestTimeForCurrentBuckets() - bucketWidthInMilliseconds * buckets.length;
+            return getLatestTimeForCurrentBuckets() - bucketWidthInMilliseconds * numberOfBuckets;
         }
 
         private int getVirtualIndexForTime(final long time) {
@@ -85,70 +451,603 @@ final class RRD {
                 return new ImmutableBucket(expectedIntervalStart, expectedIntervalEnd, null);
             }
         }
+
+        private void copyExportableBucketTo(final int virtualIndex, final EventBucketColumns.NameToColumns target,
+                                            final int targetIndex) {
+            final long earliestTime = getEarliestTimeForCurrentBuckets();
+            final EventBucket currentBuck = at(virtualIndex);
+            if (currentBuck != null && currentBuck.getIntervalStart() >= earliestTime) {
+                target.set(targetIndex, currentBuck.getIntervalStart(), currentBuck);
+            } else {
+                target.set(targetIndex, earliestTime + virtualIndex * bucketWidthInMilliseconds, null);
+            }
+        }
     }
 
     private final RRDStorage data;
     private final int numberOfBuckets;
     private final long bucketWidthInMilliseconds;
+    /**
+     * Bucket intervals start at multiples of bucketWidthInMilliseconds plus
+     * this offset.
+     */
+    private final long alignmentOffset;
     private final String name;
     private final EventBucketListener listener;
+    private final AtomicLong versionClock;
+    private final SelfInstrumentation instrumentation;
 
-    RRD(final int numberOfBuckets, final long bucketWidthInMilliseconds, final String name) {
-        assert numberOfBuckets > 0 && bucketWidthInMilliseconds > 0;
+    private static final RRD[] NO_GROUPS = new RRD[0];
 
-        this.numberOfBuckets = numberOfBuckets;
-        this.bucketWidthInMilliseconds = bucketWidthInMilliseconds;
-        this.name = name;
-        listener = null;
+    /**
+     * Estimated sizes of a MutableBucket and of an RRD with its RRDStorage
+     * and map entry, excluding arrays; see {@link FootprintCounter}.
+     */
+    static final int MUTABLE_BUCKET_BYTES = 72;
+    private static final int RRD_BYTES = 48 + 224 + 32;
+
+    static final int CHUNK_SHIFT = 6;
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * Group RRDs receiving all data recorded here, guarded by data.
+     */
+    private RRD[] groups = NO_GROUPS;
+
+    /**
+     * Settings of an RRD, and the objects it shares with other RRDs of the same
+     * recorder. Setters return this for chaining.
+     *
+     * @NotThreadSafe
+     */
+    static final class Options {
+        private final int numberOfBuckets;
+        private final long bucketWidthInMilliseconds;
+        private long alignmentOffset;
+        private EventBucketListener listener;
+        private AtomicLong versionClock = new AtomicLong();
+        private int distinctCountPrecision;
+        private FootprintCounter footprint = new FootprintCounter();
+        private SelfInstrumentation instrumentation;
+        private boolean compressOlderBuckets;
+
+        Options(final int numberOfBuckets, final long bucketWidthInMilliseconds) {
+            assert numberOfBuckets > 0 && bucketWidthInMilliseconds > 0;
+            this.numberOfBuckets = numberOfBuckets;
+            this.bucketWidthInMilliseconds = bucketWidthInMilliseconds;
+        }
+
+        /**
+         * @param alignmentOffset Offset of bucket intervals from multiples of bucketWidthInMilliseconds,
+         *                        between 0 and bucketWidthInMilliseconds - 1.
+         */
+        Options alignmentOffset(final long alignmentOffset) {
+            assert alignmentOffset >= 0 && alignmentOffset < bucketWidthInMilliseconds;
+            this.alignmentOffset = alignmentOffset;
+            return this;
+        }
 
-        data = new RRDStorage(numberOfBuckets, bucketWidthInMilliseconds);
+        /**
+         * @param listener See {@link EventBucketListener}. Ignored if null.
+         */
+        Options listener(final EventBucketListener listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        /**
+         * @param versionClock Source of the version stamped onto modified buckets, see
+         *                     {@link #collectBucketsModifiedSince(long, List)}. May be shared between RRDs.
+         */
+        Options versionClock(final AtomicLong versionClock) {
+            this.versionClock = versionClock;
+            return this;
+        }
+
+        /**
+         * @param distinctCountPrecision Precision of the per-bucket sketches counting the distinct keys of
+         *                               {@link KeyedEvent}s, or 0 to disable distinct counting.
+         */
+        Options distinctCountPrecision(final int distinctCountPrecision) {
+            assert distinctCountPrecision == 0 || (distinctCountPrecision >= HyperLogLog.MIN_PRECISION
+                    && distinctCountPrecision <= HyperLogLog.MAX_PRECISION);
+            this.distinctCountPrecision = distinctCountPrecision;
+            return this;
+        }
+
+        /**
+         * @param footprint Counter to report allocated buckets and bytes to. May be shared between RRDs.
+         */
+        Options footprint(final FootprintCounter footprint) {
+            this.footprint = footprint;
+            return this;
+        }
+
+        /**
+         * @param instrumentation Receives metrics about this RRD's own overhead. Ignored if null.
+         */
+        Options instrumentation(final SelfInstrumentation instrumentation) {
+            this.instrumentation = instrumentation;
+            return this;
+        }
+
+        /**
+         * @param compressOlderBuckets Whether to compress chunks of buckets well behind the newest one.
+         */
+        Options compressOlderBuckets(final boolean compressOlderBuckets) {
+            this.compressOlderBuckets = compressOlderBuckets;
+            return this;
+        }
+    }
+
+    RRD(final int numberOfBuckets, final long bucketWidthInMilliseconds, final String name) {
+        this(name, new Options(numberOfBuckets, bucketWidthInMilliseconds));
     }
 
     RRD(final int numberOfBuckets, final long bucketWidthInMilliseconds, final String name,
         final EventBucketListener listener) {
-        assert numberOfBuckets > 0 && bucketWidthInMilliseconds > 0;
+        this(name, new Options(numberOfBuckets, bucketWidthInMilliseconds).listener(listener));
+    }
 
-        this.numberOfBuckets = numberOfBuckets;
-        this.bucketWidthInMilliseconds = bucketWidthInMilliseconds;
+    RRD(final String name, final Options options) {
+        this.numberOfBuckets = options.numberOfBuckets;
+        this.bucketWidthInMilliseconds = options.bucketWidthInMilliseconds;
+        this.alignmentOffset = options.alignmentOffset;
         this.name = name;
-        this.listener = listener;
+        this.listener = options.listener;
+        this.versionClock = options.versionClock;
+        this.instrumentation = options.instrumentation;
 
-        data = new RRDStorage(numberOfBuckets, bucketWidthInMilliseconds);
+        data = new RRDStorage(numberOfBuckets, bucketWidthInMilliseconds, options.distinctCountPrecision,
+                options.footprint, options.compressOlderBuckets);
     }
 
     void addToBuckets(final Event e) {
-        final long eventTime = e.getTriggerTime();
+        add(e.getTriggerTime(), e, null);
+    }
 
+    /**
+     * Merge a partial bucket (e.g. pre-aggregated elsewhere) into this RRD. Its
+     * interval is expected to be aligned to this RRD's bucket intervals.
+     */
+    void addBucket(final EventBucket partial) {
+        if (!partial.isEmpty()) {
+            // with an alignment offset, the first interval starts before 0
+            add(Math.max(0, partial.getIntervalStart()), null, partial);
+        }
+    }
+
+    /**
+     * Attach a group RRD, which will receive all data recorded here from now on.
+     * Everything recorded so far is merged into the group as well. Attaching the
+     * same group more than once has no effect.
+     * <p>
+     * Locks are always taken in the order member, group; group RRDs must not
+     * have groups themselves.
+     */
+    void attachGroup(final RRD group) {
+        assert group.groups.length == 0;
+
+        synchronized (data) {
+            for (final RRD existing : groups) {
+                if (existing == group) {
+                    return;
+                }
+            }
+
+            if (data.newestBucketIndex >= 0) {
+                final long earliestTime = data.getEarliestTimeForCurrentBuckets();
+                for (int i = 0; i < numberOfBuckets; i++) {
+                    final int realIndex = data.virtualToRealIndex(i);
+                    final EventBucket bucket = data.readBucket(realIndex);
+                    if (bucket != null && bucket.getIntervalStart() >= earliestTime) {
+                        group.addBucket(bucket);
+                        final HyperLogLog sketch = data.currentDistinctKeys(realIndex, earliestTime);
+                        if (sketch != null) {
+                            group.mergeDistinctKeys(bucket.getIntervalStart(), sketch);
+                        }
+                    }
+                }
+            }
+
+            final RRD[] newGroups = Arrays.copyOf(groups, groups.length + 1);
+            newGroups[groups.length] = group;
+            groups = newGroups;
+        }
+    }
+
+    private void add(final long eventTime, final Event e, final EventBucket partial) {
         if (eventTime < 0) {
             throw new IllegalArgumentException(
                     "negative trigger times are not correctly handled by current implementation");
         }
 
-        final int targetBucket = calcTargetBucket(eventTime);
+        final SelfInstrumentation self = instrumentation;
+        final boolean sampled = self != null && self.sample();
+        final long startNanos = sampled ? System.nanoTime() : 0;
 
-        EventBucket finishedBucket;
+        EventBucket finishedBucket = null;
+        boolean tooOld = false;
+        long lockWaitNanos = 0;
+        final long selfTime;
+        final RRD[] currentGroups;
         synchronized (data) {
-            final MutableBucket oldBucket = data.buckets[targetBucket];
-            if (oldBucket != null) {
-                if (tooNewForBucket(eventTime, oldBucket)) {
-                    data.buckets[targetBucket] = bucketFromScratch(e);
-                } else if (tooOldForBucket(eventTime, oldBucket)) {
-                    return;
+            if (sampled) {
+                lockWaitNanos = System.nanoTime() - startNanos;
+            }
+
+            int targetBucket = data.newestBucketIndex;
+            MutableBucket modifiedBucket = data.newestBucket;
+            if (data.isInNewestBucket(eventTime)) {
+                // fast path for the vast majority of events: no index calculations at all
+                addTo(modifiedBucket, e, partial);
+            } else {
+                targetBucket = calcTargetBucket(eventTime);
+                final boolean newerThanNewest = data.isNewerThanNewestBucket(eventTime);
+                if (newerThanNewest) {
+                    finishedBucket = data.copyOfNewestBucket();
+                    advanceOlderAggregate(intervalStartForTriggerTime(eventTime));
+                }
+
+                final MutableBucket oldBucket = data.readBucket(targetBucket);
+                if (oldBucket != null) {
+                    if (tooNewForBucket(eventTime, oldBucket)) {
+                        modifiedBucket = data.resetBucket(targetBucket, intervalStartForTriggerTime(eventTime), e,
+                                partial);
+                    } else if (tooOldForBucket(eventTime, oldBucket)) {
+                        tooOld = true;
+                    } else {
+                        // bucket interval still fits
+                        modifiedBucket = data.bucket(targetBucket);
+                        addTo(modifiedBucket, e, partial);
+                    }
                 } else {
-                    // bucket interval still fits
-                    oldBucket.addEvent(e);
+                    // no bucket yet, create new one
+                    modifiedBucket = data.resetBucket(targetBucket, intervalStartForTriggerTime(eventTime), e,
+                            partial);
+                }
+
+                if (newerThanNewest) {
+                    data.setNewestBucketIndex(targetBucket);
+                } else if (!tooOld && modifiedBucket.getIntervalStart() >= data.getEarliestTimeForCurrentBuckets()) {
+                    // late data for an older bucket within the window
+                    if (e != null) {
+                        data.addToOlderAggregate(1, e.getValue(), e.getValue(), e.getValue());
+                    } else {
+                        data.addToOlderAggregate(partial);
+                    }
+                }
+            }
+            if (!tooOld) {
+                data.addDistinctKey(targetBucket, e);
+                data.markModified(modifiedBucket, versionClock.get());
+            }
+            // late and dropped events are counted where they are noticed
+            selfTime = data.newestIntervalStart;
+            currentGroups = groups;
+        }
+
+        if (sampled) {
+            self.lockWait(selfTime, lockWaitNanos);
+        }
+
+        if (tooOld) {
+            if (self != null) {
+                self.tooOld(selfTime);
+            }
+            return;
+        }
+
+        for (final RRD group : currentGroups) {
+            group.add(eventTime, e, partial);
+        }
+
+        if (finishedBucket != null) {
+            if (self != null) {
+                self.rollover(selfTime);
+            }
+            if (listener != null) {
+                final long listenerStartNanos = self != null ? System.nanoTime() : 0;
+                listener.supersededBucket(name, finishedBucket);
+                if (self != null) {
+                    self.listener(selfTime, System.nanoTime() - listenerStartNanos);
+                }
+            }
+        }
+
+        if (sampled) {
+            self.recordLatency(selfTime, System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Update the aggregate of older buckets before a new newest bucket is
+     * started at newIntervalStart: buckets about to drop out of the window
+     * are removed from it, and the current newest bucket is added. This takes
+     * one step per interval that the window advances.
+     */
+    private void advanceOlderAggregate(final long newIntervalStart) {
+        if (data.newestBucketIndex < 0) {
+            return;
+        }
+        if (++data.rolloversSinceRecompute >= numberOfBuckets) {
+            data.olderAggregateStale = true;
+        }
+        if (data.olderAggregateStale) {
+            return;
+        }
+
+        final long windowWidth = (numberOfBuckets - 1) * bucketWidthInMilliseconds;
+        final long newEarliestStart = newIntervalStart - windowWidth;
+        if (newEarliestStart > data.newestIntervalStart) {
+            // everything drops out of the window
+            data.clearOlderAggregate();
+            return;
+        }
+
+        for (long start = data.newestIntervalStart - windowWidth; start < newEarliestStart;
+             start += bucketWidthInMilliseconds) {
+            final EventBucket leaving = data.readBucket(calcTargetBucket(start));
+            if (leaving != null && leaving.getIntervalStart() == start) {
+                data.removeFromOlderAggregate(leaving);
+            }
+        }
+        data.addToOlderAggregate(data.newestBucket);
+    }
+
+    /**
+     * @return Summary of the whole window: count, min, mean and max of all
+     * data in the current buckets, with the window's interval. Null if
+     * nothing has been recorded yet. Unless a bucket holding the window's min
+     * or max has dropped out since the last call, this takes constant time.
+     */
+    EventBucket getWindowSummary() {
+        synchronized (data) {
+            if (data.newestBucketIndex < 0) {
+                return null;
+            }
+            if (data.olderAggregateStale) {
+                data.recomputeOlderAggregate();
+            }
+
+            final MutableBucket summary = new MutableBucket(data.getEarliestTimeForCurrentBuckets(),
+                    data.getLatestTimeForCurrentBuckets(), null);
+            if (data.olderCount > 0) {
+                summary.setValues(data.olderCount, data.olderMin, data.olderSum / data.olderCount, data.olderMax);
+            }
+            summary.addBucket(data.newestBucket);
+            return new ImmutableBucket(summary);
+        }
+    }
+
+    /**
+     * Copy all buckets (like {@link #getEventBuckets()}) into target and
+     * return copies of their distinct key sketches in the same order, both
+     * under one lock, e.g. for a checkpoint.
+     *
+     * @return Sketches, with null entries for buckets without one, or null if
+     * distinct counting is disabled or nothing has been recorded yet.
+     */
+    HyperLogLog[] snapshot(final List<EventBucket> target) {
+        synchronized (data) {
+            if (data.newestBucketIndex < 0) {
+                return null;
+            }
+
+            final long earliestTime = data.getEarliestTimeForCurrentBuckets();
+            final HyperLogLog[] sketches = data.distinctKeys != null ? new HyperLogLog[numberOfBuckets] : null;
+            for (int i = 0; i < numberOfBuckets; i++) {
+                target.add(data.getExportableBucketFrom(i));
+                if (sketches != null) {
+                    final HyperLogLog sketch = data.currentDistinctKeys(data.virtualToRealIndex(i), earliestTime);
+                    sketches[i] = sketch != null ? sketch.copy() : null;
+                }
+            }
+            return sketches;
+        }
+    }
+
+    /**
+     * Merge buckets (e.g. from a checkpoint) in chronological order into this
+     * RRD, along with their distinct key sketches. Unlike recording, this
+     * doesn't notify the listener or instrumentation. Buckets too old for the
+     * buffer are ignored, as are sketches of a different precision.
+     *
+     * @param sketches Sketches in the same order as buckets, with null entries
+     *                 for buckets without one. May be null.
+     */
+    void restore(final List<? extends EventBucket> buckets, final HyperLogLog[] sketches) {
+        merge(buckets, sketches, false);
+    }
+
+    /**
+     * Overwrite the buckets for the intervals of the given buckets (in
+     * chronological order) with their contents, e.g. with the current state
+     * of another node's buckets. Like {@link #restore(List, HyperLogLog[])},
+     * this doesn't notify the listener or instrumentation. Groups are not
+     * updated, as the previous contents can't be taken out of them.
+     */
+    void replace(final List<? extends EventBucket> buckets) {
+        merge(buckets, null, true);
+    }
+
+    private void merge(final List<? extends EventBucket> buckets, final HyperLogLog[] sketches,
+                       final boolean replace) {
+        final RRD[] currentGroups;
+        synchronized (data) {
+            data.olderAggregateStale = true;
+            for (int i = 0; i < buckets.size(); i++) {
+                final EventBucket bucket = buckets.get(i);
+                final long intervalStart = intervalStartForTriggerTime(bucket.getIntervalStart());
+                if (data.newestBucketIndex >= 0 && intervalStart < data.getEarliestTimeForCurrentBuckets()) {
+                    continue;
+                }
+
+                final int targetBucket = calcTargetBucket(intervalStart);
+                MutableBucket target = data.readBucket(targetBucket);
+                if (target == null || target.getIntervalStart() < intervalStart) {
+                    target = data.resetBucket(targetBucket, intervalStart, null, bucket);
+                } else if (target.getIntervalStart() == intervalStart) {
+                    target = data.bucket(targetBucket);
+                    if (replace) {
+                        target.setValues(bucket.getCount(), bucket.getMinValue(), bucket.getMeanValue(),
+                                bucket.getMaxValue());
+                    } else {
+                        target.addBucket(bucket);
+                    }
+                } else {
+                    continue;
+                }
+                if (data.isNewerThanNewestBucket(intervalStart)) {
+                    data.setNewestBucketIndex(targetBucket);
+                }
+
+                final HyperLogLog sketch = sketches != null ? sketches[i] : null;
+                if (sketch != null && data.distinctKeys != null
+                        && data.distinctCountPrecision == sketch.getPrecision()) {
+                    data.distinctKeysFor(targetBucket).merge(sketch);
+                }
+                data.markModified(target, versionClock.get());
+            }
+            currentGroups = replace ? new RRD[0] : groups;
+        }
+
+        for (final RRD group : currentGroups) {
+            for (int i = 0; i < buckets.size(); i++) {
+                group.addBucket(buckets.get(i));
+                if (sketches != null && sketches[i] != null) {
+                    group.mergeDistinctKeys(buckets.get(i).getIntervalStart(), sketches[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Merge a distinct key sketch into the bucket for the given interval, if
+     * that bucket exists and distinct counting is enabled.
+     */
+    private void mergeDistinctKeys(final long intervalStart, final HyperLogLog sketch) {
+        synchronized (data) {
+            if (data.distinctKeys == null || data.distinctCountPrecision != sketch.getPrecision()) {
+                return;
+            }
+
+            final int targetBucket = calcTargetBucket(intervalStart);
+            final EventBucket bucket = data.readBucket(targetBucket);
+            if (bucket != null && bucket.getIntervalStart() == intervalStart) {
+                data.distinctKeysFor(targetBucket).merge(sketch);
+            }
+        }
+    }
+
+    /**
+     * Merge the distinct key sketches of all current buckets starting within
+     * [fromMilliseconds, untilMilliseconds) into target, which must have the
+     * same precision.
+     */
+    void mergeDistinctKeysInto(final HyperLogLog target, final long fromMilliseconds,
+                               final long untilMilliseconds) {
+        synchronized (data) {
+            if (data.newestBucketIndex < 0 || data.distinctKeys == null) {
+                return;
+            }
+
+            final long earliestTime = data.getEarliestTimeForCurrentBuckets();
+            for (int i = 0; i < numberOfBuckets; i++) {
+                final HyperLogLog sketch = data.currentDistinctKeys(i, earliestTime);
+                if (sketch != null) {
+                    final long intervalStart = data.readBucket(i).getIntervalStart();
+                    if (intervalStart >= fromMilliseconds && intervalStart < untilMilliseconds) {
+                        target.merge(sketch);
+                    }
                 }
-            } else {
-                // no bucket yet, create new one
-                data.buckets[targetBucket] = bucketFromScratch(e);
             }
-            finishedBucket = data.updateNewestBucketIndexReturnPreviousBucket(targetBucket);
         }
+    }
+
+    /**
+     * @return Estimated number of distinct keys per bucket, in the same order
+     * as {@link #getEventBuckets()}.
+     */
+    List<Long> getDistinctCounts() {
+        final List<Long> counts = new ArrayList<>(numberOfBuckets);
 
-        if (finishedBucket != null && listener != null) {
-            listener.supersededBucket(name, finishedBucket);
+        synchronized (data) {
+            if (data.newestBucketIndex < 0) {
+                return counts;
+            }
+
+            final long earliestTime = data.getEarliestTimeForCurrentBuckets();
+            for (int i = 0; i < numberOfBuckets; i++) {
+                final HyperLogLog sketch = data.currentDistinctKeys(data.virtualToRealIndex(i), earliestTime);
+                counts.add(sketch != null ? sketch.estimate() : 0L);
+            }
         }
 
+        return counts;
+    }
+
+    /**
+     * @return Estimated bytes held by this RRD independently of recorded
+     * data, including its name and its entry in the recorder's map. These are
+     * not reported to the FootprintCounter.
+     */
+    long getFixedBytes() {
+        return RRD_BYTES + FootprintCounter.stringBytes(name)
+                + FootprintCounter.arrayBytes(data.bucketChunks.length, FootprintCounter.REFERENCE_BYTES)
+                + FootprintCounter.arrayBytes(data.bucketChunks.length, 8)
+                + (data.distinctKeys != null
+                ? FootprintCounter.arrayBytes(numberOfBuckets, FootprintCounter.REFERENCE_BYTES) : 0)
+                + (data.compressedChunks != null
+                ? FootprintCounter.arrayBytes(data.compressedChunks.length, FootprintCounter.REFERENCE_BYTES) : 0);
+    }
+
+    /**
+     * Stop reporting to the FootprintCounter, taking back everything reported
+     * so far except the fixed bytes. Used when this RRD is removed from its
+     * recorder: threads still holding on to it may keep recording into it
+     * without affecting the recorder's footprint.
+     */
+    void detachFootprint() {
+        synchronized (data) {
+            data.footprint.add(-data.allocatedBuckets, -data.allocatedBytes);
+            data.footprint = FootprintCounter.DETACHED;
+        }
+    }
+
+    /**
+     * @return Estimated bytes held by this RRD, including recorded data.
+     */
+    long getEstimatedBytes() {
+        synchronized (data) {
+            return getFixedBytes() + data.allocatedBytes;
+        }
+    }
+
+    /**
+     * @return Number of bucket objects currently allocated.
+     */
+    int getAllocatedBuckets() {
+        synchronized (data) {
+            return data.allocatedBuckets;
+        }
+    }
+
+    /**
+     * @return Number of bucket slots currently allocated, which may be less
+     * than numberOfBuckets for names recorded only in bursts.
+     */
+    int getAllocatedBucketSlots() {
+        synchronized (data) {
+            int slots = 0;
+            for (final MutableBucket[] chunk : data.bucketChunks) {
+                if (chunk != null) {
+                    slots += chunk.length;
+                }
+            }
+            return slots;
+        }
     }
 
     String getName() {
@@ -195,25 +1094,148 @@ final class RRD {
         return bucketlist;
     }
 
+    /**
+     * Copy all buckets into the given columns, which must have room for at least numberOfBuckets entries.
+     *
+     * @return number of buckets copied: either 0 (if nothing has been recorded yet) or numberOfBuckets.
+     */
+    int copyEventBucketsTo(final EventBucketColumns.NameToColumns target) {
+        assert target.size() >= numberOfBuckets;
+
+        synchronized (data) {
+            if (data.newestBucketIndex < 0) {
+                return 0;
+            }
+
+            for (int i = 0; i < numberOfBuckets; i++) {
+                data.copyExportableBucketTo(i, target, i);
+            }
+        }
+
+        return numberOfBuckets;
+    }
+
+    /**
+     * Copy all buckets up to untilMilliseconds into the given columns, which must have room for at least
+     * numberOfBuckets entries. Works like {@link #getEventBuckets(long)}.
+     *
+     * @return number of buckets copied, which is always numberOfBuckets.
+     */
+    int copyEventBucketsTo(final EventBucketColumns.NameToColumns target, final long untilMilliseconds) {
+        assert target.size() >= numberOfBuckets;
+
+        final long intervalStartOfFirstBucket = intervalStartForTriggerTime(untilMilliseconds)
+                + bucketWidthInMilliseconds - numberOfBuckets * bucketWidthInMilliseconds;
+
+        synchronized (data) {
+            for (int i = 0; i < numberOfBuckets; i++) {
+                final long intervalStartOfThisBucket = intervalStartOfFirstBucket + i * bucketWidthInMilliseconds;
+                final int virtualIndex = data.getVirtualIndexForTime(intervalStartOfThisBucket);
+
+                if (virtualIndex >= 0) {
+                    data.copyExportableBucketTo(virtualIndex, target, i);
+                } else {
+                    target.set(i, intervalStartOfThisBucket, null);
+                }
+            }
+        }
+
+        return numberOfBuckets;
+    }
+
+    EventBucketColumns.NameToColumns getEventBucketColumns() {
+        final EventBucketColumns.NameToColumns columns = new EventBucketColumns.NameToColumns(name, numberOfBuckets);
+        if (copyEventBucketsTo(columns) == 0) {
+            return new EventBucketColumns.NameToColumns(name, 0);
+        }
+        return columns;
+    }
+
+    EventBucketColumns.NameToColumns getEventBucketColumns(final long untilMilliseconds) {
+        final EventBucketColumns.NameToColumns columns = new EventBucketColumns.NameToColumns(name, numberOfBuckets);
+        copyEventBucketsTo(columns, untilMilliseconds);
+        return columns;
+    }
+
+    /**
+     * Add copies of all buckets modified at or after the given version to the
+     * given list, in chronological order. Only buckets within the current
+     * window are considered; buckets which have merely dropped out of the
+     * window are not reported.
+     *
+     * @param sinceVersion Version as read from the versionClock before the
+     *                     previous call.
+     */
+    void collectBucketsModifiedSince(final long sinceVersion, final List<EventBucket> target) {
+        synchronized (data) {
+            if (data.newestBucketIndex < 0 || data.version < sinceVersion) {
+                return;
+            }
+
+            final long earliestTime = data.getEarliestTimeForCurrentBuckets();
+            for (int i = 0; i < numberOfBuckets; i++) {
+                final int realIndex = data.virtualToRealIndex(i);
+                final MutableBucket bucket = data.readBucket(realIndex);
+                if (bucket != null && bucket.version >= sinceVersion
+                        && bucket.getIntervalStart() >= earliestTime) {
+                    target.add(new ImmutableBucket(bucket));
+                }
+            }
+        }
+    }
+
     private boolean tooNewForBucket(final long eventTime, final EventBucket oldBucket) {
-        return oldBucket.getIntervalEnd() < eventTime;
+        return oldBucket.getIntervalEnd() <= eventTime;
     }
 
     private boolean tooOldForBucket(final long eventTime, final EventBucket oldBucket) {
         return oldBucket.getIntervalStart() > eventTime;
     }
 
-    private MutableBucket bucketFromScratch(final Event event) {
-        final long startTime = intervalStartForTriggerTime(event.getTriggerTime());
-        return new MutableBucket(startTime, startTime + bucketWidthInMilliseconds, event);
+    private static void addTo(final MutableBucket bucket, final Event event, final EventBucket partial) {
+        if (event != null) {
+            bucket.addEvent(event);
+        } else {
+            bucket.addBucket(partial);
+        }
     }
 
     private long intervalStartForTriggerTime(final long triggerTime) {
+        return intervalStart(triggerTime, bucketWidthInMilliseconds, alignmentOffset);
+    }
+
+    /**
+     * @return Start of the bucket interval that the given (non-negative) trigger time falls into.
+     */
+    static long intervalStart(final long triggerTime, final long bucketWidthInMilliseconds) {
         return triggerTime / bucketWidthInMilliseconds * bucketWidthInMilliseconds;
     }
 
+    /**
+     * @return Start of the interval containing triggerTime, for intervals
+     * starting at multiples of bucketWidthInMilliseconds plus alignmentOffset.
+     * May be negative for trigger times before the first such multiple.
+     */
+    static long intervalStart(final long triggerTime, final long bucketWidthInMilliseconds,
+                              final long alignmentOffset) {
+        if (alignmentOffset == 0) {
+            return intervalStart(triggerTime, bucketWidthInMilliseconds);
+        }
+        return Math.floorDiv(triggerTime - alignmentOffset, bucketWidthInMilliseconds) * bucketWidthInMilliseconds
+                + alignmentOffset;
+    }
+
     private int calcTargetBucket(final long eventTime) {
-        return (int) (eventTime / bucketWidthInMilliseconds % numberOfBuckets);
+        final long bucketNumber = Math.floorDiv(eventTime - alignmentOffset, bucketWidthInMilliseconds);
+        return (int) (data.indexMask >= 0 ? bucketNumber & data.indexMask
+                : Math.floorMod(bucketNumber, (long) numberOfBuckets));
+    }
+
+    /**
+     * @return A mask to replace modulo numberOfBuckets, or -1 if numberOfBuckets is not a power of two.
+     */
+    private static int indexMaskFor(final int numberOfBuckets) {
+        return Integer.bitCount(numberOfBuckets) == 1 ? numberOfBuckets - 1 : -1;
     }
 
 }
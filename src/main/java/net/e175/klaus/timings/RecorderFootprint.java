@@ -0,0 +1,63 @@
+package net.e175.klaus.timings;
+
+/**
+ * A snapshot of the memory held by an RrdEventRecorder.
+ * <p>
+ * Byte counts are estimates for a 64 bit HotSpot JVM with compressed oops;
+ * they cover the recorder's own data structures, but not the listener or any
+ * objects held by the application.
+ *
+ * @Immutable
+ * @see RrdEventRecorder#getFootprint()
+ */
+public final class RecorderFootprint {
+
+    private final int nameCount;
+    private final int groupCount;
+    private final long allocatedBuckets;
+    private final long estimatedBytes;
+
+    RecorderFootprint(final int nameCount, final int groupCount, final long allocatedBuckets,
+                      final long estimatedBytes) {
+        this.nameCount = nameCount;
+        this.groupCount = groupCount;
+        this.allocatedBuckets = allocatedBuckets;
+        this.estimatedBytes = estimatedBytes;
+    }
+
+    /**
+     * @return Number of names recorded.
+     */
+    public int getNameCount() {
+        return nameCount;
+    }
+
+    /**
+     * @return Number of groups queried.
+     */
+    public int getGroupCount() {
+        return groupCount;
+    }
+
+    /**
+     * @return Number of bucket objects allocated for all names and groups.
+     * This may be less than (names + groups) * numberOfBuckets, as buckets are
+     * only allocated when used.
+     */
+    public long getAllocatedBuckets() {
+        return allocatedBuckets;
+    }
+
+    /**
+     * @return Estimated number of bytes held for all names and groups.
+     */
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "RecorderFootprint [nameCount=" + nameCount + ", groupCount=" + groupCount + ", allocatedBuckets="
+                + allocatedBuckets + ", estimatedBytes=" + estimatedBytes + "]";
+    }
+}
@@ -0,0 +1,368 @@
+package net.e175.klaus.timings;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * RingBufferEventRecorder is an EventRecorder that decouples recording
+ * threads from an RrdEventRecorder through a pre-allocated ring buffer.
+ * <p>
+ * Recording an Event copies its name, trigger time and value into a free slot
+ * of the ring buffer and returns; no locks are taken and nothing is
+ * allocated. A single consumer thread, started by the constructor, applies
+ * the slots to the target recorder in order. As it is the only thread writing
+ * to the target's buffers, their monitors are never contended by recording
+ * threads (only by readers).
+ * <p>
+ * If the ring buffer is full, the {@link OverflowPolicy} decides whether
+ * recording threads wait for a free slot or drop the Event. The
+ * {@link WaitStrategy} decides how the consumer waits for new Events, trading
+ * latency against CPU usage. Buffered Events are not visible in the target
+ * recorder until the consumer has applied them; use {@link #flush()} to wait
+ * for that.
+ * <p>
+ * {@link #close()} stops the consumer thread after all buffered Events have
+ * been applied. Events recorded after (or concurrently with) close() are
+ * either applied or dropped and counted, and record() tells which.
+ *
+ * @ThreadSafe
+ */
+public final class RingBufferEventRecorder implements EventRecorder, Closeable {
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private static final double NANOS_TO_MILLIS = 1E6;
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+    private static final long SLEEP_NANOS = 100 * 1000L;
+    private static final long BLOCK_TIMEOUT_NANOS = 10 * 1000 * 1000L;
+    /**
+     * Set in claimSequence by close(), so that claiming a slot and checking
+     * for close() are a single atomic operation.
+     */
+    private static final long CLOSED = 1L << 62;
+
+    /**
+     * How the consumer thread waits for new Events.
+     */
+    public enum WaitStrategy {
+        /**
+         * Spin continuously. Lowest latency, but occupies a core.
+         */
+        BUSY_SPIN,
+        /**
+         * Spin briefly, then yield.
+         */
+        YIELDING,
+        /**
+         * Spin and yield briefly, then sleep for short periods.
+         */
+        SLEEPING,
+        /**
+         * Park until woken up by a recording thread. Lowest CPU usage, but
+         * adds a volatile read to every recording.
+         */
+        BLOCKING
+    }
+
+    /**
+     * What recording threads do when the ring buffer is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait until the consumer has freed a slot.
+         */
+        BLOCK,
+        /**
+         * Drop the Event and count it.
+         */
+        DROP
+    }
+
+    private static final class Slot {
+        private volatile long sequence = -1;
+        private String name;
+        private long triggerTime;
+        private double value;
+    }
+
+    private final RrdEventRecorder target;
+    private final Slot[] slots;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    private final OverflowPolicy overflowPolicy;
+
+    private final AtomicLong claimSequence = new AtomicLong();
+    private final AtomicLong consumerSequence = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile boolean consumerParked = false;
+    /**
+     * Number of slots claimed before close(), or -1 while open.
+     */
+    private volatile long closedSequence = -1;
+
+    private final Thread consumer;
+
+    /**
+     * Create a RingBufferEventRecorder with the default capacity, the SLEEPING
+     * wait strategy and the BLOCK overflow policy.
+     *
+     * @param target Recorder to apply Events to. Must not be null.
+     * @see #DEFAULT_CAPACITY
+     */
+    public RingBufferEventRecorder(final RrdEventRecorder target) {
+        this(target, DEFAULT_CAPACITY, WaitStrategy.SLEEPING, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Create a RingBufferEventRecorder.
+     *
+     * @param target         Recorder to apply Events to. Must not be null.
+     * @param capacity       Number of slots in the ring buffer. Must be a power of two.
+     * @param waitStrategy   How the consumer thread waits for new Events. Must not be null.
+     * @param overflowPolicy What recording threads do when the ring buffer is full. Must not be null.
+     */
+    public RingBufferEventRecorder(final RrdEventRecorder target, final int capacity,
+                                   final WaitStrategy waitStrategy, final OverflowPolicy overflowPolicy) {
+        if (target == null || waitStrategy == null || overflowPolicy == null) {
+            throw new IllegalArgumentException("target, waitStrategy and overflowPolicy must not be null");
+        }
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two");
+        }
+
+        this.target = target;
+        this.waitStrategy = waitStrategy;
+        this.overflowPolicy = overflowPolicy;
+
+        slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+        }
+        mask = capacity - 1;
+
+        consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, "timings-ringbuffer-consumer");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Record an event.
+     *
+     * @param event Event object. Null values are silently ignored.
+     */
+    @Override
+    public void record(final Event event) {
+        if (event == null) {
+            return;
+        }
+
+        record(event.getName(), event.getTriggerTime(), event.getValue());
+    }
+
+    /**
+     * Record an event given by its parts, without creating an Event object.
+     *
+     * @return false if the event was dropped.
+     */
+    public boolean record(final String name, final long triggerTime, final double value) {
+        if (triggerTime < 0) {
+            throw new IllegalArgumentException(
+                    "negative trigger times are not correctly handled by current implementation");
+        }
+
+        final long sequence = claim();
+        if (sequence < 0) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+
+        final Slot slot = slots[(int) sequence & mask];
+        slot.name = name;
+        slot.triggerTime = triggerTime;
+        slot.value = value;
+        slot.sequence = sequence;
+
+        if (waitStrategy == WaitStrategy.BLOCKING && consumerParked) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * Record the time elapsed since startNanoseconds, like a
+     * {@link TimedEvent}, without creating any objects.
+     *
+     * @param startNanoseconds time at start of event, as measured by System.nanoTime()
+     * @return false if the event was dropped.
+     * @see TimedEvent#TimedEvent(long, String)
+     */
+    public boolean recordElapsed(final String name, final long startNanoseconds) {
+        final long elapsedNanoseconds = System.nanoTime() - startNanoseconds;
+        return record(name, System.currentTimeMillis(), elapsedNanoseconds / NANOS_TO_MILLIS);
+    }
+
+    /**
+     * @return sequence number of the claimed slot, or -1 if the event should be dropped.
+     */
+    private long claim() {
+        if (overflowPolicy == OverflowPolicy.DROP) {
+            while (true) {
+                final long current = claimSequence.get();
+                if ((current & CLOSED) != 0 || current - consumerSequence.get() >= slots.length) {
+                    return -1;
+                }
+                if (claimSequence.compareAndSet(current, current + 1)) {
+                    return current;
+                }
+            }
+        }
+
+        final long sequence = claimSequence.getAndIncrement();
+        if ((sequence & CLOSED) != 0) {
+            return -1;
+        }
+        while (sequence - consumerSequence.get() >= slots.length) {
+            if (!consumer.isAlive()) {
+                return -1;
+            }
+            LockSupport.parkNanos(1000);
+        }
+        return sequence;
+    }
+
+    private void consume() {
+        final MutableEvent event = new MutableEvent();
+        long next = 0;
+        int idle = 0;
+
+        while (true) {
+            final Slot slot = slots[(int) next & mask];
+            if (slot.sequence == next) {
+                event.set(slot.name, slot.triggerTime, slot.value);
+                slot.name = null;
+                try {
+                    target.record(event);
+                } catch (RuntimeException e) {
+                    droppedCount.incrementAndGet();
+                }
+                consumerSequence.lazySet(++next);
+                idle = 0;
+            } else if (closedSequence >= 0 && closedSequence <= next) {
+                // all slots claimed before close() have been applied
+                return;
+            } else {
+                idle = await(slot, next, idle);
+            }
+        }
+    }
+
+    private int await(final Slot slot, final long expectedSequence, final int idle) {
+        switch (waitStrategy) {
+            case BUSY_SPIN:
+                return idle;
+            case YIELDING:
+                if (idle >= SPIN_TRIES) {
+                    Thread.yield();
+                }
+                return idle + 1;
+            case SLEEPING:
+                if (idle >= SPIN_TRIES + YIELD_TRIES) {
+                    LockSupport.parkNanos(SLEEP_NANOS);
+                } else if (idle >= SPIN_TRIES) {
+                    Thread.yield();
+                }
+                return idle + 1;
+            default:
+                if (idle >= SPIN_TRIES) {
+                    consumerParked = true;
+                    if (slot.sequence != expectedSequence && closedSequence < 0) {
+                        LockSupport.parkNanos(BLOCK_TIMEOUT_NANOS);
+                    }
+                    consumerParked = false;
+                }
+                return idle + 1;
+        }
+    }
+
+    /**
+     * Wait until all Events recorded before this call have been applied to the
+     * target recorder.
+     */
+    public void flush() throws InterruptedException {
+        final long claimed = claimSequence.get() & ~CLOSED;
+        while (consumerSequence.get() < claimed && consumer.isAlive()) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            LockSupport.unpark(consumer);
+            LockSupport.parkNanos(SLEEP_NANOS);
+        }
+    }
+
+    /**
+     * Apply all buffered Events and stop the consumer thread. Waits for
+     * recording threads that have already claimed a slot to fill it.
+     */
+    @Override
+    public void close() {
+        while (true) {
+            final long current = claimSequence.get();
+            if ((current & CLOSED) != 0) {
+                break;
+            }
+            if (claimSequence.compareAndSet(current, current | CLOSED)) {
+                closedSequence = current;
+                break;
+            }
+        }
+        LockSupport.unpark(consumer);
+        boolean interrupted = false;
+        while (consumer.isAlive()) {
+            try {
+                consumer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return Number of Events dropped so far, because the ring buffer was
+     * full, the recorder was closed, or the target recorder rejected them.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return Number of Events buffered, but not yet applied to the target
+     * recorder.
+     */
+    public long getPendingCount() {
+        final long claimed = claimSequence.get();
+        return Math.max(0, ((claimed & CLOSED) != 0 ? closedSequence : claimed) - consumerSequence.get());
+    }
+
+    /**
+     * @return Number of slots in the ring buffer.
+     */
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * @return The target recorder.
+     */
+    public RrdEventRecorder getTarget() {
+        return target;
+    }
+}
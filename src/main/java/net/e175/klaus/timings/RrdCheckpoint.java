@@ -0,0 +1,294 @@
+package net.e175.klaus.timings;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * RrdCheckpoint saves all buckets of an RrdEventRecorder (including distinct
+ * key sketches) to a file and restores them, so recent history survives a
+ * restart or crash without any cost while recording.
+ * <p>
+ * {@link #write()} writes a new checkpoint to a temporary file, fsyncs it and
+ * atomically renames it to the checkpoint file, so the file always holds a
+ * complete checkpoint (the old or the new one). Each name's buckets are
+ * copied under that name's lock, so they are consistent per name, but names
+ * are copied one after the other. A checksum guards against damaged files.
+ * <p>
+ * {@link #load()} restores a checkpoint in a single sequential read,
+ * typically into a newly created recorder on startup. Restoring does not
+ * notify the recorder's listener.
+ * <p>
+ * Use {@link #scheduleWith(ScheduledExecutorService, long)} to write
+ * checkpoints periodically on an executor of your choice.
+ *
+ * @ThreadSafe
+ */
+public final class RrdCheckpoint {
+    private static final int MAGIC = 0x54524350;
+    private static final int FORMAT_VERSION = 1;
+
+    private final RrdEventRecorder recorder;
+    private final File file;
+
+    private final AtomicLong writeErrors = new AtomicLong();
+    private volatile Exception lastError;
+
+    /**
+     * @param recorder Recorder to save and restore. Must not be null.
+     * @param file     Checkpoint file. Must not be null.
+     */
+    public RrdCheckpoint(final RrdEventRecorder recorder, final File file) {
+        if (recorder == null || file == null) {
+            throw new IllegalArgumentException("recorder and file must not be null");
+        }
+
+        this.recorder = recorder;
+        this.file = file;
+    }
+
+    /**
+     * Write a checkpoint of all names currently known to the recorder,
+     * atomically replacing the previous checkpoint. If writing fails, the
+     * previous checkpoint is left as it was.
+     */
+    public synchronized void write() throws IOException {
+        final File tmp = new File(file.getPath() + ".tmp");
+        try {
+            writeTo(tmp);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            if (tmp.exists() && !tmp.delete()) {
+                e.addSuppressed(new IOException("could not delete " + tmp));
+            }
+            throw e;
+        }
+        syncDirectory();
+    }
+
+    private void writeTo(final File tmp) throws IOException {
+        final int precision = recorder.getDistinctCountPrecision();
+
+        try (FileOutputStream stream = new FileOutputStream(tmp)) {
+            final CRC32 crc = new CRC32();
+            final DataOutputStream out = new DataOutputStream(
+                    new CheckedOutputStream(new BufferedOutputStream(stream), crc));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(recorder.getBucketWidth());
+            out.writeLong(recorder.getAlignmentOffset());
+            out.writeInt(precision);
+
+            final List<EventBucket> buckets = new ArrayList<>(recorder.getNumberOfBuckets());
+            for (final String name : recorder.getNames()) {
+                final RRD rrd = recorder.getRRD(name);
+                if (rrd == null) {
+                    continue; // cleared meanwhile
+                }
+                buckets.clear();
+                final HyperLogLog[] sketches = rrd.snapshot(buckets);
+                int used = 0;
+                for (int i = 0; i < buckets.size(); i++) {
+                    if (!buckets.get(i).isEmpty() || (sketches != null && sketches[i] != null)) {
+                        used++;
+                    }
+                }
+                if (used == 0) {
+                    continue;
+                }
+
+                out.writeBoolean(true);
+                final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(nameBytes.length);
+                out.write(nameBytes);
+                out.writeInt(used);
+                for (int i = 0; i < buckets.size(); i++) {
+                    final EventBucket bucket = buckets.get(i);
+                    final HyperLogLog sketch = sketches != null ? sketches[i] : null;
+                    if (bucket.isEmpty() && sketch == null) {
+                        continue;
+                    }
+
+                    out.writeLong(bucket.getIntervalStart());
+                    out.writeLong(bucket.getCount());
+                    out.writeDouble(bucket.getMinValue());
+                    out.writeDouble(bucket.getMeanValue());
+                    out.writeDouble(bucket.getMaxValue());
+                    if (precision > 0) {
+                        out.writeBoolean(sketch != null);
+                        if (sketch != null) {
+                            sketch.writeTo(out);
+                        }
+                    }
+                }
+            }
+            out.writeBoolean(false);
+
+            out.flush();
+            out.writeLong(crc.getValue());
+            out.flush();
+            stream.getFD().sync();
+        }
+    }
+
+    /**
+     * Make the rename durable, where the platform allows opening directories.
+     */
+    private void syncDirectory() {
+        final File directory = file.getAbsoluteFile().getParentFile();
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not supported on this platform
+        }
+    }
+
+    /**
+     * Restore the checkpoint into the recorder. Buckets are merged with
+     * anything recorded already.
+     *
+     * @return Number of names restored; 0 if there is no checkpoint file.
+     * @throws IOException if the file can't be read or isn't a valid checkpoint for a
+     *                     recorder with this recorder's bucket width.
+     */
+    public synchronized int load() throws IOException {
+        if (!file.isFile()) {
+            return 0;
+        }
+
+        final byte[] content = Files.readAllBytes(file.toPath());
+        if (content.length < 8) {
+            throw new IOException("checkpoint " + file + " is truncated");
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length - 8);
+        final ByteBuffer buffer = ByteBuffer.wrap(content);
+        if (buffer.getLong(content.length - 8) != crc.getValue()) {
+            throw new IOException("checkpoint " + file + " is damaged");
+        }
+        buffer.limit(content.length - 8);
+
+        try {
+            return restore(buffer);
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            throw new IOException("checkpoint " + file + " is invalid", e);
+        }
+    }
+
+    private int restore(final ByteBuffer buffer) throws IOException {
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("checkpoint " + file + " has an unknown format");
+        }
+        if (buffer.getInt() != FORMAT_VERSION) {
+            throw new IOException("checkpoint " + file + " has an unknown format");
+        }
+        final long bucketWidth = buffer.getLong();
+        if (bucketWidth != recorder.getBucketWidth()) {
+            throw new IOException("checkpoint " + file + " was written with a bucket width of " + bucketWidth
+                    + " ms, not " + recorder.getBucketWidth() + " ms");
+        }
+        final long alignmentOffset = buffer.getLong();
+        if (alignmentOffset != recorder.getAlignmentOffset()) {
+            throw new IOException("checkpoint " + file + " was written with an alignment offset of "
+                    + alignmentOffset + " ms, not " + recorder.getAlignmentOffset() + " ms");
+        }
+        final int precision = buffer.getInt();
+        if (precision != 0 && (precision < HyperLogLog.MIN_PRECISION || precision > HyperLogLog.MAX_PRECISION)) {
+            throw new IOException("checkpoint " + file + " has an invalid distinct count precision");
+        }
+
+        int names = 0;
+        final List<MutableBucket> buckets = new ArrayList<>();
+        while (buffer.get() != 0) {
+            final byte[] nameBytes = new byte[buffer.getInt()];
+            buffer.get(nameBytes);
+            final String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+            final int count = buffer.getInt();
+            if (count < 0) {
+                throw new IOException("checkpoint " + file + " has an invalid bucket count");
+            }
+            buckets.clear();
+            final HyperLogLog[] sketches = precision > 0 ? new HyperLogLog[count] : null;
+            for (int i = 0; i < count; i++) {
+                final long intervalStart = buffer.getLong();
+                final MutableBucket bucket = new MutableBucket(intervalStart, intervalStart + bucketWidth, null);
+                bucket.setValues(buffer.getLong(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+                buckets.add(bucket);
+                if (precision > 0 && buffer.get() != 0) {
+                    sketches[i] = HyperLogLog.readFrom(buffer, precision);
+                }
+            }
+
+            recorder.getOrCreateRRD(name).restore(buckets, sketches);
+            names++;
+        }
+        return names;
+    }
+
+    /**
+     * Write a checkpoint every periodMillis on the given executor, starting
+     * after one period. Failed writes are counted (see
+     * {@link #getWriteErrors()}) and retried at the next period.
+     *
+     * @param periodMillis Must be greater than 0.
+     * @return Future to cancel the periodic checkpoints.
+     */
+    public ScheduledFuture<?> scheduleWith(final ScheduledExecutorService executor, final long periodMillis) {
+        if (executor == null || periodMillis <= 0) {
+            throw new IllegalArgumentException("executor must not be null, periodMillis must be greater than 0");
+        }
+
+        return executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write();
+                } catch (IOException | RuntimeException e) {
+                    writeErrors.incrementAndGet();
+                    lastError = e;
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return Number of scheduled writes that failed so far.
+     */
+    public long getWriteErrors() {
+        return writeErrors.get();
+    }
+
+    /**
+     * @return The last error of a scheduled write, or null.
+     */
+    public Exception getLastError() {
+        return lastError;
+    }
+
+    public RrdEventRecorder getRecorder() {
+        return recorder;
+    }
+
+    public File getFile() {
+        return file;
+    }
+}
@@ -1,8 +1,12 @@
 package net.e175.klaus.timings;
 
+import java.time.Instant;
+import java.time.ZoneId;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * RrdEventRecorder is an EventRecorder that aggregates Events by name into
@@ -16,17 +20,158 @@ public class RrdEventRecorder implements EventRecorder {
     public static final int DEFAULT_NUM_BUCKETS = 24;
     public static final long DEFAULT_BUCKET_WIDTH = RrdEventRecorder.HOUR;
 
+    /**
+     * Names starting with this prefix are reserved for self-instrumentation.
+     *
+     * @see Builder#selfInstrumentation(boolean)
+     */
+    public static final String SELF_PREFIX = "timings.self.";
+
     private final int numberOfBuckets;
     private final long bucketWidthMilliseconds;
     private final EventBucketListener listener;
+    private final int distinctCountPrecision;
+    private final SelfInstrumentation instrumentation;
+    private final boolean compressOlderBuckets;
+    private final long alignmentOffset;
 
     private final ConcurrentMap<String, RRD> rrdMap = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, RRD> groupMap = new ConcurrentHashMap<>();
+    private final AtomicLong versionClock = new AtomicLong();
+    private final FootprintCounter footprint = new FootprintCounter();
+    private final Object subscriptionLock = new Object();
+    private volatile EventBucketSubscription[] subscriptions = new EventBucketSubscription[0];
 
     public static final long SECOND = 1000L;
     public static final long MINUTE = 60 * SECOND;
     public static final long HOUR = 60 * MINUTE;
     public static final long DAY = 24 * HOUR;
 
+    /**
+     * Builder for RrdEventRecorders with optional features. All options are
+     * disabled by default, as with the plain constructors:
+     * <pre>
+     * RrdEventRecorder recorder = new RrdEventRecorder.Builder(60, RrdEventRecorder.MINUTE)
+     *         .distinctCountPrecision(12)
+     *         .compressOlderBuckets(true)
+     *         .build();
+     * </pre>
+     *
+     * @NotThreadSafe
+     */
+    public static final class Builder {
+        private final int numberOfBuckets;
+        private final long bucketWidthMilliseconds;
+        private EventBucketListener listener;
+        private int distinctCountPrecision;
+        private boolean selfInstrumentation;
+        private boolean compressOlderBuckets;
+        private long alignmentOffset;
+
+        /**
+         * @param numberOfBuckets         Must be greater than 0.
+         * @param bucketWidthMilliseconds Must be greater than 0.
+         */
+        public Builder(final int numberOfBuckets, final long bucketWidthMilliseconds) {
+            if (numberOfBuckets <= 0 || bucketWidthMilliseconds <= 0) {
+                throw new IllegalArgumentException(
+                        "numberOfBuckets and bucketWidthMilliseconds must be greater than 0");
+            }
+
+            this.numberOfBuckets = numberOfBuckets;
+            this.bucketWidthMilliseconds = bucketWidthMilliseconds;
+        }
+
+        /**
+         * @param listener See {@link EventBucketListener} for details. Ignored if null.
+         */
+        public Builder listener(final EventBucketListener listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        /**
+         * Additionally count the distinct keys of {@link KeyedEvent}s per
+         * bucket.
+         * <p>
+         * Each bucket that receives KeyedEvents holds a HyperLogLog sketch of
+         * 2^distinctCountPrecision bytes. The relative standard error of
+         * distinct counts is about 1.04 / sqrt(2^distinctCountPrecision), e.g.
+         * 1.6% for a precision of 12 (4 KiB per bucket).
+         *
+         * @param distinctCountPrecision Must be between 4 and 16, or 0 to disable distinct counting.
+         * @see #getDistinctCount(String)
+         */
+        public Builder distinctCountPrecision(final int distinctCountPrecision) {
+            if (distinctCountPrecision != 0) {
+                checkPrecision(distinctCountPrecision);
+            }
+            this.distinctCountPrecision = distinctCountPrecision;
+            return this;
+        }
+
+        /**
+         * Record metrics about the recorder's own overhead into itself (values
+         * in milliseconds):
+         * <ul>
+         * <li>{@value #SELF_PREFIX}recordLatency: the duration of a sample of
+         * about one in 1024 record() calls,</li>
+         * <li>{@value #SELF_PREFIX}lockWait: sampled record() calls that had to
+         * wait at least a microsecond for a contended lock,</li>
+         * <li>{@value #SELF_PREFIX}listener: the duration of each listener
+         * call,</li>
+         * <li>{@value #SELF_PREFIX}rollover: each transition to a new newest
+         * bucket of a name, and</li>
+         * <li>{@value #SELF_PREFIX}tooOld: each Event dropped for being older
+         * than the buffer of its name.</li>
+         * </ul>
+         * They can be retrieved like any other name, or together as group
+         * "{@value #SELF_PREFIX}*". Names with this prefix are not
+         * instrumented themselves. Without self-instrumentation, nothing is
+         * measured.
+         */
+        public Builder selfInstrumentation(final boolean selfInstrumentation) {
+            this.selfInstrumentation = selfInstrumentation;
+            return this;
+        }
+
+        /**
+         * Keep buckets more than 64 intervals older than the newest bucket of
+         * their name compressed in memory in chunks of 64, and decode them when
+         * read. This cuts the memory needed for long windows (e.g. a week of
+         * one minute buckets) several-fold, at the cost of some CPU time when
+         * starting new buckets, when reading, and for Events arriving late for
+         * compressed buckets. The newest buckets, which almost all Events go
+         * to, are not affected.
+         */
+        public Builder compressOlderBuckets(final boolean compressOlderBuckets) {
+            this.compressOlderBuckets = compressOlderBuckets;
+            return this;
+        }
+
+        /**
+         * Start bucket intervals at multiples of the bucket width (counted
+         * from the Unix epoch) plus alignmentOffsetMillis, e.g. to have daily
+         * buckets start at local midnight instead of midnight UTC. See
+         * {@link #alignmentOffsetFor(ZoneId, long)} to get the offset for a
+         * time zone.
+         *
+         * @param alignmentOffsetMillis Must be between 0 and bucketWidthMilliseconds - 1.
+         */
+        public Builder alignmentOffset(final long alignmentOffsetMillis) {
+            if (alignmentOffsetMillis < 0 || alignmentOffsetMillis >= bucketWidthMilliseconds) {
+                throw new IllegalArgumentException(
+                        "alignmentOffsetMillis must be between 0 and bucketWidthMilliseconds - 1");
+            }
+            this.alignmentOffset = alignmentOffsetMillis;
+            return this;
+        }
+
+        public RrdEventRecorder build() {
+            return new RrdEventRecorder(this);
+        }
+    }
+
     /**
      * Create an RrdEventRecorder with the default number of buckets and bucket
      * width.
@@ -35,9 +180,7 @@ public class RrdEventRecorder implements EventRecorder {
      * @see #DEFAULT_BUCKET_WIDTH
      */
     public RrdEventRecorder() {
-        numberOfBuckets = DEFAULT_NUM_BUCKETS;
-        bucketWidthMilliseconds = DEFAULT_BUCKET_WIDTH;
-        listener = null;
+        this(new Builder(DEFAULT_NUM_BUCKETS, DEFAULT_BUCKET_WIDTH));
     }
 
     /**
@@ -47,11 +190,7 @@ public class RrdEventRecorder implements EventRecorder {
      * @param bucketWidthMilliseconds Must be greater than 0.
      */
     public RrdEventRecorder(final int numberOfBuckets, final long bucketWidthMilliseconds) {
-        checkParams(numberOfBuckets, bucketWidthMilliseconds);
-
-        this.numberOfBuckets = numberOfBuckets;
-        this.bucketWidthMilliseconds = bucketWidthMilliseconds;
-        listener = null;
+        this(new Builder(numberOfBuckets, bucketWidthMilliseconds));
     }
 
     /**
@@ -64,16 +203,52 @@ public class RrdEventRecorder implements EventRecorder {
      */
     public RrdEventRecorder(final int numberOfBuckets, final long bucketWidthMilliseconds,
                             final EventBucketListener listener) {
-        checkParams(numberOfBuckets, bucketWidthMilliseconds);
+        this(new Builder(numberOfBuckets, bucketWidthMilliseconds).listener(listener));
+    }
+
+    /**
+     * Create an RrdEventRecorder with the builder's settings.
+     *
+     * @see Builder#build()
+     */
+    protected RrdEventRecorder(final Builder builder) {
+        this.numberOfBuckets = builder.numberOfBuckets;
+        this.bucketWidthMilliseconds = builder.bucketWidthMilliseconds;
+        this.listener = builder.listener;
+        this.distinctCountPrecision = builder.distinctCountPrecision;
+        this.instrumentation = builder.selfInstrumentation ? new SelfInstrumentation(this) : null;
+        this.compressOlderBuckets = builder.compressOlderBuckets;
+        this.alignmentOffset = builder.alignmentOffset;
+    }
+
+    /**
+     * Get the alignment offset that makes buckets of the given width start at
+     * local midnight (or the full local hour, etc.) in the given time zone.
+     * <p>
+     * A recorder's buckets all have the same width, so they can't follow
+     * daylight saving time transitions: the offset is the one in effect now,
+     * and local day (or hour) boundaries are off by the DST difference while
+     * a different offset is in effect. Zones whose offset is not a multiple
+     * of the bucket width (e.g. +05:30 for hourly buckets) work as expected.
+     *
+     * @param zone                    Time zone. Must not be null.
+     * @param bucketWidthMilliseconds Must be greater than 0.
+     * @return Offset to pass to {@link Builder#alignmentOffset(long)}.
+     */
+    public static long alignmentOffsetFor(final ZoneId zone, final long bucketWidthMilliseconds) {
+        if (zone == null || bucketWidthMilliseconds <= 0) {
+            throw new IllegalArgumentException("zone must not be null, bucketWidthMilliseconds must be greater than 0");
+        }
 
-        this.numberOfBuckets = numberOfBuckets;
-        this.bucketWidthMilliseconds = bucketWidthMilliseconds;
-        this.listener = listener;
+        final long offsetMillis = zone.getRules().getOffset(Instant.now()).getTotalSeconds() * SECOND;
+        // local midnight is offsetMillis before midnight UTC
+        return Math.floorMod(-offsetMillis, bucketWidthMilliseconds);
     }
 
-    private void checkParams(final int numberOfBuckets, final long bucketWidthMilliseconds) {
-        if (numberOfBuckets <= 0 || bucketWidthMilliseconds <= 0) {
-            throw new IllegalArgumentException("numberOfBuckets and bucketWidthMilliseconds must be greater than 0");
+    private static void checkPrecision(final int distinctCountPrecision) {
+        if (distinctCountPrecision < HyperLogLog.MIN_PRECISION || distinctCountPrecision > HyperLogLog.MAX_PRECISION) {
+            throw new IllegalArgumentException("distinctCountPrecision must be between "
+                    + HyperLogLog.MIN_PRECISION + " and " + HyperLogLog.MAX_PRECISION);
         }
     }
 
@@ -93,12 +268,77 @@ public class RrdEventRecorder implements EventRecorder {
 
         RRD target = rrdMap.get(name);
 
-        while (target == null) {
-            rrdMap.putIfAbsent(name, new RRD(numberOfBuckets, bucketWidthMilliseconds, name, listener));
-            target = rrdMap.get(name);
+        if (target == null) {
+            target = createRRD(name);
         }
 
         target.addToBuckets(event);
+        signalSubscriptions();
+    }
+
+    private void signalSubscriptions() {
+        for (final EventBucketSubscription subscription : subscriptions) {
+            subscription.signal();
+        }
+    }
+
+    /**
+     * Record a partial bucket, i.e. a number of events with the same name
+     * that have been aggregated elsewhere. The bucket's interval must be
+     * aligned to this recorder's bucket intervals.
+     */
+    void recordBucket(final String name, final EventBucket partial) {
+        RRD target = rrdMap.get(name);
+
+        if (target == null) {
+            target = createRRD(name);
+        }
+
+        target.addBucket(partial);
+        signalSubscriptions();
+    }
+
+    /**
+     * @return The RRD for name, or null if nothing has been recorded for it.
+     */
+    RRD getRRD(final String name) {
+        return rrdMap.get(name);
+    }
+
+    RRD getOrCreateRRD(final String name) {
+        final RRD target = rrdMap.get(name);
+        return target != null ? target : createRRD(name);
+    }
+
+    /**
+     * @return Options for a new RRD of this recorder, without listener and
+     * instrumentation.
+     */
+    private RRD.Options rrdOptions() {
+        return new RRD.Options(numberOfBuckets, bucketWidthMilliseconds)
+                .alignmentOffset(alignmentOffset)
+                .versionClock(versionClock)
+                .distinctCountPrecision(distinctCountPrecision)
+                .footprint(footprint)
+                .compressOlderBuckets(compressOlderBuckets);
+    }
+
+    private RRD createRRD(final String name) {
+        final RRD created = new RRD(name, rrdOptions().listener(listener)
+                .instrumentation(name.startsWith(SELF_PREFIX) ? null : instrumentation));
+        final RRD existing = rrdMap.putIfAbsent(name, created);
+        if (existing != null) {
+            return existing;
+        }
+        footprint.add(0, created.getFixedBytes());
+
+        // publish first, then look for groups: see getGroup()
+        for (final Map.Entry<String, RRD> group : groupMap.entrySet()) {
+            if (isGroupMember(group.getKey(), name)) {
+                created.attachGroup(group.getValue());
+            }
+        }
+        return created;
     }
 
     /**
@@ -145,6 +385,25 @@ public class RrdEventRecorder implements EventRecorder {
         }
     }
 
+    /**
+     * Get a summary of all events recorded for the given name within the
+     * current buckets, i.e. their count, min, mean and max value, as a single
+     * bucket spanning the whole window.
+     * <p>
+     * This doesn't walk the buckets: a running aggregate is kept up to date
+     * on every new bucket, so frequent calls (e.g. from health checks) are
+     * cheap. Only when a bucket holding the minimum or maximum drops out of
+     * the window is the aggregate recomputed, once, on the next call.
+     *
+     * @param name Event name.
+     * @return Summary bucket, or null if no events have been recorded for
+     * name.
+     */
+    public EventBucket getWindowSummary(final String name) {
+        final RRD target = rrdMap.get(name);
+        return target != null ? target.getWindowSummary() : null;
+    }
+
     /**
      * Get a map of all lists of (used) event buckets, for all names, with the
      * last bucket corresponding to the untilMillis parameter. Any buckets not
@@ -181,6 +440,307 @@ public class RrdEventRecorder implements EventRecorder {
         return result;
     }
 
+    /**
+     * Get a list of event buckets in chronological order for a group of names,
+     * aggregating all events whose names start with a common prefix. The group
+     * is given as a pattern consisting of that prefix followed by "*", e.g.
+     * "db.orders.*" (matching "db.orders.select", "db.orders.insert", ...) or
+     * "db.*". A pattern of just "*" aggregates all events.
+     * <p>
+     * The first query for a pattern creates an aggregate buffer for the group
+     * and fills it from all matching names recorded so far. From then on, the
+     * aggregate is updated whenever a matching event is recorded, so further
+     * queries only need to read a single buffer, no matter how many names are
+     * in the group. Each queried pattern costs as much memory as a name, and
+     * every matching event is recorded once more per pattern.
+     *
+     * @param pattern Group pattern, a name prefix followed by "*".
+     * @return List of EventBuckets. If no matching events have been recorded,
+     * an empty list is returned. Otherwise, the list size is always the
+     * numberOfBuckets given to this object's constructor.
+     * @see #getEventBuckets(String)
+     */
+    public List<EventBucket> getGroupEventBuckets(final String pattern) {
+        return getGroup(pattern).getEventBuckets();
+    }
+
+    /**
+     * Get a list of event buckets in chronological order for a group of names,
+     * with the last bucket corresponding to the untilMillis parameter. See
+     * {@link #getGroupEventBuckets(String)} for details on groups.
+     *
+     * @param pattern     Group pattern, a name prefix followed by "*".
+     * @param untilMillis Time (milliseconds-since-epoch) which should be in the last
+     *                    bucket's interval.
+     * @see #getEventBuckets(String, long)
+     */
+    public List<EventBucket> getGroupEventBuckets(final String pattern, final long untilMillis) {
+        return getGroup(pattern).getEventBuckets(untilMillis);
+    }
+
+    /**
+     * Get a summary of all events recorded for a group of names within the
+     * current buckets. See {@link #getGroupEventBuckets(String)} for details
+     * on groups and {@link #getWindowSummary(String)} for details on
+     * summaries.
+     *
+     * @param pattern Group pattern, a name prefix followed by "*".
+     * @return Summary bucket, or null if no matching events have been
+     * recorded.
+     */
+    public EventBucket getGroupWindowSummary(final String pattern) {
+        return getGroup(pattern).getWindowSummary();
+    }
+
+    /**
+     * @return All group patterns that have been queried so far (since creation
+     * or the last clear() call).
+     * @see #getGroupEventBuckets(String)
+     */
+    public List<String> getGroupPatterns() {
+        final List<String> result = new ArrayList<>(groupMap.keySet());
+        Collections.sort(result);
+        return result;
+    }
+
+    private RRD getGroup(final String pattern) {
+        if (pattern == null || !pattern.endsWith("*")) {
+            throw new IllegalArgumentException("group pattern must end with '*'");
+        }
+
+        synchronized (groupMap) {
+            RRD group = groupMap.get(pattern);
+            if (group == null) {
+                group = new RRD(pattern, rrdOptions());
+                // publish first, then look for members: see createRRD()
+                groupMap.put(pattern, group);
+                footprint.add(0, group.getFixedBytes());
+                for (final RRD member : rrdMap.values()) {
+                    if (isGroupMember(pattern, member.getName())) {
+                        member.attachGroup(group);
+                    }
+                }
+            }
+            return group;
+        }
+    }
+
+    private static boolean isGroupMember(final String pattern, final String name) {
+        return name.regionMatches(0, pattern, 0, pattern.length() - 1);
+    }
+
+    /**
+     * Estimate the number of distinct keys of all {@link KeyedEvent}s recorded
+     * for the given name within the current buckets. Always 0 unless
+     * distinct counting has been enabled with the Builder.
+     *
+     * @see Builder#distinctCountPrecision(int)
+     */
+    public long getDistinctCount(final String name) {
+        return getDistinctCount(Collections.singletonList(name), Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Estimate the number of distinct keys of all {@link KeyedEvent}s recorded
+     * for any of the given names in buckets starting within
+     * [fromMillis, untilMillis). Keys recorded for several names or in several
+     * buckets are counted once. Always 0 unless distinct counting has been
+     * enabled with the Builder.
+     */
+    public long getDistinctCount(final Collection<String> names, final long fromMillis, final long untilMillis) {
+        if (distinctCountPrecision == 0) {
+            return 0;
+        }
+
+        final HyperLogLog union = new HyperLogLog(distinctCountPrecision);
+        for (final String name : names) {
+            final RRD source = rrdMap.get(name);
+            if (source != null) {
+                source.mergeDistinctKeysInto(union, fromMillis, untilMillis);
+            }
+        }
+        return union.estimate();
+    }
+
+    /**
+     * Estimate the number of distinct keys per bucket for the given name, in
+     * the same order as {@link #getEventBuckets(String)}. An empty list is
+     * returned if the name was not found.
+     */
+    public List<Long> getDistinctCounts(final String name) {
+        final RRD source = rrdMap.get(name);
+        if (source != null) {
+            return source.getDistinctCounts();
+        } else {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Get all buckets modified since a previous call, for all names. This
+     * allows collectors to poll frequently while transferring and processing
+     * only what has actually changed.
+     * <p>
+     * Start with a cursor of 0 (which returns all buckets, like
+     * {@link #getEventBuckets()}) and pass the returned delta's cursor on to
+     * the next call. A bucket may occasionally be reported twice if it was
+     * modified while a previous call was running. Buckets which have merely
+     * dropped out of the time window are not reported, so consumers should
+     * discard older buckets themselves. Multiple consumers may poll
+     * independently, each using its own cursor.
+     *
+     * @param cursor 0 or a cursor returned by {@link EventBucketsDelta#getCursor()}.
+     */
+    public EventBucketsDelta getEventBucketsSince(final long cursor) {
+        final long nextCursor = versionClock.incrementAndGet();
+
+        final Map<String, List<EventBucket>> result = new TreeMap<>();
+        List<EventBucket> buckets = new ArrayList<>();
+        for (final Map.Entry<String, RRD> entry : rrdMap.entrySet()) {
+            entry.getValue().collectBucketsModifiedSince(cursor, buckets);
+            if (!buckets.isEmpty()) {
+                result.put(entry.getKey(), buckets);
+                buckets = new ArrayList<>();
+            }
+        }
+        return new EventBucketsDelta(nextCursor, result);
+    }
+
+    /**
+     * Subscribe to bucket updates for all names, as an alternative to polling
+     * {@link #getEventBucketsSince(long)}. The subscriber's
+     * {@link EventBucketSubscriber#onSubscribe(EventBucketSubscription)} is
+     * called before this method returns; buckets are delivered on the given
+     * executor as far as they have been requested. See
+     * {@link EventBucketSubscription} for details.
+     * <p>
+     * Recording costs hardly more with subscriptions than without, but each
+     * delivery of updates walks all names like
+     * {@link #getEventBucketsSince(long)}.
+     *
+     * @param subscriber Subscriber. Must not be null.
+     * @param executor   Executor for delivering buckets, e.g. a single thread. Must not be null.
+     */
+    public EventBucketSubscription subscribe(final EventBucketSubscriber subscriber, final Executor executor) {
+        if (subscriber == null || executor == null) {
+            throw new IllegalArgumentException("subscriber and executor must not be null");
+        }
+
+        final EventBucketSubscription subscription = new EventBucketSubscription(this, subscriber, executor);
+        synchronized (subscriptionLock) {
+            final EventBucketSubscription[] current = subscriptions;
+            final EventBucketSubscription[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = subscription;
+            subscriptions = next;
+        }
+        subscriber.onSubscribe(subscription);
+        return subscription;
+    }
+
+    void unsubscribe(final EventBucketSubscription subscription) {
+        synchronized (subscriptionLock) {
+            final List<EventBucketSubscription> remaining = new ArrayList<>(Arrays.asList(subscriptions));
+            if (remaining.remove(subscription)) {
+                subscriptions = remaining.toArray(new EventBucketSubscription[remaining.size()]);
+            }
+        }
+    }
+
+    /**
+     * Get all buckets for all names in columnar form, with the last bucket
+     * corresponding to the untilMillis parameter. Any buckets not covered by
+     * the current RRD buffer are "extrapolated" as empty buckets.
+     * <p>
+     * This returns the same data as {@link #getEventBuckets(long)}, but is
+     * much cheaper to create and serialize for large numbers of names.
+     *
+     * @param untilMillis Time (milliseconds-since-epoch) which should be in the last
+     *                    bucket's interval.
+     * @see EventBucketColumns
+     */
+    public EventBucketColumns getEventBucketColumns(final long untilMillis) {
+        final Map<String, EventBucketColumns.NameToColumns> result = new TreeMap<>();
+        for (final Map.Entry<String, RRD> entry : rrdMap.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getEventBucketColumns(untilMillis));
+        }
+        return new EventBucketColumns(bucketWidthMilliseconds,
+                result.values().toArray(new EventBucketColumns.NameToColumns[result.size()]));
+    }
+
+    /**
+     * Get all buckets for all names in columnar form.
+     * <p>
+     * This returns the same data as {@link #getEventBuckets()}, but is much
+     * cheaper to create and serialize for large numbers of names.
+     *
+     * @see EventBucketColumns
+     */
+    public EventBucketColumns getEventBucketColumns() {
+        final Map<String, EventBucketColumns.NameToColumns> result = new TreeMap<>();
+        for (final Map.Entry<String, RRD> entry : rrdMap.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getEventBucketColumns());
+        }
+        return new EventBucketColumns(bucketWidthMilliseconds,
+                result.values().toArray(new EventBucketColumns.NameToColumns[result.size()]));
+    }
+
+    /**
+     * Copy all buckets for the given name into the given columns, which must
+     * have room for at least numberOfBuckets entries.
+     *
+     * @return number of buckets copied, or -1 if the name was not found.
+     */
+    int copyEventBuckets(final String name, final EventBucketColumns.NameToColumns target) {
+        final RRD source = rrdMap.get(name);
+        return source != null ? source.copyEventBucketsTo(target) : -1;
+    }
+
+    /**
+     * Copy all buckets up to untilMillis for the given name into the given
+     * columns, which must have room for at least numberOfBuckets entries.
+     *
+     * @return number of buckets copied, or -1 if the name was not found.
+     */
+    int copyEventBuckets(final String name, final EventBucketColumns.NameToColumns target, final long untilMillis) {
+        final RRD source = rrdMap.get(name);
+        return source != null ? source.copyEventBucketsTo(target, untilMillis) : -1;
+    }
+
+    int getNumberOfBuckets() {
+        return numberOfBuckets;
+    }
+
+    long getBucketWidth() {
+        return bucketWidthMilliseconds;
+    }
+
+    long getAlignmentOffset() {
+        return alignmentOffset;
+    }
+
+    int getDistinctCountPrecision() {
+        return distinctCountPrecision;
+    }
+
+    /**
+     * Get a snapshot of the memory held by this recorder. This is cheap, as
+     * it only reads counters that are updated when memory is allocated or
+     * released.
+     */
+    public RecorderFootprint getFootprint() {
+        return new RecorderFootprint(rrdMap.size(), groupMap.size(), footprint.getBuckets(), footprint.getBytes());
+    }
+
+    /**
+     * @return Estimated bytes held for the given name, or 0 if the name was
+     * not found.
+     * @see #getFootprint()
+     */
+    public long getEstimatedBytes(final String name) {
+        final RRD source = rrdMap.get(name);
+        return source != null ? source.getEstimatedBytes() : 0;
+    }
+
     /**
      * @return All names that have been used in recorded events so far (since
      * creation or the last clear() call).
@@ -192,10 +752,24 @@ public class RrdEventRecorder implements EventRecorder {
     }
 
     /**
-     * Clear history of events; forget everything recorded so far.
+     * Clear history of events; forget everything recorded so far, including
+     * all groups.
      */
     public void clear() {
-        rrdMap.clear();
+        clear(rrdMap);
+        synchronized (groupMap) {
+            clear(groupMap);
+        }
+    }
+
+    private void clear(final ConcurrentMap<String, RRD> map) {
+        for (final Map.Entry<String, RRD> entry : map.entrySet()) {
+            final RRD rrd = entry.getValue();
+            if (map.remove(entry.getKey(), rrd)) {
+                rrd.detachFootprint();
+                footprint.add(0, -rrd.getFixedBytes());
+            }
+        }
     }
 
-}
\ No newline at end of file
+}
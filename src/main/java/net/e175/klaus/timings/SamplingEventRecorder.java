@@ -0,0 +1,214 @@
+package net.e175.klaus.timings;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * SamplingEventRecorder is an EventRecorder that passes on only a sample of
+ * the Events it receives to an RrdEventRecorder, for call sites so hot that
+ * recording every single Event would be too expensive.
+ * <p>
+ * One in rate Events is sampled, either deterministically (every rate-th
+ * Event of a name per thread) or randomly with a probability of 1/rate. Each
+ * sampled Event is recorded with a count of rate, so counts in the target
+ * recorder are estimates of the actual counts, and means are estimates of
+ * the actual means.
+ * <p>
+ * Minimum and maximum values are tracked separately for all Events, sampled
+ * or not: each thread keeps the extremes seen per name since its last sample
+ * and records them with the next sample in the same bucket interval.
+ * Extremes seen after the last sample in an interval are lost, so extremes
+ * are approximate, too, but much closer to the actual ones than those of the
+ * samples alone.
+ * <p>
+ * The Events that are not sampled only cost a thread-local map lookup and a
+ * few comparisons; nothing is shared between threads. Each thread keeps
+ * state for at most maxNames names; beyond that, the least recently used
+ * name makes room, handing on its countdown so that names taking turns are
+ * still sampled at the given rate.
+ *
+ * @ThreadSafe
+ */
+public final class SamplingEventRecorder implements EventRecorder {
+    public static final int DEFAULT_MAX_NAMES = 64;
+
+    /**
+     * How Events are chosen for sampling.
+     */
+    public enum Mode {
+        /**
+         * Sample every rate-th Event of a name, per thread.
+         */
+        EVERY_NTH,
+        /**
+         * Sample each Event with a probability of 1/rate.
+         */
+        RANDOM
+    }
+
+    private final RrdEventRecorder target;
+    private final int rate;
+    private final Mode mode;
+    private final long bucketWidthMilliseconds;
+    private final long alignmentOffset;
+    private final int maxNames;
+
+    private final ThreadLocal<ThreadState> threadState = new ThreadLocal<ThreadState>() {
+        @Override
+        protected ThreadState initialValue() {
+            return new ThreadState();
+        }
+    };
+
+    /**
+     * Interval start of NameStates without extremes. Interval starts may be
+     * negative with an alignment offset.
+     */
+    private static final long NONE = Long.MIN_VALUE;
+
+    private static final class NameState {
+        private int countdown;
+        private long intervalStart = NONE;
+        private double minValue;
+        private double maxValue;
+    }
+
+    private static final class ThreadState {
+        // access order, so the eldest entry is the least recently used name
+        private final Map<String, NameState> names = new LinkedHashMap<>(16, 0.75f, true);
+        private final MutableBucket partial = new MutableBucket(0, 1, null);
+    }
+
+    /**
+     * Create a SamplingEventRecorder.
+     *
+     * @param target Recorder to pass sampled Events on to. Must not be null.
+     * @param rate   One in rate Events is sampled. Must be greater than 0; 1 passes on all Events as they are.
+     * @param mode   How Events are chosen for sampling. Must not be null.
+     */
+    public SamplingEventRecorder(final RrdEventRecorder target, final int rate, final Mode mode) {
+        this(target, rate, mode, DEFAULT_MAX_NAMES);
+    }
+
+    /**
+     * Create a SamplingEventRecorder.
+     *
+     * @param target   Recorder to pass sampled Events on to. Must not be null.
+     * @param rate     One in rate Events is sampled. Must be greater than 0; 1 passes on all Events as they are.
+     * @param mode     How Events are chosen for sampling. Must not be null.
+     * @param maxNames Maximum number of names each thread keeps state for. Must be greater than 0.
+     */
+    public SamplingEventRecorder(final RrdEventRecorder target, final int rate, final Mode mode,
+                                 final int maxNames) {
+        if (target == null || mode == null) {
+            throw new IllegalArgumentException("target and mode must not be null");
+        }
+        if (rate <= 0) {
+            throw new IllegalArgumentException("rate must be greater than 0");
+        }
+        if (maxNames <= 0) {
+            throw new IllegalArgumentException("maxNames must be greater than 0");
+        }
+
+        this.target = target;
+        this.rate = rate;
+        this.mode = mode;
+        this.bucketWidthMilliseconds = target.getBucketWidth();
+        this.alignmentOffset = target.getAlignmentOffset();
+        this.maxNames = maxNames;
+    }
+
+    /**
+     * Record an event, if it is sampled.
+     *
+     * @param event Event object. Null values are silently ignored.
+     */
+    @Override
+    public void record(final Event event) {
+        if (event == null) {
+            return;
+        }
+        if (rate == 1) {
+            target.record(event);
+            return;
+        }
+
+        final long triggerTime = event.getTriggerTime();
+        if (triggerTime < 0) {
+            throw new IllegalArgumentException(
+                    "negative trigger times are not correctly handled by current implementation");
+        }
+
+        final ThreadState thread = threadState.get();
+        final String name = event.getName();
+        NameState state = thread.names.get(name);
+        if (state == null) {
+            if (thread.names.size() >= maxNames) {
+                // reuse the least recently used state, keeping its countdown
+                final Iterator<NameState> eldest = thread.names.values().iterator();
+                state = eldest.next();
+                eldest.remove();
+                state.intervalStart = NONE;
+            } else {
+                state = new NameState();
+                state.countdown = rate;
+            }
+            thread.names.put(name, state);
+        }
+
+        final double value = event.getValue();
+        final long start = RRD.intervalStart(triggerTime, bucketWidthMilliseconds, alignmentOffset);
+        if (state.intervalStart != start) {
+            state.intervalStart = start;
+            state.minValue = value;
+            state.maxValue = value;
+        } else if (value < state.minValue) {
+            state.minValue = value;
+        } else if (value > state.maxValue) {
+            state.maxValue = value;
+        }
+
+        if (!isSampled(state)) {
+            return;
+        }
+
+        final MutableBucket partial = thread.partial;
+        partial.setInterval(start, start + bucketWidthMilliseconds);
+        partial.setValues(rate, state.minValue, value, state.maxValue);
+        state.intervalStart = NONE;
+        target.recordBucket(name, partial);
+    }
+
+    private boolean isSampled(final NameState state) {
+        if (mode == Mode.RANDOM) {
+            return ThreadLocalRandom.current().nextInt(rate) == 0;
+        }
+
+        if (--state.countdown > 0) {
+            return false;
+        }
+        state.countdown = rate;
+        return true;
+    }
+
+    /**
+     * @return The target recorder.
+     */
+    public RrdEventRecorder getTarget() {
+        return target;
+    }
+
+    public int getRate() {
+        return rate;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getMaxNames() {
+        return maxNames;
+    }
+}
@@ -0,0 +1,72 @@
+package net.e175.klaus.timings;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Records what an RrdEventRecorder itself costs as Events into the same
+ * recorder, using names starting with {@link RrdEventRecorder#SELF_PREFIX}.
+ * Values are in milliseconds, like those of TimedEvents. Trigger times are
+ * the start of the newest interval of the RRD that caused them, so they line
+ * up with the recorded data, and Events dropped for being too old show up in
+ * the current window instead of being dropped themselves.
+ * <p>
+ * RRDs of these names are not instrumented themselves, so recording never
+ * recurses more than one level.
+ *
+ * @ThreadSafe
+ */
+final class SelfInstrumentation {
+    /**
+     * One in SAMPLE_RATE record() calls is timed.
+     */
+    static final int SAMPLE_RATE = 1024;
+    /**
+     * Sampled monitor acquisitions taking at least this long count as
+     * contended.
+     */
+    static final long CONTENDED_NANOS = 1000;
+
+    static final String RECORD_LATENCY = RrdEventRecorder.SELF_PREFIX + "recordLatency";
+    static final String LOCK_WAIT = RrdEventRecorder.SELF_PREFIX + "lockWait";
+    static final String LISTENER = RrdEventRecorder.SELF_PREFIX + "listener";
+    static final String ROLLOVER = RrdEventRecorder.SELF_PREFIX + "rollover";
+    static final String TOO_OLD = RrdEventRecorder.SELF_PREFIX + "tooOld";
+
+    private static final double NANOS_TO_MILLIS = 1E6;
+
+    private final RrdEventRecorder recorder;
+
+    SelfInstrumentation(final RrdEventRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    boolean sample() {
+        return ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0;
+    }
+
+    void recordLatency(final long triggerTime, final long nanos) {
+        record(RECORD_LATENCY, triggerTime, nanos / NANOS_TO_MILLIS);
+    }
+
+    void lockWait(final long triggerTime, final long nanos) {
+        if (nanos >= CONTENDED_NANOS) {
+            record(LOCK_WAIT, triggerTime, nanos / NANOS_TO_MILLIS);
+        }
+    }
+
+    void listener(final long triggerTime, final long nanos) {
+        record(LISTENER, triggerTime, nanos / NANOS_TO_MILLIS);
+    }
+
+    void rollover(final long triggerTime) {
+        record(ROLLOVER, triggerTime, 1);
+    }
+
+    void tooOld(final long triggerTime) {
+        record(TOO_OLD, triggerTime, 1);
+    }
+
+    private void record(final String name, final long triggerTime, final double value) {
+        recorder.record(new MutableEvent().set(name, triggerTime, value));
+    }
+}
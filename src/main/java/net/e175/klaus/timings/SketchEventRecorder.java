@@ -0,0 +1,436 @@
+package net.e175.klaus.timings;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SketchEventRecorder is an EventRecorder for very large numbers of distinct
+ * names (e.g. one per customer), where keeping a full set of buckets per name
+ * would use too much memory.
+ * <p>
+ * Like RrdEventRecorder, it covers a time window of numberOfBuckets buckets of
+ * bucketWidthMilliseconds each (optionally shifted by an alignment offset),
+ * reaching back from the newest recorded Event.
+ * Instead of one bucket per name, each time bucket holds a count-min sketch of
+ * depth rows by width columns, each cell holding an Event count and a sum of
+ * values. Memory usage is therefore fixed at roughly
+ * numberOfBuckets * depth * width * 16 bytes, no matter how many names are
+ * recorded.
+ * <p>
+ * The price is accuracy: {@link #getEstimatedCount(String)} never
+ * underestimates. For each time bucket, the probability that it
+ * overestimates by more than 2/width of the bucket's total number of Events
+ * is at most 2^-depth. Names are hashed from their UTF-8 bytes with 64 bit
+ * MurmurHash3, so distinct names practically never share all rows.
+ * {@link #getEstimatedSum(String)} uses the sums of the sketch cells with the
+ * lowest counts and is only an approximation. Min, mean and max values are
+ * not available.
+ * <p>
+ * Names given as hot names (typically the few names that matter most) are
+ * not sketched, but passed on to an internal RrdEventRecorder, so they are
+ * tracked exactly and their buckets are available through
+ * {@link #getHotNameRecorder()}.
+ * <p>
+ * Events older than the window are silently dropped.
+ *
+ * @ThreadSafe
+ */
+public final class SketchEventRecorder implements EventRecorder {
+    public static final int DEFAULT_DEPTH = 4;
+    public static final int DEFAULT_WIDTH = 1024;
+
+    private final int numberOfBuckets;
+    private final long bucketWidthMilliseconds;
+    private final long alignmentOffset;
+    private final int depth;
+    private final int width;
+
+    private final Set<String> hotNames;
+    private final RrdEventRecorder hotNameRecorder;
+
+    private final SketchBucket[] buckets;
+    private final AtomicLong newestIntervalStart = new AtomicLong(NONE);
+
+    /**
+     * Interval start of empty buckets. Interval starts may be negative with
+     * an alignment offset.
+     */
+    private static final long NONE = Long.MIN_VALUE;
+
+    /**
+     * One time bucket of the ring. All access must be synchronized on the
+     * instance.
+     */
+    private static final class SketchBucket {
+        private long intervalStart = NONE;
+        private long totalCount;
+        private final long[] counts;
+        private final double[] sums;
+
+        private SketchBucket(final int cells) {
+            counts = new long[cells];
+            sums = new double[cells];
+        }
+
+        private void reset(final long start) {
+            intervalStart = start;
+            totalCount = 0;
+            Arrays.fill(counts, 0);
+            Arrays.fill(sums, 0);
+        }
+    }
+
+    /**
+     * Create a SketchEventRecorder with the default sketch depth and width.
+     *
+     * @param numberOfBuckets         Must be greater than 0.
+     * @param bucketWidthMilliseconds Must be greater than 0.
+     * @param hotNames                Names to track exactly. Ignored if null.
+     * @see #DEFAULT_DEPTH
+     * @see #DEFAULT_WIDTH
+     */
+    public SketchEventRecorder(final int numberOfBuckets, final long bucketWidthMilliseconds,
+                               final Set<String> hotNames) {
+        this(numberOfBuckets, bucketWidthMilliseconds, DEFAULT_DEPTH, DEFAULT_WIDTH, hotNames, 0);
+    }
+
+    /**
+     * Create a SketchEventRecorder.
+     *
+     * @param numberOfBuckets         Must be greater than 0.
+     * @param bucketWidthMilliseconds Must be greater than 0.
+     * @param depth                   Number of rows (hash functions) per sketch. Must be between 1 and 32.
+     * @param width                   Number of columns per sketch row. Must be greater than 0.
+     * @param hotNames                Names to track exactly. Ignored if null.
+     * @param alignmentOffsetMillis   Offset of bucket boundaries from multiples of the bucket width, as for
+     *                                RrdEventRecorder. Must be between 0 and bucketWidthMilliseconds - 1.
+     * @see RrdEventRecorder#alignmentOffsetFor(java.time.ZoneId, long)
+     */
+    public SketchEventRecorder(final int numberOfBuckets, final long bucketWidthMilliseconds,
+                               final int depth, final int width, final Set<String> hotNames,
+                               final long alignmentOffsetMillis) {
+        if (numberOfBuckets <= 0 || bucketWidthMilliseconds <= 0) {
+            throw new IllegalArgumentException("numberOfBuckets and bucketWidthMilliseconds must be greater than 0");
+        }
+        if (depth <= 0 || depth > 32 || width <= 0) {
+            throw new IllegalArgumentException("depth must be between 1 and 32, width must be greater than 0");
+        }
+        if ((long) depth * width > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("depth * width is too large");
+        }
+        if (alignmentOffsetMillis < 0 || alignmentOffsetMillis >= bucketWidthMilliseconds) {
+            throw new IllegalArgumentException(
+                    "alignmentOffsetMillis must be between 0 and bucketWidthMilliseconds - 1");
+        }
+
+        this.numberOfBuckets = numberOfBuckets;
+        this.bucketWidthMilliseconds = bucketWidthMilliseconds;
+        this.alignmentOffset = alignmentOffsetMillis;
+        this.depth = depth;
+        this.width = width;
+        this.hotNames = hotNames == null ? Collections.<String>emptySet()
+                : Collections.unmodifiableSet(new HashSet<>(hotNames));
+        this.hotNameRecorder = new RrdEventRecorder.Builder(numberOfBuckets, bucketWidthMilliseconds)
+                .alignmentOffset(alignmentOffsetMillis)
+                .build();
+
+        buckets = new SketchBucket[numberOfBuckets];
+        for (int i = 0; i < numberOfBuckets; i++) {
+            buckets[i] = new SketchBucket(depth * width);
+        }
+    }
+
+    /**
+     * Record an event.
+     *
+     * @param event Event object. Null values are silently ignored.
+     */
+    @Override
+    public void record(final Event event) {
+        if (event == null) {
+            return;
+        }
+
+        final String name = event.getName();
+        if (hotNames.contains(name)) {
+            hotNameRecorder.record(event);
+            return;
+        }
+
+        final long triggerTime = event.getTriggerTime();
+        if (triggerTime < 0) {
+            throw new IllegalArgumentException(
+                    "negative trigger times are not correctly handled by current implementation");
+        }
+
+        final long start = RRD.intervalStart(triggerTime, bucketWidthMilliseconds, alignmentOffset);
+        final long newest = advanceNewestIntervalStart(start);
+        if (start <= newest - numberOfBuckets * bucketWidthMilliseconds) {
+            return; // too old for the window
+        }
+
+        final SketchBucket bucket = buckets[(int) Math.floorMod(
+                Math.floorDiv(start - alignmentOffset, bucketWidthMilliseconds), (long) numberOfBuckets)];
+        final long hash = hash(name);
+        final double value = event.getValue();
+        synchronized (bucket) {
+            if (bucket.intervalStart < start) {
+                bucket.reset(start);
+            } else if (bucket.intervalStart > start) {
+                return; // slot has been taken over by a newer interval meanwhile
+            }
+
+            bucket.totalCount++;
+            for (int row = 0; row < depth; row++) {
+                final int cell = cell(hash, row);
+                bucket.counts[cell]++;
+                bucket.sums[cell] += value;
+            }
+        }
+    }
+
+    private long advanceNewestIntervalStart(final long start) {
+        while (true) {
+            final long current = newestIntervalStart.get();
+            if (current >= start || newestIntervalStart.compareAndSet(current, start)) {
+                return Math.max(current, start);
+            }
+        }
+    }
+
+    /**
+     * @return Estimated number of Events recorded for name within the window.
+     * Exact for hot names.
+     */
+    public long getEstimatedCount(final String name) {
+        if (hotNames.contains(name)) {
+            long count = 0;
+            for (final EventBucket b : hotNameRecorder.getEventBuckets(name)) {
+                count += b.getCount();
+            }
+            return count;
+        }
+
+        final long hash = hash(name);
+        final long oldestStart = getOldestIntervalStart();
+        long count = 0;
+        for (final SketchBucket bucket : buckets) {
+            synchronized (bucket) {
+                if (bucket.intervalStart >= oldestStart) {
+                    count += bucket.counts[minimumCell(bucket, hash)];
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return Estimated sum of the values of all Events recorded for name
+     * within the window. Exact (up to rounding) for hot names.
+     */
+    public double getEstimatedSum(final String name) {
+        if (hotNames.contains(name)) {
+            double sum = 0;
+            for (final EventBucket b : hotNameRecorder.getEventBuckets(name)) {
+                if (b.getCount() > 0) {
+                    sum += b.getMeanValue() * b.getCount();
+                }
+            }
+            return sum;
+        }
+
+        final long hash = hash(name);
+        final long oldestStart = getOldestIntervalStart();
+        double sum = 0;
+        for (final SketchBucket bucket : buckets) {
+            synchronized (bucket) {
+                if (bucket.intervalStart >= oldestStart) {
+                    sum += bucket.sums[minimumCell(bucket, hash)];
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @return Number of sketched (i.e. not hot) Events recorded within the
+     * window.
+     */
+    public long getTotalCount() {
+        final long oldestStart = getOldestIntervalStart();
+        long count = 0;
+        for (final SketchBucket bucket : buckets) {
+            synchronized (bucket) {
+                if (bucket.intervalStart >= oldestStart) {
+                    count += bucket.totalCount;
+                }
+            }
+        }
+        return count;
+    }
+
+    private long getOldestIntervalStart() {
+        final long newest = newestIntervalStart.get();
+        return newest == NONE ? Long.MAX_VALUE : newest - (numberOfBuckets - 1) * bucketWidthMilliseconds;
+    }
+
+    /**
+     * @return Index of the cell for hash with the lowest count, i.e. the
+     * fewest collisions with other names.
+     */
+    private int minimumCell(final SketchBucket bucket, final long hash) {
+        int result = cell(hash, 0);
+        for (int row = 1; row < depth; row++) {
+            final int cell = cell(hash, row);
+            if (bucket.counts[cell] < bucket.counts[result]) {
+                result = cell;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Derives the row's hash function from two halves of one 64 bit hash
+     * (Kirsch/Mitzenmacher), so each Event is hashed only once.
+     */
+    private int cell(final long hash, final int row) {
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32) | 1;
+        final int column = ((h1 + row * h2) & Integer.MAX_VALUE) % width;
+        return row * width + column;
+    }
+
+    /**
+     * @return The first 64 bits of MurmurHash3 (x64, 128 bit variant, seed 0)
+     * of name's UTF-8 bytes.
+     */
+    static long hash(final String name) {
+        final byte[] data = name == null ? new byte[0] : name.getBytes(StandardCharsets.UTF_8);
+        final long c1 = 0x87c37b91114253d5L;
+        final long c2 = 0x4cf5ad432745937fL;
+        long h1 = 0;
+        long h2 = 0;
+
+        final int blocks = data.length >>> 4;
+        for (int i = 0; i < blocks; i++) {
+            long k1 = littleEndianLong(data, i << 4);
+            long k2 = littleEndianLong(data, (i << 4) + 8);
+
+            k1 *= c1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= c2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= c2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= c1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        final int tail = blocks << 4;
+        long k1 = 0;
+        long k2 = 0;
+        for (int i = data.length - tail - 1; i >= 8; i--) {
+            k2 = (k2 << 8) | (data[tail + i] & 0xffL);
+        }
+        for (int i = Math.min(data.length - tail, 8) - 1; i >= 0; i--) {
+            k1 = (k1 << 8) | (data[tail + i] & 0xffL);
+        }
+        if (data.length - tail > 8) {
+            k2 *= c2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= c1;
+            h2 ^= k2;
+        }
+        if (data.length - tail > 0) {
+            k1 *= c1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= c2;
+            h1 ^= k1;
+        }
+
+        h1 ^= data.length;
+        h2 ^= data.length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        return h1;
+    }
+
+    private static long littleEndianLong(final byte[] data, final int offset) {
+        long result = 0;
+        for (int i = 7; i >= 0; i--) {
+            result = (result << 8) | (data[offset + i] & 0xffL);
+        }
+        return result;
+    }
+
+    private static long fmix(final long k) {
+        long h = k;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @return Recorder holding the exact buckets of all hot names.
+     */
+    public RrdEventRecorder getHotNameRecorder() {
+        return hotNameRecorder;
+    }
+
+    /**
+     * @return Unmodifiable set of hot names.
+     */
+    public Set<String> getHotNames() {
+        return hotNames;
+    }
+
+    public int getNumberOfBuckets() {
+        return numberOfBuckets;
+    }
+
+    public long getBucketWidth() {
+        return bucketWidthMilliseconds;
+    }
+
+    public long getAlignmentOffset() {
+        return alignmentOffset;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Remove all recorded data.
+     */
+    public void clear() {
+        for (final SketchBucket bucket : buckets) {
+            synchronized (bucket) {
+                bucket.reset(NONE);
+            }
+        }
+        newestIntervalStart.set(NONE);
+        hotNameRecorder.clear();
+    }
+}
@@ -46,6 +46,17 @@ public final class TimedEvent implements Event, Serializable {
         name = DEFAULT_NAME;
     }
 
+    /**
+     * Create a TimedEvent from given times instead of the system clocks, e.g.
+     * for a simulated clock in tests.
+     */
+    TimedEvent(final long triggerMilliseconds, final long elapsedNanoseconds, final String name) {
+        this.triggerMilliseconds = triggerMilliseconds;
+        this.elapsedNanoseconds = elapsedNanoseconds;
+        this.elapsedMilliseconds = elapsedNanoseconds / NANOS_TO_MILLIS;
+        this.name = name;
+    }
+
     long getElapsedNanoseconds() {
         return elapsedNanoseconds;
     }
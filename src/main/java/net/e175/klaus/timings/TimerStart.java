@@ -19,6 +19,14 @@ public final class TimerStart implements Serializable {
         startNanoseconds = System.nanoTime();
     }
 
+    /**
+     * Record the given time instead of System.nanoTime(), e.g. for a
+     * simulated clock in tests.
+     */
+    TimerStart(final long startNanoseconds) {
+        this.startNanoseconds = startNanoseconds;
+    }
+
     /**
      * @return Object's creation time as measured by System.nanoTime().
      * @see java.lang.System#nanoTime()
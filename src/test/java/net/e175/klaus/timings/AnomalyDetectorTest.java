@@ -0,0 +1,132 @@
+package net.e175.klaus.timings;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AnomalyDetectorTest {
+
+    public static final double MAXDELTA = 1e-6;
+
+    static class CollectingListener implements AnomalyListener {
+        final List<String> names = new ArrayList<>();
+        final List<EventBucket> buckets = new ArrayList<>();
+        final List<Double> baselineMeans = new ArrayList<>();
+
+        @Override
+        public synchronized void anomaly(final String name, final EventBucket bucket, final double baselineMean,
+                                         final double baselineStdDev) {
+            names.add(name);
+            buckets.add(bucket);
+            baselineMeans.add(baselineMean);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMissingListener() {
+        new AnomalyDetector(null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSillySmoothing() {
+        new AnomalyDetector(new CollectingListener(), 3, 1.5, 10, 10, null);
+    }
+
+    /**
+     * Record count events per second with the given mean latency plus some
+     * noise, for the given seconds starting at startSecond.
+     */
+    private static void recordSeconds(final RrdEventRecorder recorder, final Random random, final long startSecond,
+                                      final int seconds, final double meanLatency) {
+        for (long s = startSecond; s < startSecond + seconds; s++) {
+            for (int i = 0; i < 20; i++) {
+                final double value = meanLatency * (0.5 + random.nextDouble());
+                recorder.record(new TestEvent(s * RrdEventRecorder.SECOND + i, value, "db.select"));
+            }
+        }
+    }
+
+    @Test
+    public void reportsRegressionUntilAdapted() {
+        final CollectingListener anomalies = new CollectingListener();
+        final AnomalyDetector detector = new AnomalyDetector(anomalies);
+        final RrdEventRecorder recorder = new RrdEventRecorder(60, RrdEventRecorder.SECOND, detector);
+        final Random random = new Random(3);
+
+        recordSeconds(recorder, random, 0, 300, 10);
+        assertTrue(anomalies.buckets.isEmpty());
+        assertEquals(10, detector.getBaselineMean("db.select"), 1);
+
+        // latency triples for good: reported as soon as the first slow bucket is superseded, then adapted to
+        recordSeconds(recorder, random, 300, 100, 30);
+        assertTrue(anomalies.buckets.size() > 0);
+        assertEquals("db.select", anomalies.names.get(0));
+        assertEquals(300 * RrdEventRecorder.SECOND, anomalies.buckets.get(0).getIntervalStart());
+        assertEquals(10, anomalies.baselineMeans.get(0), 1);
+        for (final EventBucket anomalous : anomalies.buckets) {
+            assertTrue(anomalous.getIntervalStart() < 305 * RrdEventRecorder.SECOND);
+        }
+        assertEquals(30, detector.getBaselineMean("db.select"), 2);
+    }
+
+    @Test
+    public void waitsForWarmup() {
+        final CollectingListener anomalies = new CollectingListener();
+        final AnomalyDetector detector = new AnomalyDetector(anomalies, 3, 0.1, 5, 1, null);
+
+        detector.supersededBucket("A", bucket(0, 10));
+        detector.supersededBucket("A", bucket(1, 1000));
+        assertTrue(anomalies.buckets.isEmpty());
+        assertEquals(109, detector.getBaselineMean("A"), MAXDELTA);
+        assertTrue(Double.isNaN(detector.getBaselineMean("B")));
+    }
+
+    @Test
+    public void ignoresSmallBucketsAndDrops() {
+        final CollectingListener anomalies = new CollectingListener();
+        final AnomalyDetector detector = new AnomalyDetector(anomalies, 3, 0.1, 1, 5, null);
+
+        for (int i = 0; i < 10; i++) {
+            detector.supersededBucket("A", bucket(i, 10));
+        }
+        // too few events to count
+        final MutableBucket small = bucket(10, 1000);
+        small.setValues(4, 1000, 1000, 1000);
+        detector.supersededBucket("A", small);
+        // faster than usual isn't a regression
+        detector.supersededBucket("A", bucket(11, 1));
+        assertTrue(anomalies.buckets.isEmpty());
+
+        detector.supersededBucket("A", bucket(12, 20));
+        assertEquals(1, anomalies.buckets.size());
+    }
+
+    @Test
+    public void passesBucketsOn() {
+        final RrdTest.SimpleListener next = new RrdTest.SimpleListener();
+        final CollectingListener anomalies = new CollectingListener();
+        final AnomalyDetector detector = new AnomalyDetector(anomalies, 3, 0.1, 0, 0, next);
+        final RrdEventRecorder recorder = new RrdEventRecorder(10, RrdEventRecorder.SECOND, detector);
+
+        recorder.record(new TestEvent(1000, 1, "A"));
+        recorder.record(new TestEvent(2000, 1, "A"));
+        recorder.record(new TestEvent(3000, 1, "A"));
+        assertEquals(2, next.count);
+        assertTrue(anomalies.buckets.isEmpty());
+
+        detector.clear();
+        assertTrue(Double.isNaN(detector.getBaselineStdDev("A")));
+    }
+
+    private static MutableBucket bucket(final long second, final double value) {
+        final MutableBucket bucket = new MutableBucket(second * RrdEventRecorder.SECOND,
+                (second + 1) * RrdEventRecorder.SECOND, null);
+        bucket.setValues(10, value, value, value);
+        return bucket;
+    }
+}
@@ -0,0 +1,125 @@
+package net.e175.klaus.timings;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BucketChunkCodecTest {
+
+    private static final long WIDTH = RrdEventRecorder.MINUTE;
+
+    private static MutableBucket bucket(final long index, final long count, final double min, final double mean,
+                                        final double max, final long version) {
+        final MutableBucket bucket = new MutableBucket(index * WIDTH, (index + 1) * WIDTH, null);
+        bucket.setValues(count, min, mean, max);
+        bucket.version = version;
+        return bucket;
+    }
+
+    private static void assertSameBucket(final MutableBucket expected, final MutableBucket actual) {
+        assertEquals(expected.getIntervalStart(), actual.getIntervalStart());
+        assertEquals(expected.getIntervalEnd(), actual.getIntervalEnd());
+        assertEquals(expected.getCount(), actual.getCount());
+        assertEquals(Double.doubleToRawLongBits(expected.getMinValue()),
+                Double.doubleToRawLongBits(actual.getMinValue()));
+        assertEquals(Double.doubleToRawLongBits(expected.getMeanValue()),
+                Double.doubleToRawLongBits(actual.getMeanValue()));
+        assertEquals(Double.doubleToRawLongBits(expected.getMaxValue()),
+                Double.doubleToRawLongBits(actual.getMaxValue()));
+        assertEquals(expected.version, actual.version);
+    }
+
+    @Test
+    public void roundTripsRandomBuckets() {
+        final Random random = new Random(7);
+        for (int round = 0; round < 200; round++) {
+            final MutableBucket[] chunk = new MutableBucket[1 + random.nextInt(64)];
+            for (int i = 0; i < chunk.length; i++) {
+                if (random.nextInt(4) != 0) {
+                    final double a = random.nextGaussian() * 1000;
+                    final double b = random.nextInt(3) == 0 ? a : random.nextDouble();
+                    chunk[i] = bucket(100000 + round * 64 + i - (random.nextInt(8) == 0 ? chunk.length : 0),
+                            random.nextInt(5) == 0 ? random.nextLong() & Long.MAX_VALUE : random.nextInt(100),
+                            Math.min(a, b), (a + b) / 2, Math.max(a, b), random.nextInt(3) * 1000000L);
+                }
+            }
+
+            final long[] encoded = BucketChunkCodec.encode(chunk, 0, WIDTH);
+            final MutableBucket[] decoded = new MutableBucket[chunk.length];
+            int used = 0;
+            for (MutableBucket b : chunk) {
+                used += b != null ? 1 : 0;
+            }
+            assertEquals(used, BucketChunkCodec.decode(encoded, WIDTH, null, decoded));
+            for (int i = 0; i < chunk.length; i++) {
+                if (chunk[i] == null) {
+                    assertNull(decoded[i]);
+                } else {
+                    assertSameBucket(chunk[i], decoded[i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void dropsBucketsOutsideWindow() {
+        final MutableBucket[] chunk = new MutableBucket[4];
+        chunk[0] = bucket(10, 1, 1, 1, 1, 0);
+        chunk[1] = bucket(11, 1, 1, 1, 1, 0);
+        chunk[3] = bucket(13, 2, 1, 2, 3, 1);
+
+        final MutableBucket[] decoded = new MutableBucket[4];
+        assertEquals(2, BucketChunkCodec.decode(BucketChunkCodec.encode(chunk, 11 * WIDTH, WIDTH), WIDTH, null,
+                decoded));
+        assertNull(decoded[0]);
+        assertSameBucket(chunk[1], decoded[1]);
+        assertNull(decoded[2]);
+        assertSameBucket(chunk[3], decoded[3]);
+    }
+
+    @Test
+    public void reusesPooledBuckets() {
+        final MutableBucket[] chunk = {bucket(5, 1, 2, 2, 2, 0)};
+        final MutableBucket[] pool = {new MutableBucket(0, 1, null)};
+        final MutableBucket[] decoded = new MutableBucket[1];
+        BucketChunkCodec.decode(BucketChunkCodec.encode(chunk, 0, WIDTH), WIDTH, pool, decoded);
+        assertSame(pool[0], decoded[0]);
+        assertSameBucket(chunk[0], decoded[0]);
+    }
+
+    @Test
+    public void compressesRegularBucketsWell() {
+        final MutableBucket[] chunk = new MutableBucket[64];
+        for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = bucket(1000 + i, 60, 1.0, 2.5 + (i % 4) * 0.25, 10.0, 3);
+        }
+        final long[] encoded = BucketChunkCodec.encode(chunk, 0, WIDTH);
+        // 72 bytes per bucket object uncompressed
+        assertTrue(encoded.length * 8 < 64 * 72 / 4);
+    }
+
+    @Test
+    public void roundTripsOffsetBuckets() {
+        final long offset = 17 * RrdEventRecorder.SECOND;
+        final MutableBucket[] chunk = new MutableBucket[8];
+        for (int i = 0; i < chunk.length; i += 2) {
+            // the first one starts before the epoch
+            chunk[i] = new MutableBucket((i - 1) * WIDTH + offset, i * WIDTH + offset, null);
+            chunk[i].setValues(i + 1, i, i, i);
+        }
+        final MutableBucket[] decoded = new MutableBucket[chunk.length];
+        BucketChunkCodec.decode(BucketChunkCodec.encode(chunk, Long.MIN_VALUE, WIDTH), WIDTH, null, decoded);
+        for (int i = 0; i < chunk.length; i++) {
+            if (chunk[i] == null) {
+                assertNull(decoded[i]);
+            } else {
+                assertSameBucket(chunk[i], decoded[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package net.e175.klaus.timings;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class BucketLogTest {
+
+    public static final double MAXDELTA = 1e-6;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<String> readAll(final BucketLog log, final List<EventBucket> buckets) throws IOException {
+        final List<String> names = new ArrayList<>();
+        for (final BucketLogSegment segment : log.getSegments()) {
+            segment.forEachRecord(Long.MIN_VALUE, Long.MAX_VALUE, BucketLogSegment.ALL_NAMES,
+                    new BucketLogSegment.RecordVisitor() {
+                @Override
+                public void visit(final int nameId, final MutableBucket bucket) {
+                    names.add(log.getName(nameId));
+                    buckets.add(new ImmutableBucket(bucket));
+                }
+            });
+        }
+        return names;
+    }
+
+    private static MutableBucket bucket(final long start, final long end, final long count, final double min,
+                                        final double mean, final double max) {
+        final MutableBucket bucket = new MutableBucket(start, end, null);
+        bucket.setValues(count, min, mean, max);
+        return bucket;
+    }
+
+    private static long totalCount(final List<EventBucket> buckets) {
+        long count = 0;
+        for (final EventBucket b : buckets) {
+            count += b.getCount();
+        }
+        return count;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSillySegmentSize() throws IOException {
+        new BucketLog(folder.getRoot(), 0, 1, 0);
+    }
+
+    @Test
+    public void writesSupersededBucketsOfRecorder() throws IOException {
+        final BucketLog log = new BucketLog(folder.getRoot());
+        final RrdEventRecorder recorder = new RrdEventRecorder(2, RrdEventRecorder.SECOND, log);
+
+        for (int i = 0; i < 10; i++) {
+            recorder.record(new TestEvent(1000 + i * 1000, i, "A"));
+            recorder.record(new TestEvent(1500 + i * 1000, i, "B"));
+        }
+        log.flush();
+
+        final List<EventBucket> buckets = new ArrayList<>();
+        final List<String> names = readAll(log, buckets);
+        assertEquals(18, buckets.size());
+        int a = 0;
+        for (final String name : names) {
+            a += "A".equals(name) ? 1 : 0;
+        }
+        assertEquals(9, a);
+        assertEquals(18, totalCount(buckets));
+        assertEquals(1000, buckets.get(0).getIntervalStart());
+        assertEquals(0, buckets.get(0).getMeanValue(), MAXDELTA);
+        assertEquals(0, log.getWriteErrors());
+        log.close();
+    }
+
+    @Test
+    public void survivesReopeningWithoutIndex() throws IOException {
+        BucketLog log = new BucketLog(folder.getRoot(), 1000, 1, 0);
+        log.supersededBucket("A", bucket(1000, 2000, 3, 1, 2, 3));
+        log.supersededBucket("B", bucket(2000, 3000, 1, 5, 5, 5));
+        log.supersededBucket("A", bucket(3000, 4000, 0, 0, 0, 0));
+        // not closed, as if the process had died
+        assertEquals(1, log.getSegmentCount());
+
+        // a partially written record is dropped
+        final File segment = log.getSegments().get(0).getFile();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() + 10);
+        }
+
+        log = new BucketLog(folder.getRoot(), 1000, 1, 0);
+        final List<EventBucket> buckets = new ArrayList<>();
+        final List<String> names = readAll(log, buckets);
+        assertEquals(2, buckets.size());
+        assertEquals("A", names.get(0));
+        assertEquals("B", names.get(1));
+        assertEquals(3, buckets.get(0).getCount());
+        assertEquals(2, buckets.get(0).getMeanValue(), MAXDELTA);
+        assertEquals(5, buckets.get(1).getMaxValue(), MAXDELTA);
+
+        // names keep their IDs, new ones are appended
+        log.supersededBucket("C", bucket(4000, 5000, 1, 1, 1, 1));
+        assertEquals(0, log.getNameId("A"));
+        assertEquals(2, log.getNameId("C"));
+        log.close();
+    }
+
+    @Test
+    public void batchesWrites() throws IOException {
+        final BucketLog log = new BucketLog(folder.getRoot(), 1000, 10, RrdEventRecorder.HOUR);
+        for (int i = 0; i < 9; i++) {
+            log.supersededBucket("A", bucket(i * 1000, i * 1000 + 1000, 1, 1, 1, 1));
+        }
+        assertEquals(0, log.getSegmentCount());
+
+        log.supersededBucket("A", bucket(9000, 10000, 1, 1, 1, 1));
+        assertEquals(1, log.getSegmentCount());
+        assertEquals(10, log.getSegments().get(0).getRecordCount());
+        log.close();
+    }
+
+    @Test
+    public void rollsSegments() throws IOException {
+        BucketLog log = new BucketLog(folder.getRoot(), 4, 3, RrdEventRecorder.HOUR);
+        for (int i = 0; i < 10; i++) {
+            log.supersededBucket("A", bucket(i * 1000, i * 1000 + 1000, 1, i, i, i));
+        }
+        log.close();
+
+        log = new BucketLog(folder.getRoot(), 4, 3, RrdEventRecorder.HOUR);
+        final List<BucketLogSegment> segments = log.getSegments();
+        assertEquals(3, segments.size());
+        assertEquals(4, segments.get(0).getRecordCount());
+        assertEquals(2, segments.get(2).getRecordCount());
+        assertEquals(4000, segments.get(1).getMinIntervalStart());
+        assertEquals(8000, segments.get(1).getMaxIntervalEnd());
+        assertTrue(segments.get(0).getIndexFile().isFile());
+        log.close();
+    }
+
+    @Test
+    public void skipsBlocksOutsideTimeRange() throws IOException {
+        final BucketLog log = new BucketLog(folder.getRoot(), 1000, 1000, 0);
+        for (int i = 0; i < 3 * BucketLogSegment.BLOCK_RECORDS; i++) {
+            log.supersededBucket("A", bucket(i * 1000, i * 1000 + 1000, 1, 1, 1, 1));
+        }
+        log.flush();
+
+        final List<Long> starts = new ArrayList<>();
+        log.getSegments().get(0).forEachRecord(BucketLogSegment.BLOCK_RECORDS * 1000L + 500,
+                BucketLogSegment.BLOCK_RECORDS * 1000L + 1500, BucketLogSegment.ALL_NAMES,
+                new BucketLogSegment.RecordVisitor() {
+                    @Override
+                    public void visit(final int nameId, final MutableBucket bucket) {
+                        starts.add(bucket.getIntervalStart());
+                    }
+                });
+        assertEquals(BucketLogSegment.BLOCK_RECORDS, starts.size());
+        assertEquals(BucketLogSegment.BLOCK_RECORDS * 1000L, (long) starts.get(0));
+        log.close();
+    }
+
+    @Test
+    public void readsEventBucketsOfOneName() throws IOException {
+        final BucketLog log = new BucketLog(folder.getRoot(), 1000, 1000, 0);
+        for (int i = 0; i < 2 * BucketLogSegment.BLOCK_RECORDS; i++) {
+            log.supersededBucket("A", bucket(i * 1000, i * 1000 + 1000, 1, i, i, i));
+        }
+        log.supersededBucket("B", bucket(500 * 1000, 501 * 1000, 1, 1, 1, 1));
+        log.supersededBucket("A", bucket(1000, 2000, 1, 3, 3, 3)); // late update
+        log.flush();
+
+        final List<EventBucket> buckets = log.getEventBuckets("A", 500, 3000);
+        assertEquals(3, buckets.size());
+        assertEquals(0, buckets.get(0).getIntervalStart());
+        assertEquals(2, buckets.get(1).getCount());
+        assertEquals(3, buckets.get(1).getMaxValue(), MAXDELTA);
+        assertEquals(2000, buckets.get(2).getIntervalStart());
+
+        assertEquals(1, log.getEventBuckets("B", 0, Long.MAX_VALUE).size());
+        assertTrue(log.getEventBuckets("B", 0, 500 * 1000).isEmpty());
+        assertTrue(log.getEventBuckets("C", 0, Long.MAX_VALUE).isEmpty());
+        log.close();
+    }
+
+    @Test
+    public void readsCompactedEventBuckets() throws IOException {
+        final BucketLog log = new BucketLog(folder.getRoot(), 10, 1, 0);
+        for (int i = 0; i < 120; i++) {
+            log.supersededBucket("A", bucket(i * 1000, i * 1000 + 1000, 1, 1, 1, 1));
+        }
+        log.compact(100 * 1000, RrdEventRecorder.MINUTE);
+
+        final List<EventBucket> buckets = log.getEventBuckets("A", 0, RrdEventRecorder.HOUR);
+        assertEquals(2 + 20, buckets.size());
+        assertEquals(RrdEventRecorder.MINUTE, buckets.get(0).getIntervalEnd());
+        assertEquals(60, buckets.get(0).getCount());
+        // the second minute is split between compacted and not yet compacted segments
+        assertEquals(RrdEventRecorder.MINUTE, buckets.get(1).getIntervalStart());
+        assertEquals(40, buckets.get(1).getCount());
+        assertEquals(100 * 1000, buckets.get(2).getIntervalStart());
+        assertEquals(119 * 1000, buckets.get(21).getIntervalStart());
+        log.close();
+    }
+
+    @Test
+    public void compactsOldSegments() throws IOException {
+        BucketLog log = new BucketLog(folder.getRoot(), 10, 1, 0);
+        for (int i = 0; i < 60; i++) {
+            log.supersededBucket("A", bucket(i * 1000, i * 1000 + 1000, 2, i, i, i));
+            log.supersededBucket("B", bucket(i * 1000, i * 1000 + 1000, 1, 1, 1, 1));
+        }
+        log.flush();
+        assertEquals(12, log.getSegmentCount());
+
+        // the active segment is never compacted
+        assertEquals(11, log.compact(RrdEventRecorder.HOUR, RrdEventRecorder.MINUTE));
+        assertEquals(2, log.getSegmentCount());
+        // nothing left to do
+        assertEquals(0, log.compact(RrdEventRecorder.HOUR, RrdEventRecorder.MINUTE));
+
+        List<EventBucket> buckets = new ArrayList<>();
+        List<String> names = readAll(log, buckets);
+        assertEquals(2 + 10, buckets.size());
+        assertEquals(180, totalCount(buckets));
+        final EventBucket a = buckets.get(names.indexOf("A"));
+        assertEquals(0, a.getIntervalStart());
+        assertEquals(RrdEventRecorder.MINUTE, a.getIntervalEnd());
+        assertEquals(110, a.getCount());
+        assertEquals(0, a.getMinValue(), MAXDELTA);
+        assertEquals(54, a.getMaxValue(), MAXDELTA);
+        assertEquals(27, a.getMeanValue(), MAXDELTA);
+        log.close();
+
+        // replaced segments stay deleted
+        log = new BucketLog(folder.getRoot(), 10, 1, 0);
+        buckets = new ArrayList<>();
+        readAll(log, buckets);
+        assertEquals(180, totalCount(buckets));
+        assertEquals(2, log.getSegmentCount());
+        log.close();
+    }
+
+    @Test
+    public void finishesInterruptedCompaction() throws IOException {
+        BucketLog log = new BucketLog(folder.getRoot(), 2, 1, 0);
+        for (int i = 0; i < 4; i++) {
+            log.supersededBucket("A", bucket(i * 1000, i * 1000 + 1000, 1, 1, 1, 1));
+        }
+        log.close();
+        final List<BucketLogSegment> before = log.getSegments();
+        assertEquals(2, before.size());
+
+        // keep copies of the inputs, as if the process had died before deleting them
+        final File dir = folder.getRoot();
+        final List<byte[]> copies = new ArrayList<>();
+        for (final BucketLogSegment s : before) {
+            copies.add(Files.readAllBytes(s.getFile().toPath()));
+        }
+        log = new BucketLog(dir, 2, 1, 0);
+        assertEquals(2, log.compact(RrdEventRecorder.HOUR, RrdEventRecorder.MINUTE));
+        log.close();
+        for (int i = 0; i < before.size(); i++) {
+            Files.write(before.get(i).getFile().toPath(), copies.get(i));
+        }
+
+        log = new BucketLog(dir, 2, 1, 0);
+        final List<EventBucket> buckets = new ArrayList<>();
+        readAll(log, buckets);
+        assertEquals(4, totalCount(buckets));
+        assertFalse(before.get(0).getFile().exists());
+        log.close();
+    }
+
+    @Test
+    public void countsWriteErrorsInsteadOfThrowing() throws IOException {
+        final BucketLog log = new BucketLog(folder.getRoot(), 10, 1, 0);
+        log.close();
+
+        log.supersededBucket("A", bucket(1000, 2000, 1, 1, 1, 1));
+        assertEquals(1, log.getWriteErrors());
+        assertNotNull(log.getLastError());
+    }
+}
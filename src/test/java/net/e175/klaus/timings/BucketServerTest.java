@@ -0,0 +1,230 @@
+package net.e175.klaus.timings;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BucketServerTest {
+
+    public static final double MAXDELTA = 1e-6;
+
+    private BucketServer server;
+    private InetSocketAddress address;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new BucketServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        address = server.getLocalAddress();
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        server.close();
+    }
+
+    /**
+     * Ship and poll until everything has arrived.
+     */
+    private void transfer(final BucketClient client, final int expectedBuckets) throws IOException {
+        int received = 0;
+        boolean shipped = false;
+        for (int i = 0; i < 1000 && (!shipped || received < expectedBuckets); i++) {
+            shipped = client.ship();
+            received += server.poll(10);
+        }
+        assertTrue(shipped);
+        assertEquals(expectedBuckets, received);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMissingNode() {
+        new BucketClient(new RrdEventRecorder(), address, null);
+    }
+
+    @Test
+    public void shipsBucketsOverLoopback() throws IOException {
+        final RrdEventRecorder recorder = new RrdEventRecorder(10, RrdEventRecorder.SECOND);
+        recorder.record(new TestEvent(1000, 1, "A"));
+        recorder.record(new TestEvent(2000, 2, "A"));
+        recorder.record(new TestEvent(2000, 3, "B"));
+
+        try (BucketClient client = new BucketClient(recorder, address, "node-1")) {
+            transfer(client, 3);
+            assertEquals(recorder.getEventBuckets().toString(),
+                    server.getRecorder("node-1").getEventBuckets().toString());
+
+            // only the modified bucket is shipped again, and replaces the previous state
+            recorder.record(new TestEvent(2500, 5, "A"));
+            final long bytesBefore = client.getBytesShipped();
+            transfer(client, 1);
+            assertTrue(client.getBytesShipped() - bytesBefore < 64);
+            assertEquals(recorder.getEventBuckets().toString(),
+                    server.getRecorder("node-1").getEventBuckets().toString());
+            List<EventBucket> buckets = server.getEventBuckets("A");
+            assertEquals(2, buckets.size());
+            assertEquals(2, buckets.get(1).getCount());
+            assertEquals(3.5, buckets.get(1).getMeanValue(), MAXDELTA);
+        }
+    }
+
+    @Test
+    public void combinesNodes() throws IOException {
+        final RrdEventRecorder first = new RrdEventRecorder(10, RrdEventRecorder.SECOND);
+        final RrdEventRecorder second = new RrdEventRecorder(10, RrdEventRecorder.SECOND);
+        first.record(new TestEvent(1000, 2, "A"));
+        second.record(new TestEvent(1500, 4, "A"));
+        second.record(new TestEvent(2000, 8, "A"));
+
+        try (BucketClient client1 = new BucketClient(first, address, "node-1");
+             BucketClient client2 = new BucketClient(second, address, "node-2")) {
+            transfer(client1, 1);
+            transfer(client2, 2);
+        }
+
+        assertEquals(2, server.getNodes().size());
+        final List<EventBucket> buckets = server.getEventBuckets("A");
+        assertEquals(2, buckets.size());
+        assertEquals(1000, buckets.get(0).getIntervalStart());
+        assertEquals(2, buckets.get(0).getCount());
+        assertEquals(3, buckets.get(0).getMeanValue(), MAXDELTA);
+        assertEquals(8, buckets.get(1).getMaxValue(), MAXDELTA);
+        assertTrue(server.getEventBuckets("B").isEmpty());
+        assertNull(server.getRecorder("node-3"));
+    }
+
+    @Test
+    public void resendsEverythingAfterReconnect() throws IOException {
+        final RrdEventRecorder recorder = new RrdEventRecorder.Builder(10, RrdEventRecorder.SECOND)
+                .alignmentOffset(100)
+                .build();
+        recorder.record(new TestEvent(1000, 1, "A"));
+        recorder.record(new TestEvent(2000, 1, "B"));
+
+        final BucketClient client = new BucketClient(recorder, address, "node-1");
+        transfer(client, 2);
+        client.close();
+
+        recorder.record(new TestEvent(2000, 3, "B"));
+        transfer(client, 2);
+        client.close();
+
+        assertEquals(100, server.getRecorder("node-1").getAlignmentOffset());
+        assertEquals(recorder.getEventBuckets().toString(),
+                server.getRecorder("node-1").getEventBuckets().toString());
+    }
+
+    @Test
+    public void shipsThousandsOfNames() throws IOException {
+        final RrdEventRecorder recorder = new RrdEventRecorder(60, RrdEventRecorder.SECOND);
+        for (int i = 0; i < 5000; i++) {
+            recorder.record(new TestEvent(1000 + i % 3 * 1000, i, "name" + i));
+        }
+
+        try (BucketClient client = new BucketClient(recorder, address, "node-1")) {
+            transfer(client, 5000);
+        }
+        assertEquals(5000, server.getRecorder("node-1").getNames().size());
+        assertEquals(recorder.getEventBuckets("name4711").toString(),
+                server.getRecorder("node-1").getEventBuckets("name4711").toString());
+    }
+
+    @Test
+    public void rejectsNodesBeyondLimit() throws IOException {
+        final RrdEventRecorder recorder = new RrdEventRecorder(10, RrdEventRecorder.SECOND);
+        recorder.record(new TestEvent(1000, 1, "A"));
+
+        try (BucketServer limited = new BucketServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1,
+                BucketServer.DEFAULT_MAX_CONNECTIONS);
+             BucketClient client1 = new BucketClient(recorder, limited.getLocalAddress(), "node-1");
+             BucketClient client2 = new BucketClient(recorder, limited.getLocalAddress(), "node-2")) {
+            assertEquals(1, limited.getMaxNodes());
+            for (int i = 0; i < 100 && limited.getConnectionErrors() == 0; i++) {
+                client1.ship();
+                client2.ship();
+                limited.poll(10);
+            }
+            assertEquals(1, limited.getConnectionErrors());
+            assertEquals(1, limited.getNodes().size());
+        }
+    }
+
+    @Test
+    public void rejectsConnectionsBeyondLimit() throws IOException {
+        try (BucketServer limited = new BucketServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                BucketServer.DEFAULT_MAX_NODES, 1);
+             Socket first = new Socket(address.getAddress(), limited.getLocalAddress().getPort());
+             Socket second = new Socket(address.getAddress(), limited.getLocalAddress().getPort())) {
+            assertEquals(1, limited.getMaxConnections());
+            for (int i = 0; i < 100 && limited.getConnectionErrors() == 0; i++) {
+                limited.poll(10);
+            }
+            assertEquals(1, limited.getConnectionErrors());
+
+            // the accepted connection still works
+            final RrdEventRecorder recorder = new RrdEventRecorder(10, RrdEventRecorder.SECOND);
+            recorder.record(new TestEvent(1000, 1, "A"));
+            first.close();
+            second.close();
+            for (int i = 0; i < 10; i++) {
+                limited.poll(10); // let the server notice
+            }
+            try (BucketClient client = new BucketClient(recorder, limited.getLocalAddress(), "node-1")) {
+                int received = 0;
+                for (int i = 0; i < 100 && received == 0; i++) {
+                    client.ship();
+                    received += limited.poll(10);
+                }
+                assertEquals(1, received);
+            }
+        }
+    }
+
+    @Test
+    public void skipsNamesTooLongToShip() throws IOException {
+        final char[] longName = new char[BucketWireFormat.MAX_NAME_BYTES + 1];
+        Arrays.fill(longName, 'x');
+        final RrdEventRecorder recorder = new RrdEventRecorder(10, RrdEventRecorder.SECOND);
+        recorder.record(new TestEvent(1000, 1, new String(longName)));
+        recorder.record(new TestEvent(1000, 1, "A"));
+
+        try (BucketClient client = new BucketClient(recorder, address, "node-1")) {
+            transfer(client, 1);
+        }
+        assertEquals(Collections.singletonList("A"), server.getRecorder("node-1").getNames());
+        assertEquals(0, server.getConnectionErrors());
+    }
+
+    @Test
+    public void closesConnectionOnGarbage() throws IOException {
+        try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+            final OutputStream out = socket.getOutputStream();
+            out.write(new byte[]{0, 0, 0, 5, 3, 1, 2, 3, 4});
+            out.flush();
+            for (int i = 0; i < 100 && server.getConnectionErrors() == 0; i++) {
+                server.poll(10);
+            }
+        }
+        assertEquals(1, server.getConnectionErrors());
+        assertTrue(server.getNodes().isEmpty());
+
+        // other connections are not affected
+        final RrdEventRecorder recorder = new RrdEventRecorder(10, RrdEventRecorder.SECOND);
+        recorder.record(new TestEvent(1000, 1, "A"));
+        try (BucketClient client = new BucketClient(recorder, address, "node-1")) {
+            transfer(client, 1);
+        }
+    }
+}
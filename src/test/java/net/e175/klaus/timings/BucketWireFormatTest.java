@@ -0,0 +1,159 @@
+package net.e175.klaus.timings;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BucketWireFormatTest {
+
+    private static final long WIDTH = RrdEventRecorder.MINUTE;
+
+    @Test
+    public void roundTripsVarLongs() throws IOException {
+        final long[] values = {0, 1, -1, 63, -64, 64, 300, -300, Integer.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+        final ByteBuffer buffer = ByteBuffer.allocate(values.length * 10);
+        for (final long value : values) {
+            BucketWireFormat.writeSignedVarLong(buffer, value);
+        }
+        buffer.flip();
+        for (final long value : values) {
+            assertEquals(value, BucketWireFormat.readSignedVarLong(buffer));
+        }
+
+        buffer.clear();
+        BucketWireFormat.writeSignedVarLong(buffer, -1);
+        BucketWireFormat.writeVarLong(buffer, 127);
+        assertEquals(2, buffer.position());
+    }
+
+    @Test
+    public void roundTripsFrames() throws IOException {
+        final ByteBuffer stream = ByteBuffer.allocate(4096);
+        stream.put(BucketWireFormat.encodeHello(new BucketWireFormat.Hello("node-1", 60, WIDTH, 7)));
+        stream.put(BucketWireFormat.encodeNames(Arrays.asList("A", "ü")));
+
+        final EventBucket[] buckets = {bucket(-2, 0, 0, 0, 0), bucket(10, 1, 5, 5, 5), bucket(11, 3, 1, 2, 4.5),
+                bucket(3, 2, 1, 1, 1)};
+        stream.put(BucketWireFormat.encodeBuckets(new int[]{0, 0, 0, 1}, buckets, 0, buckets.length, WIDTH));
+        stream.flip();
+
+        final List<String> dictionary = new ArrayList<>();
+        final List<String> names = new ArrayList<>();
+        final List<EventBucket> received = new ArrayList<>();
+        final BucketWireFormat.BucketSink sink = new BucketWireFormat.BucketSink() {
+            @Override
+            public void bucket(final String name, final EventBucket bucket) {
+                names.add(name);
+                received.add(bucket);
+            }
+        };
+
+        final BucketWireFormat.Hello hello = BucketWireFormat.decodeFrame(BucketWireFormat.nextFrame(stream), null,
+                dictionary, sink);
+        assertEquals("node-1", hello.node);
+        assertEquals(60, hello.numberOfBuckets);
+        assertEquals(WIDTH, hello.bucketWidth);
+        assertEquals(7, hello.alignmentOffset);
+
+        assertNull(BucketWireFormat.decodeFrame(BucketWireFormat.nextFrame(stream), hello, dictionary, sink));
+        assertEquals(Arrays.asList("A", "ü"), dictionary);
+        BucketWireFormat.decodeFrame(BucketWireFormat.nextFrame(stream), hello, dictionary, sink);
+        assertNull(BucketWireFormat.nextFrame(stream));
+
+        assertEquals(Arrays.asList("A", "A", "A", "ü"), names);
+        for (int i = 0; i < buckets.length; i++) {
+            assertEquals(new ImmutableBucket(buckets[i]).toString(), received.get(i).toString());
+        }
+    }
+
+    @Test
+    public void waitsForCompleteFrames() throws IOException {
+        final ByteBuffer frame = BucketWireFormat.encodeNames(Arrays.asList("some.name", "another.name"));
+        final ByteBuffer partial = ByteBuffer.allocate(frame.remaining());
+        partial.put(frame.array(), 0, frame.remaining() - 1).flip();
+        assertNull(BucketWireFormat.nextFrame(partial));
+        assertEquals(0, partial.position());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsBucketsBeforeHello() throws IOException {
+        final ByteBuffer stream = BucketWireFormat.encodeNames(Arrays.asList("A"));
+        BucketWireFormat.decodeFrame(BucketWireFormat.nextFrame(stream), null, new ArrayList<String>(), null);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownNameNumbers() throws IOException {
+        final ByteBuffer stream = BucketWireFormat.encodeBuckets(new int[]{1}, new EventBucket[]{bucket(1, 1, 1, 1,
+                1)}, 0, 1, WIDTH);
+        BucketWireFormat.decodeFrame(BucketWireFormat.nextFrame(stream),
+                new BucketWireFormat.Hello("n", 1, WIDTH, 0), new ArrayList<>(Arrays.asList("A")), null);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsHugeNumberOfBuckets() throws IOException {
+        final ByteBuffer stream = BucketWireFormat.encodeHello(
+                new BucketWireFormat.Hello("n", BucketWireFormat.MAX_NUMBER_OF_BUCKETS + 1, WIDTH, 0));
+        BucketWireFormat.decodeFrame(BucketWireFormat.nextFrame(stream), null, new ArrayList<String>(), null);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsHugeBucketWidth() throws IOException {
+        final ByteBuffer stream = BucketWireFormat.encodeHello(
+                new BucketWireFormat.Hello("n", 60, BucketWireFormat.MAX_BUCKET_WIDTH + 1, 0));
+        BucketWireFormat.decodeFrame(BucketWireFormat.nextFrame(stream), null, new ArrayList<String>(), null);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTooManyNames() throws IOException {
+        final ByteBuffer stream = BucketWireFormat.encodeNames(Arrays.asList("A"));
+        BucketWireFormat.decodeFrame(BucketWireFormat.nextFrame(stream),
+                new BucketWireFormat.Hello("n", 1, WIDTH, 0),
+                new ArrayList<>(Collections.nCopies(BucketWireFormat.MAX_NAMES, "B")), null);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsLongNames() throws IOException {
+        final char[] name = new char[BucketWireFormat.MAX_NAME_BYTES + 1];
+        Arrays.fill(name, 'x');
+        final ByteBuffer stream = BucketWireFormat.encodeNames(Arrays.asList(new String(name)));
+        BucketWireFormat.decodeFrame(BucketWireFormat.nextFrame(stream),
+                new BucketWireFormat.Hello("n", 1, WIDTH, 0), new ArrayList<String>(), null);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsHugeFrames() throws IOException {
+        final ByteBuffer stream = ByteBuffer.allocate(8);
+        stream.putInt(BucketWireFormat.MAX_FRAME_BYTES + 1).flip();
+        BucketWireFormat.nextFrame(stream);
+    }
+
+    @Test
+    public void encodesCompactly() {
+        final int names = 1000;
+        final int[] ids = new int[names * 10];
+        final EventBucket[] buckets = new EventBucket[names * 10];
+        for (int i = 0; i < buckets.length; i++) {
+            ids[i] = i / 10;
+            buckets[i] = bucket(1000 + i % 10, 100 + i, 1, 2.5, 10);
+        }
+        final ByteBuffer frame = BucketWireFormat.encodeBuckets(ids, buckets, 0, buckets.length, WIDTH);
+        // one byte each for name, start delta and most counts, plus the values
+        assertTrue(frame.remaining() < buckets.length * (3 * 8 + 5));
+    }
+
+    private static EventBucket bucket(final long index, final long count, final double min, final double mean,
+                                      final double max) {
+        final MutableBucket bucket = new MutableBucket(index * WIDTH + 7, (index + 1) * WIDTH + 7, null);
+        bucket.setValues(count, min, mean, max);
+        return bucket;
+    }
+}
@@ -0,0 +1,138 @@
+package net.e175.klaus.timings;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BufferedEventRecorderTest {
+
+    public static final double MAXDELTA = 1e-6;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMissingTarget() {
+        new BufferedEventRecorder(null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSillyMaxNames() {
+        new BufferedEventRecorder(new RrdEventRecorder(), 0, 1000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeTriggerTimes() {
+        new BufferedEventRecorder(new RrdEventRecorder()).record(new TestEvent(-1, 1, "A"));
+    }
+
+    @Test
+    public void silentlyIgnoresNullEvents() {
+        new BufferedEventRecorder(new RrdEventRecorder()).record(null);
+    }
+
+    @Test
+    public void buffersUntilFlush() {
+        RrdEventRecorder target = new RrdEventRecorder(10, RrdEventRecorder.SECOND);
+        BufferedEventRecorder recorder = new BufferedEventRecorder(target);
+
+        recorder.record(new TestEvent(1100, 1, "A"));
+        recorder.record(new TestEvent(1200, 3, "A"));
+        assertTrue(target.getNames().isEmpty());
+
+        recorder.flush();
+        List<EventBucket> buckets = target.getEventBuckets("A");
+        assertEquals(2, buckets.get(9).getCount());
+        assertEquals(2, buckets.get(9).getMeanValue(), MAXDELTA);
+        assertEquals(1, buckets.get(9).getMinValue(), MAXDELTA);
+        assertEquals(3, buckets.get(9).getMaxValue(), MAXDELTA);
+    }
+
+    @Test
+    public void flushesOnBucketChange() {
+        RrdEventRecorder target = new RrdEventRecorder(10, RrdEventRecorder.SECOND);
+        BufferedEventRecorder recorder = new BufferedEventRecorder(target, 10, RrdEventRecorder.HOUR);
+
+        recorder.record(new TestEvent(1100, 1, "A"));
+        recorder.record(new TestEvent(1200, 1, "A"));
+        recorder.record(new TestEvent(2000, 1, "A"));
+
+        List<EventBucket> buckets = target.getEventBuckets("A");
+        assertEquals(1000, buckets.get(9).getIntervalStart());
+        assertEquals(2, buckets.get(9).getCount());
+    }
+
+    @Test
+    public void flushesWhenTooManyNames() {
+        RrdEventRecorder target = new RrdEventRecorder(10, RrdEventRecorder.SECOND);
+        BufferedEventRecorder recorder = new BufferedEventRecorder(target, 2, RrdEventRecorder.HOUR);
+
+        recorder.record(new TestEvent(1100, 1, "A"));
+        recorder.record(new TestEvent(1100, 1, "B"));
+        assertEquals(0, target.getNames().size());
+
+        recorder.record(new TestEvent(1100, 1, "C"));
+        assertEquals(2, target.getNames().size());
+    }
+
+    @Test
+    public void flushesAfterMaxDelay() {
+        RrdEventRecorder target = new RrdEventRecorder(10, RrdEventRecorder.SECOND);
+        BufferedEventRecorder recorder = new BufferedEventRecorder(target, 10, 500);
+
+        recorder.record(new TestEvent(1100, 1, "A"));
+        recorder.record(new TestEvent(1500, 1, "B"));
+        assertEquals(0, target.getNames().size());
+
+        recorder.record(new TestEvent(1600, 1, "B"));
+        assertEquals(2, target.getNames().size());
+        assertEquals(2, target.getEventBuckets("B").get(9).getCount());
+    }
+
+    @Test
+    public void countsExactlyFromMultipleThreads() throws Exception {
+        final int eventCount = 100000;
+        final int threadCount = 8;
+        RrdEventRecorder target = new RrdEventRecorder(1, RrdEventRecorder.DAY * 2);
+        BufferedEventRecorder recorder = new BufferedEventRecorder(target);
+
+        EventMassProducer.runThreads(eventCount, threadCount, recorder);
+        recorder.flush();
+
+        long totalCount = 0;
+        for (String name : target.getNames()) {
+            totalCount += target.getEventBuckets(name).get(0).getCount();
+        }
+        assertEquals(eventCount * threadCount, totalCount);
+    }
+
+    @Test
+    public void countsExactlyWhileFlushingConcurrently() throws Exception {
+        final int eventCount = 100000;
+        final int threadCount = 4;
+        final RrdEventRecorder target = new RrdEventRecorder(1, RrdEventRecorder.DAY * 2);
+        final BufferedEventRecorder recorder = new BufferedEventRecorder(target);
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final Thread flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    recorder.flush();
+                }
+            }
+        });
+        flusher.start();
+        EventMassProducer.runThreads(eventCount, threadCount, recorder);
+        done.set(true);
+        flusher.join();
+        recorder.flush();
+
+        long totalCount = 0;
+        for (String name : target.getNames()) {
+            totalCount += target.getEventBuckets(name).get(0).getCount();
+        }
+        assertEquals(eventCount * threadCount, totalCount);
+    }
+}
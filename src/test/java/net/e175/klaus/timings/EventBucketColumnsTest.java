@@ -0,0 +1,40 @@
+package net.e175.klaus.timings;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class EventBucketColumnsTest {
+
+    public static final double MAXDELTA = 1e-6;
+
+    @Test
+    public void defaultConstructorDoesNotCrash() {
+        new EventBucketColumns();
+    }
+
+    @Test
+    public void defaultConstructorOfInternalColumnsDoesNotCrash() {
+        new EventBucketColumns.NameToColumns();
+    }
+
+    @Test
+    public void copiesBucketContents() {
+        EventBucketColumns.NameToColumns columns = new EventBucketColumns.NameToColumns("foo", 2);
+        MutableBucket b = new MutableBucket(1000, 2000, new TestEvent(1000, 10));
+        b.addEvent(new TestEvent(1500, 20));
+
+        columns.set(0, 0, null);
+        columns.set(1, 1000, b);
+
+        assertEquals(2, columns.size());
+        assertEquals(0, columns.intervalStart[0]);
+        assertEquals(0, columns.count[0]);
+        assertEquals(1000, columns.intervalStart[1]);
+        assertEquals(2, columns.count[1]);
+        assertEquals(10, columns.minValue[1], MAXDELTA);
+        assertEquals(15, columns.meanValue[1], MAXDELTA);
+        assertEquals(20, columns.maxValue[1], MAXDELTA);
+    }
+
+}
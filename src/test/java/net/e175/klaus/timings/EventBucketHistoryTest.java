@@ -0,0 +1,55 @@
+package net.e175.klaus.timings;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventBucketHistoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMissingLog() {
+        new EventBucketHistory(new RrdEventRecorder(), null);
+    }
+
+    @Test
+    public void combinesWindowAndLog() throws IOException {
+        final BucketLog log = new BucketLog(folder.getRoot());
+        final RrdEventRecorder recorder = new RrdEventRecorder(5, RrdEventRecorder.SECOND, log);
+        final EventBucketHistory history = new EventBucketHistory(recorder, log);
+
+        for (int i = 1; i <= 20; i++) {
+            recorder.record(new TestEvent(i * 1000, i, "A"));
+        }
+        log.flush();
+
+        List<EventBucket> buckets = history.getEventBuckets("A", 0, Long.MAX_VALUE);
+        assertEquals(20, buckets.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals((i + 1) * 1000, buckets.get(i).getIntervalStart());
+            assertEquals(1, buckets.get(i).getCount());
+        }
+
+        // a late Event is only in the window, but not yet in the log
+        recorder.record(new TestEvent(19500, 100, "A"));
+        buckets = history.getEventBuckets("A", 18000, 20000);
+        assertEquals(2, buckets.size());
+        assertEquals(2, buckets.get(1).getCount());
+
+        buckets = history.getEventBuckets("A", 2500, 4000);
+        assertEquals(2, buckets.size());
+        assertEquals(2000, buckets.get(0).getIntervalStart());
+
+        assertTrue(history.getEventBuckets("B", 0, Long.MAX_VALUE).isEmpty());
+        assertTrue(history.getEventBuckets("A", 5000, 5000).isEmpty());
+        log.close();
+    }
+}
@@ -0,0 +1,225 @@
+package net.e175.klaus.timings;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EventBucketSubscriptionTest {
+
+    public static final double MAXDELTA = 1e-6;
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            command.run();
+        }
+    };
+
+    static class CollectingSubscriber implements EventBucketSubscriber {
+        EventBucketSubscription subscription;
+        final List<String> names = new ArrayList<>();
+        final List<EventBucket> buckets = new ArrayList<>();
+
+        @Override
+        public void onSubscribe(final EventBucketSubscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public synchronized void onNext(final String name, final EventBucket bucket) {
+            names.add(name);
+            buckets.add(bucket);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMissingExecutor() {
+        new RrdEventRecorder().subscribe(new CollectingSubscriber(), null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSillyRequest() {
+        final CollectingSubscriber subscriber = new CollectingSubscriber();
+        new RrdEventRecorder().subscribe(subscriber, DIRECT);
+        subscriber.subscription.request(0);
+    }
+
+    @Test
+    public void deliversNothingWithoutRequest() {
+        final RrdEventRecorder recorder = new RrdEventRecorder(5, RrdEventRecorder.SECOND);
+        final CollectingSubscriber subscriber = new CollectingSubscriber();
+        final EventBucketSubscription subscription = recorder.subscribe(subscriber, DIRECT);
+        assertSame(subscription, subscriber.subscription);
+
+        recorder.record(new TestEvent(1000, 1, "A"));
+        assertTrue(subscriber.buckets.isEmpty());
+    }
+
+    @Test
+    public void deliversCurrentBucketsFirst() {
+        final RrdEventRecorder recorder = new RrdEventRecorder(5, RrdEventRecorder.SECOND);
+        recorder.record(new TestEvent(1000, 1, "A"));
+        recorder.record(new TestEvent(2000, 2, "A"));
+        recorder.record(new TestEvent(2000, 3, "B"));
+
+        final CollectingSubscriber subscriber = new CollectingSubscriber();
+        recorder.subscribe(subscriber, DIRECT).request(2);
+        assertEquals(2, subscriber.buckets.size());
+
+        subscriber.subscription.request(10);
+        assertEquals(3, subscriber.buckets.size());
+        assertEquals(9, subscriber.subscription.getDemand());
+    }
+
+    @Test
+    public void coalescesUpdatesWithoutDemand() {
+        final RrdEventRecorder recorder = new RrdEventRecorder(5, RrdEventRecorder.SECOND);
+        final CollectingSubscriber subscriber = new CollectingSubscriber();
+        recorder.subscribe(subscriber, DIRECT).request(1);
+
+        recorder.record(new TestEvent(1000, 1, "A"));
+        assertEquals(1, subscriber.buckets.size());
+        assertEquals(1, subscriber.buckets.get(0).getCount());
+
+        // no demand: nothing delivered, and updates to the same bucket merge
+        for (int i = 0; i < 5; i++) {
+            recorder.record(new TestEvent(1100 + i, 1, "A"));
+        }
+        recorder.record(new TestEvent(1500, 1, "B"));
+        assertEquals(1, subscriber.buckets.size());
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertEquals(3, subscriber.buckets.size());
+        assertEquals("A", subscriber.names.get(1));
+        assertEquals(6, subscriber.buckets.get(1).getCount());
+        assertEquals("B", subscriber.names.get(2));
+
+        // unbounded demand: every update is pushed right away
+        recorder.record(new TestEvent(2000, 4, "A"));
+        assertEquals(4, subscriber.buckets.size());
+        assertEquals(4, subscriber.buckets.get(3).getMeanValue(), MAXDELTA);
+        assertEquals(Long.MAX_VALUE, subscriber.subscription.getDemand());
+    }
+
+    @Test
+    public void stopsAfterCancel() {
+        final RrdEventRecorder recorder = new RrdEventRecorder(5, RrdEventRecorder.SECOND);
+        final CollectingSubscriber subscriber = new CollectingSubscriber();
+        recorder.subscribe(subscriber, DIRECT).request(Long.MAX_VALUE);
+        recorder.record(new TestEvent(1000, 1, "A"));
+
+        subscriber.subscription.cancel();
+        recorder.record(new TestEvent(2000, 1, "A"));
+        subscriber.subscription.request(1);
+        assertEquals(1, subscriber.buckets.size());
+        assertTrue(subscriber.subscription.isCancelled());
+        assertNull(subscriber.subscription.getLastError());
+    }
+
+    @Test
+    public void cancelsFailingSubscriber() {
+        final RrdEventRecorder recorder = new RrdEventRecorder(5, RrdEventRecorder.SECOND);
+        final EventBucketSubscription subscription = recorder.subscribe(new EventBucketSubscriber() {
+            @Override
+            public void onSubscribe(final EventBucketSubscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(final String name, final EventBucket bucket) {
+                throw new IllegalStateException("boom");
+            }
+        }, DIRECT);
+
+        // must not reach the recording thread
+        recorder.record(new TestEvent(1000, 1, "A"));
+        assertTrue(subscription.isCancelled());
+        assertEquals("boom", subscription.getLastError().getMessage());
+    }
+
+    @Test
+    public void cancelsWhenExecutorRejects() {
+        final RrdEventRecorder recorder = new RrdEventRecorder(5, RrdEventRecorder.SECOND);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        final CollectingSubscriber subscriber = new CollectingSubscriber();
+        final EventBucketSubscription subscription = recorder.subscribe(subscriber, executor);
+
+        // must not reach the recording thread
+        subscription.request(Long.MAX_VALUE);
+        recorder.record(new TestEvent(1000, 1, "A"));
+        assertTrue(subscription.isCancelled());
+        assertTrue(subscription.getLastError() instanceof RejectedExecutionException);
+        assertTrue(subscriber.buckets.isEmpty());
+    }
+
+    @Test(timeout = 10000)
+    public void deliversEveryBucketFromOtherThreads() throws Exception {
+        final RrdEventRecorder recorder = new RrdEventRecorder(100, RrdEventRecorder.SECOND);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final int threads = 4;
+        final int eventsPerThread = 10000;
+        final CountDownLatch done = new CountDownLatch(1);
+        final long[] lastCounts = new long[100];
+        try {
+            recorder.subscribe(new EventBucketSubscriber() {
+                private EventBucketSubscription subscription;
+
+                @Override
+                public void onSubscribe(final EventBucketSubscription subscription) {
+                    this.subscription = subscription;
+                    subscription.request(1);
+                }
+
+                @Override
+                public void onNext(final String name, final EventBucket bucket) {
+                    final int index = (int) (bucket.getIntervalStart() / RrdEventRecorder.SECOND);
+                    assertTrue(bucket.getCount() >= lastCounts[index]);
+                    lastCounts[index] = bucket.getCount();
+                    long total = 0;
+                    for (final long count : lastCounts) {
+                        total += count;
+                    }
+                    if (total == threads * eventsPerThread) {
+                        done.countDown();
+                    }
+                    // one at a time, like a slow consumer
+                    subscription.request(1);
+                }
+            }, executor);
+
+            final List<Thread> producers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final Thread producer = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < eventsPerThread; i++) {
+                            recorder.record(new TestEvent(i % 100 * RrdEventRecorder.SECOND, 1, "A"));
+                        }
+                    }
+                });
+                producers.add(producer);
+                producer.start();
+            }
+            for (final Thread producer : producers) {
+                producer.join();
+            }
+
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package net.e175.klaus.timings;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventBucketsJsonWriterTest {
+
+    @Test
+    public void writesEmptyRecorder() throws Exception {
+        StringBuilder out = new StringBuilder();
+        new EventBucketsJsonWriter().write(new RrdEventRecorder(), out);
+
+        assertEquals("{\"buckets\":[]}", out.toString());
+    }
+
+    @Test
+    public void writesSameSchemaAsEventBuckets() throws Exception {
+        RrdEventRecorder recorder = new RrdEventRecorder(2, RrdEventRecorder.SECOND);
+        recorder.record(new TestEvent(1500, 10, "foo"));
+        recorder.record(new TestEvent(1700, 0.25, "foo"));
+
+        StringBuilder out = new StringBuilder();
+        new EventBucketsJsonWriter().write(recorder, out);
+
+        assertEquals("{\"buckets\":[{\"name\":\"foo\",\"buckets\":["
+                + "{\"intervalStart\":0,\"intervalEnd\":1000,\"count\":0,"
+                + "\"minValue\":null,\"meanValue\":null,\"maxValue\":null},"
+                + "{\"intervalStart\":1000,\"intervalEnd\":2000,\"count\":2,"
+                + "\"minValue\":0.25,\"meanValue\":5.125,\"maxValue\":10.0}]}]}", out.toString());
+    }
+
+    @Test
+    public void writesExtrapolatedBuckets() throws Exception {
+        RrdEventRecorder recorder = new RrdEventRecorder(1, RrdEventRecorder.SECOND);
+        recorder.record(new TestEvent(1500, -3, "foo"));
+
+        StringBuilder out = new StringBuilder();
+        EventBucketsJsonWriter writer = new EventBucketsJsonWriter();
+        writer.write(recorder, 1500, out);
+        out.append('\n');
+        writer.write(recorder, 2500, out);
+
+        assertEquals("{\"buckets\":[{\"name\":\"foo\",\"buckets\":["
+                + "{\"intervalStart\":1000,\"intervalEnd\":2000,\"count\":1,"
+                + "\"minValue\":-3.0,\"meanValue\":-3.0,\"maxValue\":-3.0}]}]}\n"
+                + "{\"buckets\":[{\"name\":\"foo\",\"buckets\":["
+                + "{\"intervalStart\":2000,\"intervalEnd\":3000,\"count\":0,"
+                + "\"minValue\":null,\"meanValue\":null,\"maxValue\":null}]}]}", out.toString());
+    }
+
+    @Test
+    public void formatsNumbers() throws Exception {
+        assertEquals("0.000001", formatValue(6, 0.000001));
+        assertEquals("0.0", formatValue(6, 0.0000001));
+        assertEquals("0.0", formatValue(6, -0.0000001));
+        assertEquals("-1.5", formatValue(6, -1.5));
+        assertEquals("123456.789", formatValue(6, 123456.789));
+        assertEquals("3.14", formatValue(2, Math.PI));
+        assertEquals("3.0", formatValue(0, Math.PI));
+        assertEquals("1.0E300", formatValue(6, 1e300));
+        assertEquals("null", formatValue(6, Double.POSITIVE_INFINITY));
+    }
+
+    private String formatValue(int fractionDigits, double value) throws Exception {
+        RrdEventRecorder recorder = new RrdEventRecorder(1, RrdEventRecorder.SECOND);
+        recorder.record(new TestEvent(0, value, "x"));
+
+        StringBuilder out = new StringBuilder();
+        new EventBucketsJsonWriter(fractionDigits).write(recorder, out);
+
+        String json = out.toString();
+        int start = json.indexOf("\"minValue\":") + "\"minValue\":".length();
+        return json.substring(start, json.indexOf(',', start));
+    }
+
+    @Test
+    public void escapesNames() throws Exception {
+        RrdEventRecorder recorder = new RrdEventRecorder(1, RrdEventRecorder.SECOND);
+        recorder.record(new TestEvent(0, 1, "a\"b\\c\n"));
+
+        StringBuilder out = new StringBuilder();
+        new EventBucketsJsonWriter().write(recorder, out);
+
+        assertTrue(out.toString().startsWith("{\"buckets\":[{\"name\":\"a\\\"b\\\\c\\u000a\",\"buckets\":["));
+    }
+
+    @Test
+    public void writesSameOutputToStreamAndAppendable() throws Exception {
+        RrdEventRecorder recorder = new RrdEventRecorder(60, RrdEventRecorder.SECOND);
+        for (int i = 0; i < 500; i++) {
+            recorder.record(new TestEvent(i * 100, i / 7.0, "name ä€😀 " + i));
+        }
+
+        EventBucketsJsonWriter writer = new EventBucketsJsonWriter();
+        StringBuilder chars = new StringBuilder();
+        writer.write(recorder, chars);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writer.write(recorder, bytes);
+
+        assertEquals(chars.toString(), new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void writesColumns() throws Exception {
+        RrdEventRecorder recorder = new RrdEventRecorder(10, RrdEventRecorder.SECOND);
+        recorder.record(new TestEvent(9500, 1, "A"));
+        recorder.record(new TestEvent(3500, 2, "B"));
+
+        EventBucketsJsonWriter writer = new EventBucketsJsonWriter();
+        StringBuilder fromRecorder = new StringBuilder();
+        writer.write(recorder, 12500, fromRecorder);
+        StringBuilder fromColumns = new StringBuilder();
+        writer.write(recorder.getEventBucketColumns(12500), fromColumns);
+
+        assertEquals(fromRecorder.toString(), fromColumns.toString());
+    }
+}
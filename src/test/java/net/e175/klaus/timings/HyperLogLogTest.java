@@ -0,0 +1,70 @@
+package net.e175.klaus.timings;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HyperLogLogTest {
+
+    @Test
+    public void estimatesEmptySketchAsZero() {
+        assertEquals(0, new HyperLogLog(12).estimate());
+    }
+
+    @Test
+    public void countsSmallSetsExactly() {
+        HyperLogLog sketch = new HyperLogLog(12);
+        for (int i = 0; i < 10; i++) {
+            sketch.addKey(i);
+            sketch.addKey(i);
+        }
+        assertEquals(10, sketch.estimate());
+    }
+
+    @Test
+    public void spreadsKeyZero() {
+        assertTrue(HyperLogLog.mix(0) != 0);
+        HyperLogLog sketch = new HyperLogLog(12);
+        sketch.addKey(0);
+        assertEquals(1, sketch.estimate());
+    }
+
+    @Test
+    public void estimatesLargeSetsWithinErrorBounds() {
+        for (int precision = HyperLogLog.MIN_PRECISION + 6; precision <= HyperLogLog.MAX_PRECISION; precision += 2) {
+            HyperLogLog sketch = new HyperLogLog(precision);
+            final int n = 1000000;
+            for (long i = 0; i < n; i++) {
+                sketch.addKey(i * 31);
+            }
+            final double standardError = 1.04 / Math.sqrt(1 << precision);
+            assertEquals("precision " + precision, n, sketch.estimate(), 4 * standardError * n);
+        }
+    }
+
+    @Test
+    public void mergesLikeUnion() {
+        HyperLogLog a = new HyperLogLog(12);
+        HyperLogLog b = new HyperLogLog(12);
+        HyperLogLog union = new HyperLogLog(12);
+        for (long i = 0; i < 20000; i++) {
+            a.addKey(i);
+            b.addKey(i + 10000);
+            union.addKey(i);
+            union.addKey(i + 10000);
+        }
+
+        a.merge(b);
+        assertEquals(union.estimate(), a.estimate());
+        assertEquals(30000, a.estimate(), 30000 * 0.05);
+    }
+
+    @Test
+    public void canBeCleared() {
+        HyperLogLog sketch = new HyperLogLog(8);
+        sketch.addKey(42);
+        sketch.clear();
+        assertEquals(0, sketch.estimate());
+    }
+}
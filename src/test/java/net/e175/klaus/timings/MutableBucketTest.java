@@ -62,6 +62,25 @@ public class MutableBucketTest {
         assertEquals(99999, b.getMaxValue(), MAXDELTA);
     }
 
+    @Test
+    public void mergesBuckets() {
+        MutableBucket b = new MutableBucket(0, 1000, null);
+        b.addBucket(new ImmutableBucket(0, 1000, null));
+        assertTrue(b.isEmpty());
+
+        MutableBucket other = new MutableBucket(0, 1000, new TestEvent(0, 10));
+        other.addEvent(new TestEvent(0, 20));
+        b.addBucket(other);
+        assertEquals(2, b.getCount());
+        assertEquals(15, b.getMeanValue(), MAXDELTA);
+
+        b.addBucket(new ImmutableBucket(0, 1000, new TestEvent(0, -6)));
+        assertEquals(3, b.getCount());
+        assertEquals(-6, b.getMinValue(), MAXDELTA);
+        assertEquals(8, b.getMeanValue(), MAXDELTA);
+        assertEquals(20, b.getMaxValue(), MAXDELTA);
+    }
+
     @Test
     public void returnsSomethingOnToString() {
         MutableBucket b = new MutableBucket(0, 1000, null);
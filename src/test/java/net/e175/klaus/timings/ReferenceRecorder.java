@@ -0,0 +1,111 @@
+package net.e175.klaus.timings;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A naive model of RrdEventRecorder's results: it keeps every accepted
+ * Event's value and computes buckets from scratch when asked, so optimized
+ * storage can be checked against it.
+ * <p>
+ * Events are accepted if they fall into the window reaching back
+ * numberOfBuckets intervals from the newest Event of their name at the time
+ * they are recorded. Mean values are computed incrementally in recording
+ * order, as RrdEventRecorder does, so results are expected to be bit-exact.
+ */
+final class ReferenceRecorder {
+    private final int numberOfBuckets;
+    private final long bucketWidth;
+    private final long alignmentOffset;
+
+    private final Map<String, Series> series = new HashMap<>();
+
+    private static final class Series {
+        private long newestStart;
+        private final TreeMap<Long, List<Double>> values = new TreeMap<>();
+    }
+
+    ReferenceRecorder(final int numberOfBuckets, final long bucketWidth, final long alignmentOffset) {
+        this.numberOfBuckets = numberOfBuckets;
+        this.bucketWidth = bucketWidth;
+        this.alignmentOffset = alignmentOffset;
+    }
+
+    void record(final Event event) {
+        record(event.getName(), event);
+    }
+
+    /**
+     * Record the event under the given key, e.g. a group pattern.
+     */
+    void record(final String key, final Event event) {
+        final long start = Math.floorDiv(event.getTriggerTime() - alignmentOffset, bucketWidth) * bucketWidth
+                + alignmentOffset;
+
+        Series s = series.get(key);
+        if (s == null) {
+            s = new Series();
+            s.newestStart = start;
+            series.put(key, s);
+        } else if (start > s.newestStart) {
+            s.newestStart = start;
+        } else if (start < s.newestStart - (numberOfBuckets - 1) * bucketWidth) {
+            return; // too old
+        }
+
+        List<Double> values = s.values.get(start);
+        if (values == null) {
+            values = new ArrayList<>();
+            s.values.put(start, values);
+        }
+        values.add(event.getValue());
+    }
+
+    /**
+     * @return Expected result of RrdEventRecorder.getEventBuckets(key).
+     */
+    List<EventBucket> getEventBuckets(final String key) {
+        final List<EventBucket> result = new ArrayList<>();
+        final Series s = series.get(key);
+        if (s == null) {
+            return result;
+        }
+
+        for (int i = numberOfBuckets - 1; i >= 0; i--) {
+            final long start = s.newestStart - i * bucketWidth;
+            final MutableBucket bucket = new MutableBucket(start, start + bucketWidth, null);
+            final List<Double> values = s.values.get(start);
+            if (values != null) {
+                long count = 0;
+                double min = 0;
+                double mean = 0;
+                double max = 0;
+                for (final double value : values) {
+                    count++;
+                    if (count == 1) {
+                        min = value;
+                        mean = value;
+                        max = value;
+                    } else {
+                        if (value < min) {
+                            min = value;
+                        } else if (value > max) {
+                            max = value;
+                        }
+                        mean = mean + (value - mean) / count;
+                    }
+                }
+                bucket.setValues(count, min, mean, max);
+            }
+            result.add(bucket);
+        }
+        return result;
+    }
+
+    List<String> getKeys() {
+        return new ArrayList<>(series.keySet());
+    }
+}
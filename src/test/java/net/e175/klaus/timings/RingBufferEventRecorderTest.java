@@ -0,0 +1,171 @@
+package net.e175.klaus.timings;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class RingBufferEventRecorderTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCapacityNotPowerOfTwo() {
+        new RingBufferEventRecorder(new RrdEventRecorder(), 1000, RingBufferEventRecorder.WaitStrategy.SLEEPING,
+                RingBufferEventRecorder.OverflowPolicy.BLOCK);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMissingTarget() {
+        new RingBufferEventRecorder(null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeTriggerTimes() {
+        try (RingBufferEventRecorder recorder = new RingBufferEventRecorder(new RrdEventRecorder())) {
+            recorder.record(new TestEvent(-1, 1, "A"));
+        }
+    }
+
+    @Test
+    public void silentlyIgnoresNullEvents() {
+        try (RingBufferEventRecorder recorder = new RingBufferEventRecorder(new RrdEventRecorder())) {
+            recorder.record(null);
+        }
+    }
+
+    @Test
+    public void appliesEventsToTarget() throws Exception {
+        RrdEventRecorder target = new RrdEventRecorder(10, RrdEventRecorder.SECOND);
+        try (RingBufferEventRecorder recorder = new RingBufferEventRecorder(target)) {
+            recorder.record(new TestEvent(1100, 1, "A"));
+            assertTrue(recorder.record("A", 1200, 3));
+            assertTrue(recorder.recordElapsed("B", System.nanoTime()));
+            recorder.flush();
+
+            assertEquals(0, recorder.getPendingCount());
+            assertEquals(2, target.getEventBuckets("A").get(9).getCount());
+            assertEquals(2, target.getEventBuckets("A").get(9).getMeanValue(), 1e-6);
+            assertEquals(2, target.getNames().size());
+        }
+    }
+
+    @Test
+    public void dropsWhenFull() throws Exception {
+        final CountDownLatch consumerBlocked = new CountDownLatch(1);
+        final CountDownLatch unblock = new CountDownLatch(1);
+        RrdEventRecorder target = new RrdEventRecorder(10, RrdEventRecorder.SECOND, new EventBucketListener() {
+            @Override
+            public void supersededBucket(String name, EventBucket bucket) {
+                consumerBlocked.countDown();
+                try {
+                    unblock.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        try (RingBufferEventRecorder recorder = new RingBufferEventRecorder(target, 4,
+                RingBufferEventRecorder.WaitStrategy.BLOCKING, RingBufferEventRecorder.OverflowPolicy.DROP)) {
+            try {
+                recorder.record("A", 1000, 1);
+                recorder.record("A", 2000, 1);
+                consumerBlocked.await();
+
+                // the second event's slot is only freed after it has been applied
+                for (int i = 0; i < 3; i++) {
+                    assertTrue(recorder.record("A", 2000, 1));
+                }
+                assertFalse(recorder.record("A", 2000, 1));
+                assertEquals(1, recorder.getDroppedCount());
+                assertEquals(4, recorder.getPendingCount());
+            } finally {
+                unblock.countDown();
+            }
+
+            recorder.flush();
+            assertEquals(4, target.getEventBuckets("A").get(9).getCount());
+        }
+    }
+
+    @Test
+    public void dropsAfterClose() {
+        RrdEventRecorder target = new RrdEventRecorder(10, RrdEventRecorder.SECOND);
+        RingBufferEventRecorder recorder = new RingBufferEventRecorder(target);
+        recorder.record("A", 1000, 1);
+        recorder.close();
+
+        assertEquals(1, target.getEventBuckets("A").get(9).getCount());
+        assertFalse(recorder.record("A", 1000, 1));
+        assertEquals(1, recorder.getDroppedCount());
+    }
+
+    @Test
+    public void countsExactlyWithAllWaitStrategies() throws Exception {
+        for (RingBufferEventRecorder.WaitStrategy strategy : RingBufferEventRecorder.WaitStrategy.values()) {
+            final int eventCount = 50000;
+            final int threadCount = 4;
+            RrdEventRecorder target = new RrdEventRecorder(1, RrdEventRecorder.DAY * 2);
+
+            try (RingBufferEventRecorder recorder = new RingBufferEventRecorder(target, 256, strategy,
+                    RingBufferEventRecorder.OverflowPolicy.BLOCK)) {
+                EventMassProducer.runThreads(eventCount, threadCount, recorder);
+                recorder.flush();
+                assertEquals(0, recorder.getDroppedCount());
+            }
+
+            long totalCount = 0;
+            for (String name : target.getNames()) {
+                totalCount += target.getEventBuckets(name).get(0).getCount();
+            }
+            assertEquals(strategy.toString(), eventCount * threadCount, totalCount);
+        }
+    }
+
+    @Test
+    public void accountsForEveryEventRecordedDuringClose() throws Exception {
+        // the race is short, so try many times
+        for (int round = 0; round < 200; round++) {
+            final RingBufferEventRecorder.OverflowPolicy policy =
+                    RingBufferEventRecorder.OverflowPolicy.values()[round % 2];
+            final int threadCount = 4;
+            final RrdEventRecorder target = new RrdEventRecorder(1, RrdEventRecorder.DAY * 2);
+            final RingBufferEventRecorder recorder = new RingBufferEventRecorder(target, 64,
+                    RingBufferEventRecorder.WaitStrategy.YIELDING, policy);
+
+            final AtomicLong attempted = new AtomicLong();
+            final AtomicLong accepted = new AtomicLong();
+            final AtomicBoolean closed = new AtomicBoolean();
+            final Thread[] threads = new Thread[threadCount];
+            for (int i = 0; i < threadCount; i++) {
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        while (!closed.get()) {
+                            attempted.incrementAndGet();
+                            if (recorder.record("A", 1000, 1)) {
+                                accepted.incrementAndGet();
+                            }
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+            while (accepted.get() < 1000) {
+                Thread.yield();
+            }
+            recorder.close();
+            closed.set(true);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            final long applied = target.getEventBuckets("A").get(0).getCount();
+            assertEquals(policy.toString(), accepted.get(), applied);
+            assertEquals(policy.toString(), attempted.get(), applied + recorder.getDroppedCount());
+            assertEquals(0, recorder.getPendingCount());
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package net.e175.klaus.timings;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RrdCheckpointTest {
+
+    public static final double MAXDELTA = 1e-6;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMissingFile() {
+        new RrdCheckpoint(new RrdEventRecorder(), null);
+    }
+
+    @Test
+    public void loadsNothingWithoutFile() throws IOException {
+        final RrdCheckpoint checkpoint = new RrdCheckpoint(new RrdEventRecorder(),
+                new File(folder.getRoot(), "none"));
+        assertEquals(0, checkpoint.load());
+    }
+
+    @Test
+    public void restoresBuckets() throws IOException {
+        final File file = new File(folder.getRoot(), "checkpoint");
+        final RrdEventRecorder recorder = new RrdEventRecorder(5, RrdEventRecorder.SECOND);
+        for (int i = 1; i <= 8; i++) {
+            recorder.record(new TestEvent(i * 1000, i, "A"));
+            recorder.record(new TestEvent(i * 1000 + 500, 2 * i, "A"));
+        }
+        recorder.record(new TestEvent(7000, 1, "B"));
+        new RrdCheckpoint(recorder, file).write();
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        final AtomicInteger notified = new AtomicInteger();
+        final RrdEventRecorder restored = new RrdEventRecorder(5, RrdEventRecorder.SECOND,
+                new EventBucketListener() {
+                    @Override
+                    public void supersededBucket(final String name, final EventBucket bucket) {
+                        notified.incrementAndGet();
+                    }
+                });
+        assertEquals(2, new RrdCheckpoint(restored, file).load());
+        assertEquals(0, notified.get());
+
+        assertEquals(recorder.getEventBuckets("A").toString(), restored.getEventBuckets("A").toString());
+        assertEquals(recorder.getEventBuckets("B").toString(), restored.getEventBuckets("B").toString());
+        final List<EventBucket> buckets = restored.getEventBuckets("A");
+        assertEquals(8000, buckets.get(4).getIntervalStart());
+        assertEquals(2, buckets.get(4).getCount());
+        assertEquals(12, buckets.get(4).getMeanValue(), MAXDELTA);
+
+        // recording continues where the checkpoint left off
+        restored.record(new TestEvent(9000, 1, "A"));
+        assertEquals(1, notified.get());
+        assertEquals(5000, restored.getEventBuckets("A").get(0).getIntervalStart());
+    }
+
+    @Test
+    public void restoresIntoSmallerRecorder() throws IOException {
+        final File file = new File(folder.getRoot(), "checkpoint");
+        final RrdEventRecorder recorder = new RrdEventRecorder(10, RrdEventRecorder.SECOND);
+        for (int i = 1; i <= 10; i++) {
+            recorder.record(new TestEvent(i * 1000, i, "A"));
+        }
+        new RrdCheckpoint(recorder, file).write();
+
+        final RrdEventRecorder restored = new RrdEventRecorder(3, RrdEventRecorder.SECOND);
+        new RrdCheckpoint(restored, file).load();
+        final List<EventBucket> buckets = restored.getEventBuckets("A");
+        assertEquals(3, buckets.size());
+        assertEquals(8000, buckets.get(0).getIntervalStart());
+        assertEquals(10, buckets.get(2).getMaxValue(), MAXDELTA);
+    }
+
+    @Test
+    public void restoresDistinctCounts() throws IOException {
+        final File file = new File(folder.getRoot(), "checkpoint");
+        final RrdEventRecorder recorder = new RrdEventRecorder.Builder(5, RrdEventRecorder.SECOND)
+                .distinctCountPrecision(10)
+                .build();
+        for (int i = 0; i < 100; i++) {
+            recorder.record(new RrdEventRecorderTest.KeyedTestEvent(1000 + i, "A", i));
+        }
+        new RrdCheckpoint(recorder, file).write();
+
+        final RrdEventRecorder restored = new RrdEventRecorder.Builder(5, RrdEventRecorder.SECOND)
+                .distinctCountPrecision(10)
+                .build();
+        new RrdCheckpoint(restored, file).load();
+        assertEquals(recorder.getDistinctCount("A"), restored.getDistinctCount("A"));
+        assertTrue(restored.getDistinctCount("A") > 90);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsDifferentBucketWidth() throws IOException {
+        final File file = new File(folder.getRoot(), "checkpoint");
+        final RrdEventRecorder recorder = new RrdEventRecorder(5, RrdEventRecorder.SECOND);
+        recorder.record(new TestEvent(1000, 1, "A"));
+        new RrdCheckpoint(recorder, file).write();
+
+        new RrdCheckpoint(new RrdEventRecorder(5, RrdEventRecorder.MINUTE), file).load();
+    }
+
+    @Test
+    public void restoresOffsetBuckets() throws IOException {
+        final File file = new File(folder.getRoot(), "checkpoint");
+        final long offset = 22 * RrdEventRecorder.HOUR;
+        final RrdEventRecorder recorder = new RrdEventRecorder.Builder(3, RrdEventRecorder.DAY)
+                .alignmentOffset(offset)
+                .build();
+        recorder.record(new TestEvent(RrdEventRecorder.DAY, 1, "A"));
+        new RrdCheckpoint(recorder, file).write();
+
+        final RrdEventRecorder restored = new RrdEventRecorder.Builder(3, RrdEventRecorder.DAY)
+                .alignmentOffset(offset)
+                .build();
+        assertEquals(1, new RrdCheckpoint(restored, file).load());
+        assertEquals(recorder.getEventBuckets("A").toString(), restored.getEventBuckets("A").toString());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsDifferentAlignmentOffset() throws IOException {
+        final File file = new File(folder.getRoot(), "checkpoint");
+        final RrdEventRecorder recorder = new RrdEventRecorder.Builder(3, RrdEventRecorder.DAY)
+                .alignmentOffset(RrdEventRecorder.HOUR)
+                .build();
+        recorder.record(new TestEvent(RrdEventRecorder.DAY, 1, "A"));
+        new RrdCheckpoint(recorder, file).write();
+
+        new RrdCheckpoint(new RrdEventRecorder(3, RrdEventRecorder.DAY), file).load();
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsDamagedFile() throws IOException {
+        final File file = new File(folder.getRoot(), "checkpoint");
+        final RrdEventRecorder recorder = new RrdEventRecorder(5, RrdEventRecorder.SECOND);
+        recorder.record(new TestEvent(1000, 1, "A"));
+        new RrdCheckpoint(recorder, file).write();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(20);
+            raf.write(0x55);
+        }
+
+        new RrdCheckpoint(new RrdEventRecorder(5, RrdEventRecorder.SECOND), file).load();
+    }
+
+    @Test
+    public void removesTemporaryFileWhenWritingFails() throws IOException {
+        // a non-empty directory can't be replaced by the checkpoint
+        final File file = folder.newFolder("checkpoint");
+        assertTrue(new File(file, "content").createNewFile());
+        final RrdEventRecorder recorder = new RrdEventRecorder(5, RrdEventRecorder.SECOND);
+        recorder.record(new TestEvent(1000, 1, "A"));
+
+        try {
+            new RrdCheckpoint(recorder, file).write();
+            fail("write into a directory should fail");
+        } catch (IOException expected) {
+            // expected
+        }
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void writesPeriodically() throws Exception {
+        final File file = new File(folder.getRoot(), "checkpoint");
+        final RrdEventRecorder recorder = new RrdEventRecorder(5, RrdEventRecorder.SECOND);
+        recorder.record(new TestEvent(1000, 1, "A"));
+        final RrdCheckpoint checkpoint = new RrdCheckpoint(recorder, file);
+
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            checkpoint.scheduleWith(executor, 10);
+            for (int i = 0; i < 500 && !file.exists(); i++) {
+                Thread.sleep(10);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertTrue(file.exists());
+        assertEquals(0, checkpoint.getWriteErrors());
+    }
+}
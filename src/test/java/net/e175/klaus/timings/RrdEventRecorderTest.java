@@ -2,7 +2,9 @@ package net.e175.klaus.timings;
 
 import org.junit.Test;
 
+import java.time.ZoneOffset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -35,6 +37,22 @@ public class RrdEventRecorderTest {
         new RrdEventRecorder(10, 0);
     }
 
+    @Test(expected = IllegalArgumentException.class)
+    public void builderRejectsSillyNumberOfBuckets() {
+        new RrdEventRecorder.Builder(0, 100);
+    }
+
+    @Test
+    public void builderAppliesSettings() {
+        RrdEventRecorder recorder = new RrdEventRecorder.Builder(7, RrdEventRecorder.MINUTE)
+                .alignmentOffset(RrdEventRecorder.SECOND)
+                .build();
+
+        assertEquals(7, recorder.getNumberOfBuckets());
+        assertEquals(RrdEventRecorder.MINUTE, recorder.getBucketWidth());
+        assertEquals(RrdEventRecorder.SECOND, recorder.getAlignmentOffset());
+    }
+
     @Test
     public void returnsEmptyListForNonexistingName() {
         RrdEventRecorder recorder = new RrdEventRecorder();
@@ -87,6 +105,465 @@ public class RrdEventRecorderTest {
         assertEquals(2, set.size());
     }
 
+    @Test
+    public void returnsSameDataInColumns() {
+        RrdEventRecorder recorder = new RrdEventRecorder(24, RrdEventRecorder.HOUR);
+
+        for (Event e : createShuffledHourlyEvents("B")) {
+            recorder.record(e);
+        }
+        recorder.record(new TestEvent(RrdEventRecorder.DAY + 5, 7, "A"));
+
+        EventBucketColumns columns = recorder.getEventBucketColumns();
+
+        assertEquals(RrdEventRecorder.HOUR, columns.bucketWidth);
+        assertEquals(recorder.getNames().size(), columns.buckets.length);
+        for (int i = 0; i < columns.buckets.length; i++) {
+            String name = recorder.getNames().get(i);
+            assertEquals(name, columns.buckets[i].name);
+            assertColumnsEqual(recorder.getEventBuckets(name), columns.buckets[i]);
+        }
+    }
+
+    @Test
+    public void returnsSameDataInColumnsWithUntilTime() {
+        RrdEventRecorder recorder = new RrdEventRecorder(10, RrdEventRecorder.SECOND);
+        recorder.record(new TestEvent(9500, 1, "A"));
+        recorder.record(new TestEvent(3500, 2, "A"));
+
+        EventBucketColumns columns = recorder.getEventBucketColumns(12500);
+
+        assertEquals(1, columns.buckets.length);
+        assertColumnsEqual(recorder.getEventBuckets("A", 12500), columns.buckets[0]);
+    }
+
+    private void assertColumnsEqual(List<EventBucket> expected, EventBucketColumns.NameToColumns actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            EventBucket b = expected.get(i);
+            assertEquals(b.getIntervalStart(), actual.intervalStart[i]);
+            assertEquals(b.getCount(), actual.count[i]);
+            assertEquals(b.getMinValue(), actual.minValue[i], MAXDELTA);
+            assertEquals(b.getMeanValue(), actual.meanValue[i], MAXDELTA);
+            assertEquals(b.getMaxValue(), actual.maxValue[i], MAXDELTA);
+        }
+    }
+
+    @Test
+    public void returnsOnlyModifiedBucketsSinceCursor() {
+        RrdEventRecorder recorder = new RrdEventRecorder(24, RrdEventRecorder.HOUR);
+        recorder.record(new TestEvent(RrdEventRecorder.HOUR, 1, "A"));
+        recorder.record(new TestEvent(2 * RrdEventRecorder.HOUR, 1, "B"));
+
+        EventBucketsDelta full = recorder.getEventBucketsSince(0);
+        assertEquals(2, full.getEventBuckets().size());
+        assertEquals(1, full.getEventBuckets().get("A").size());
+
+        EventBucketsDelta none = recorder.getEventBucketsSince(full.getCursor());
+        assertTrue(none.isEmpty());
+        assertTrue(none.getCursor() > full.getCursor());
+
+        recorder.record(new TestEvent(2 * RrdEventRecorder.HOUR + 1, 1, "B"));
+        EventBucketsDelta delta = recorder.getEventBucketsSince(none.getCursor());
+        assertEquals(1, delta.getEventBuckets().size());
+        List<EventBucket> buckets = delta.getEventBuckets().get("B");
+        assertEquals(1, buckets.size());
+        assertEquals(2 * RrdEventRecorder.HOUR, buckets.get(0).getIntervalStart());
+        assertEquals(2, buckets.get(0).getCount());
+    }
+
+    @Test
+    public void supportsIndependentDeltaConsumers() {
+        RrdEventRecorder recorder = new RrdEventRecorder(24, RrdEventRecorder.HOUR);
+        recorder.record(new TestEvent(0, 1, "A"));
+
+        long cursorA = recorder.getEventBucketsSince(0).getCursor();
+        recorder.record(new TestEvent(1, 1, "A"));
+        long cursorB = recorder.getEventBucketsSince(0).getCursor();
+        recorder.record(new TestEvent(2, 1, "A"));
+
+        assertEquals(3, recorder.getEventBucketsSince(cursorA).getEventBuckets().get("A").get(0).getCount());
+        assertEquals(3, recorder.getEventBucketsSince(cursorB).getEventBuckets().get("A").get(0).getCount());
+    }
+
+    @Test
+    public void aggregatesGroupsOfNames() {
+        RrdEventRecorder recorder = new RrdEventRecorder(24, RrdEventRecorder.HOUR);
+        recorder.record(new TestEvent(0, 1, "db.orders.select"));
+        recorder.record(new TestEvent(0, 3, "db.orders.insert"));
+        recorder.record(new TestEvent(0, 5, "db.users.select"));
+        recorder.record(new TestEvent(0, 7, "web.index"));
+
+        assertEquals(2, recorder.getGroupEventBuckets("db.orders.*").get(23).getCount());
+        assertEquals(2, recorder.getGroupEventBuckets("db.orders.*").get(23).getMeanValue(), MAXDELTA);
+        assertEquals(3, recorder.getGroupEventBuckets("db.*").get(23).getCount());
+        assertEquals(4, recorder.getGroupEventBuckets("*").get(23).getCount());
+        assertEquals(0, recorder.getGroupEventBuckets("nothing.*").size());
+
+        recorder.record(new TestEvent(1, 9, "db.orders.select"));
+        recorder.record(new TestEvent(1, 9, "db.orders.delete"));
+        recorder.record(new TestEvent(1, 9, "nothing.here"));
+
+        assertEquals(4, recorder.getGroupEventBuckets("db.orders.*").get(23).getCount());
+        assertEquals(5, recorder.getGroupEventBuckets("db.*").get(23).getCount());
+        assertEquals(1, recorder.getGroupEventBuckets("nothing.*", 1).get(23).getCount());
+        assertEquals(7, recorder.getGroupEventBuckets("*").get(23).getCount());
+
+        assertEquals(4, recorder.getGroupPatterns().size());
+        assertEquals("*", recorder.getGroupPatterns().get(0));
+        assertEquals(6, recorder.getNames().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsGroupPatternWithoutWildcard() {
+        new RrdEventRecorder().getGroupEventBuckets("db.orders");
+    }
+
+    @Test
+    public void clearsGroups() {
+        RrdEventRecorder recorder = new RrdEventRecorder(24, RrdEventRecorder.HOUR);
+        recorder.record(new TestEvent(0, 1, "db.orders.select"));
+        recorder.getGroupEventBuckets("db.*");
+
+        recorder.clear();
+
+        assertEquals(0, recorder.getGroupPatterns().size());
+        assertEquals(0, recorder.getGroupEventBuckets("db.*").size());
+    }
+
+    static final class KeyedTestEvent implements KeyedEvent {
+        private final long triggerTime;
+        private final String name;
+        private final long key;
+
+        KeyedTestEvent(final long triggerTime, final String name, final long key) {
+            this.triggerTime = triggerTime;
+            this.name = name;
+            this.key = key;
+        }
+
+        @Override
+        public long getTriggerTime() {
+            return triggerTime;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public double getValue() {
+            return 1;
+        }
+
+        @Override
+        public long getDistinctKey() {
+            return key;
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSillyDistinctCountPrecision() {
+        new RrdEventRecorder.Builder(24, RrdEventRecorder.HOUR).distinctCountPrecision(3).build();
+    }
+
+    @Test
+    public void countsDistinctKeys() {
+        RrdEventRecorder recorder = new RrdEventRecorder.Builder(24, RrdEventRecorder.HOUR)
+                .distinctCountPrecision(12)
+                .build();
+        // users 0..999 in hour 0, users 500..1499 in hour 1, every user twice
+        for (int round = 0; round < 2; round++) {
+            for (int user = 0; user < 1000; user++) {
+                recorder.record(new KeyedTestEvent(user, "login", user));
+                recorder.record(new KeyedTestEvent(RrdEventRecorder.HOUR + user, "login", user + 500));
+            }
+        }
+        recorder.record(new TestEvent(RrdEventRecorder.HOUR, 1, "login"));
+
+        List<Long> perBucket = recorder.getDistinctCounts("login");
+        assertEquals(24, perBucket.size());
+        assertEquals(1000, perBucket.get(22), 50);
+        assertEquals(1000, perBucket.get(23), 50);
+        assertEquals(0, (long) perBucket.get(0));
+        assertEquals(4001, recorder.getEventBuckets("login").get(23).getCount()
+                + recorder.getEventBuckets("login").get(22).getCount());
+
+        assertEquals(1500, recorder.getDistinctCount("login"), 75);
+        assertEquals(1000, recorder.getDistinctCount(Collections.singletonList("login"), 0, RrdEventRecorder.HOUR),
+                50);
+        assertEquals(0, recorder.getDistinctCount("unknown"));
+        assertTrue(recorder.getDistinctCounts("unknown").isEmpty());
+    }
+
+    @Test
+    public void countsDistinctKeysAcrossNames() {
+        RrdEventRecorder recorder = new RrdEventRecorder.Builder(24, RrdEventRecorder.HOUR)
+                .distinctCountPrecision(12)
+                .build();
+        for (int user = 0; user < 1000; user++) {
+            recorder.record(new KeyedTestEvent(0, "web", user));
+            recorder.record(new KeyedTestEvent(0, "mobile", user + 800));
+        }
+
+        assertEquals(1800, recorder.getDistinctCount(Arrays.asList("web", "mobile"), 0, Long.MAX_VALUE), 90);
+    }
+
+    @Test
+    public void forgetsDistinctKeysOfOverwrittenBuckets() {
+        RrdEventRecorder recorder = new RrdEventRecorder.Builder(2, RrdEventRecorder.HOUR)
+                .distinctCountPrecision(12)
+                .build();
+        for (int user = 0; user < 100; user++) {
+            recorder.record(new KeyedTestEvent(0, "login", user));
+        }
+        recorder.record(new KeyedTestEvent(RrdEventRecorder.HOUR, "login", 1));
+        recorder.record(new KeyedTestEvent(2 * RrdEventRecorder.HOUR, "login", 2));
+
+        assertEquals(2, recorder.getDistinctCount("login"));
+        assertEquals(Arrays.asList(1L, 1L), recorder.getDistinctCounts("login"));
+    }
+
+    @Test
+    public void ignoresKeysWithoutDistinctCounting() {
+        RrdEventRecorder recorder = new RrdEventRecorder(24, RrdEventRecorder.HOUR);
+        recorder.record(new KeyedTestEvent(0, "login", 1));
+        assertEquals(0, recorder.getDistinctCount("login"));
+        assertEquals(1, recorder.getEventBuckets("login").get(23).getCount());
+    }
+
+    @Test
+    public void reportsFootprint() {
+        RrdEventRecorder recorder = new RrdEventRecorder(24, RrdEventRecorder.HOUR);
+        RecorderFootprint empty = recorder.getFootprint();
+        assertEquals(0, empty.getNameCount());
+        assertEquals(0, empty.getAllocatedBuckets());
+        assertEquals(0, empty.getEstimatedBytes());
+
+        recorder.record(new TestEvent(0, 1, "a"));
+        recorder.record(new TestEvent(RrdEventRecorder.HOUR, 1, "a"));
+        recorder.record(new TestEvent(0, 1, "b"));
+        recorder.getGroupEventBuckets("*");
+
+        RecorderFootprint footprint = recorder.getFootprint();
+        assertEquals(2, footprint.getNameCount());
+        assertEquals(1, footprint.getGroupCount());
+        assertEquals(5, footprint.getAllocatedBuckets());
+        assertTrue(recorder.getEstimatedBytes("a") > recorder.getEstimatedBytes("b"));
+        assertTrue(footprint.getEstimatedBytes()
+                > recorder.getEstimatedBytes("a") + recorder.getEstimatedBytes("b"));
+        assertEquals(0, recorder.getEstimatedBytes("unknown"));
+
+        recorder.clear();
+        assertEquals(0, recorder.getFootprint().getAllocatedBuckets());
+        assertEquals(0, recorder.getFootprint().getEstimatedBytes());
+    }
+
+    @Test
+    public void ignoresRecordingIntoClearedRRD() {
+        RrdEventRecorder recorder = new RrdEventRecorder(128, RrdEventRecorder.SECOND);
+        recorder.record(new TestEvent(0, 1, "a"));
+        RRD removed = recorder.getRRD("a");
+        recorder.clear();
+
+        // a thread that fetched the RRD before clear() may still record into it
+        removed.addToBuckets(new TestEvent(100 * RrdEventRecorder.SECOND, 1, "a"));
+        assertEquals(0, recorder.getFootprint().getAllocatedBuckets());
+        assertEquals(0, recorder.getFootprint().getEstimatedBytes());
+    }
+
+    @Test
+    public void summarizesWindowPerNameAndGroup() {
+        RrdEventRecorder recorder = new RrdEventRecorder(3, RrdEventRecorder.SECOND);
+        assertNull(recorder.getWindowSummary("db.select"));
+
+        recorder.record(new TestEvent(1000, 8, "db.select"));
+        recorder.record(new TestEvent(2000, 2, "db.select"));
+        recorder.record(new TestEvent(3000, 5, "db.insert"));
+        recorder.record(new TestEvent(4500, 4, "db.select"));
+
+        // the first event has dropped out of the window
+        EventBucket summary = recorder.getWindowSummary("db.select");
+        assertEquals(2000, summary.getIntervalStart());
+        assertEquals(5000, summary.getIntervalEnd());
+        assertEquals(2, summary.getCount());
+        assertEquals(2, summary.getMinValue(), MAXDELTA);
+        assertEquals(3, summary.getMeanValue(), MAXDELTA);
+        assertEquals(4, summary.getMaxValue(), MAXDELTA);
+
+        EventBucket group = recorder.getGroupWindowSummary("db.*");
+        assertEquals(3, group.getCount());
+        assertEquals(11 / 3.0, group.getMeanValue(), MAXDELTA);
+        assertEquals(5, group.getMaxValue(), MAXDELTA);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAlignmentOffsetBeyondBucketWidth() {
+        new RrdEventRecorder.Builder(10, RrdEventRecorder.HOUR).alignmentOffset(RrdEventRecorder.HOUR).build();
+    }
+
+    @Test
+    public void alignsBucketsToOffset() {
+        // daily buckets starting at midnight in UTC+02:00
+        final long offset = RrdEventRecorder.alignmentOffsetFor(ZoneOffset.ofHours(2), RrdEventRecorder.DAY);
+        assertEquals(22 * RrdEventRecorder.HOUR, offset);
+        RrdEventRecorder recorder = new RrdEventRecorder.Builder(3, RrdEventRecorder.DAY)
+                .alignmentOffset(offset)
+                .build();
+
+        recorder.record(new TestEvent(RrdEventRecorder.DAY + 21 * RrdEventRecorder.HOUR, 1, "A"));
+        recorder.record(new TestEvent(RrdEventRecorder.DAY + 23 * RrdEventRecorder.HOUR, 2, "A"));
+        List<EventBucket> buckets = recorder.getEventBuckets("A");
+        assertEquals(3, buckets.size());
+        assertEquals(offset, buckets.get(1).getIntervalStart());
+        assertEquals(1, buckets.get(1).getCount());
+        assertEquals(RrdEventRecorder.DAY + offset, buckets.get(2).getIntervalStart());
+        assertEquals(2, buckets.get(2).getMeanValue(), MAXDELTA);
+
+        // events before the first offset interval go into a bucket starting before the epoch
+        recorder.record(new TestEvent(RrdEventRecorder.HOUR, 3, "B"));
+        assertEquals(offset - RrdEventRecorder.DAY, recorder.getEventBuckets("B").get(2).getIntervalStart());
+    }
+
+    @Test
+    public void alignsNonPowerOfTwoRingsToOffset() {
+        // half-hour offset, e.g. for UTC+05:30 with hourly buckets
+        final long offset = RrdEventRecorder.alignmentOffsetFor(ZoneOffset.ofHoursMinutes(5, 30),
+                RrdEventRecorder.HOUR);
+        assertEquals(30 * RrdEventRecorder.MINUTE, offset);
+        RrdEventRecorder recorder = new RrdEventRecorder.Builder(5, RrdEventRecorder.HOUR)
+                .alignmentOffset(offset)
+                .build();
+        for (int i = 0; i < 12; i++) {
+            recorder.record(new TestEvent(i * RrdEventRecorder.HOUR, i, "A"));
+        }
+
+        List<EventBucket> buckets = recorder.getEventBuckets("A");
+        assertEquals(5, buckets.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals((6 + i) * RrdEventRecorder.HOUR + offset, buckets.get(i).getIntervalStart());
+            assertEquals(7 + i, buckets.get(i).getMeanValue(), MAXDELTA);
+        }
+    }
+
+    @Test
+    public void compressesOlderBucketsWhenAsked() {
+        final int numberOfBuckets = 7 * 24 * 60;
+        RrdEventRecorder plain = new RrdEventRecorder(numberOfBuckets, RrdEventRecorder.MINUTE);
+        RrdEventRecorder compressed = new RrdEventRecorder.Builder(numberOfBuckets, RrdEventRecorder.MINUTE)
+                .compressOlderBuckets(true)
+                .build();
+        for (int i = 0; i < numberOfBuckets; i++) {
+            for (String name : new String[]{"a", "b"}) {
+                TestEvent event = new TestEvent(i * RrdEventRecorder.MINUTE, i % 100, name);
+                plain.record(event);
+                compressed.record(event);
+            }
+        }
+
+        assertEquals(plain.getEventBuckets().toString(), compressed.getEventBuckets().toString());
+        assertEquals(plain.getGroupEventBuckets("*").toString(), compressed.getGroupEventBuckets("*").toString());
+
+        // merging the second member into the group decompressed it until the next bucket is started
+        for (String name : new String[]{"a", "b"}) {
+            TestEvent event = new TestEvent(numberOfBuckets * RrdEventRecorder.MINUTE, 1, name);
+            plain.record(event);
+            compressed.record(event);
+        }
+        assertEquals(plain.getGroupEventBuckets("*").toString(), compressed.getGroupEventBuckets("*").toString());
+        assertTrue(compressed.getFootprint().getEstimatedBytes() * 5 < plain.getFootprint().getEstimatedBytes());
+
+        compressed.clear();
+        assertEquals(0, compressed.getFootprint().getEstimatedBytes());
+    }
+
+    @Test
+    public void reportsReleasedBuckets() {
+        RrdEventRecorder recorder = new RrdEventRecorder(1440, RrdEventRecorder.MINUTE);
+        for (int i = 0; i < 10; i++) {
+            recorder.record(new TestEvent(i * RrdEventRecorder.MINUTE, i, "burst"));
+        }
+        final long burstBytes = recorder.getFootprint().getEstimatedBytes();
+        assertEquals(10, recorder.getFootprint().getAllocatedBuckets());
+        assertEquals(burstBytes, recorder.getEstimatedBytes("burst"));
+
+        recorder.record(new TestEvent(2000 * RrdEventRecorder.MINUTE, 1, "burst"));
+        assertEquals(1, recorder.getFootprint().getAllocatedBuckets());
+        assertEquals(burstBytes - 9 * RRD.MUTABLE_BUCKET_BYTES, recorder.getFootprint().getEstimatedBytes());
+    }
+
+    private static long totalCount(List<EventBucket> buckets) {
+        long count = 0;
+        for (EventBucket b : buckets) {
+            count += b.getCount();
+        }
+        return count;
+    }
+
+    @Test
+    public void instrumentsItself() {
+        SimpleListener listener = new SimpleListener();
+        RrdEventRecorder recorder = new RrdEventRecorder.Builder(24, RrdEventRecorder.HOUR)
+                .listener(listener)
+                .selfInstrumentation(true)
+                .build();
+        recorder.record(new TestEvent(0, 1, "a"));
+        recorder.record(new TestEvent(RrdEventRecorder.HOUR, 1, "a"));
+        recorder.record(new TestEvent(2 * RrdEventRecorder.HOUR, 1, "a"));
+        recorder.record(new TestEvent(2 * RrdEventRecorder.HOUR, 1, "b"));
+        recorder.record(new TestEvent(0, 1, "a"));
+        for (int i = 0; i < 100000; i++) {
+            recorder.record(new TestEvent(2 * RrdEventRecorder.HOUR, i, "b"));
+        }
+
+        assertEquals(2, totalCount(recorder.getEventBuckets(SelfInstrumentation.ROLLOVER)));
+        assertEquals(2, totalCount(recorder.getEventBuckets(SelfInstrumentation.LISTENER)));
+        assertEquals(0, totalCount(recorder.getEventBuckets(SelfInstrumentation.TOO_OLD)));
+        assertTrue(totalCount(recorder.getEventBuckets(SelfInstrumentation.RECORD_LATENCY)) > 0);
+        assertTrue(recorder.getGroupEventBuckets(RrdEventRecorder.SELF_PREFIX + "*").get(23).getCount() > 0);
+        // rollovers of "a", plus those of the rollover and listener names, which are not instrumented themselves
+        assertEquals(4, listener.count);
+    }
+
+    @Test
+    public void countsEventsDroppedAsTooOld() {
+        RrdEventRecorder recorder = new RrdEventRecorder.Builder(2, RrdEventRecorder.HOUR)
+                .selfInstrumentation(true)
+                .build();
+        recorder.record(new TestEvent(0, 1, "a"));
+        recorder.record(new TestEvent(2 * RrdEventRecorder.HOUR, 1, "a"));
+        recorder.record(new TestEvent(10, 1, "a"));
+
+        assertEquals(1, totalCount(recorder.getEventBuckets(SelfInstrumentation.TOO_OLD)));
+        assertEquals(1, totalCount(recorder.getEventBuckets("a")));
+    }
+
+    @Test
+    public void countsLaterTooOldEventsInCurrentWindow() {
+        RrdEventRecorder recorder = new RrdEventRecorder.Builder(2, RrdEventRecorder.HOUR)
+                .selfInstrumentation(true)
+                .build();
+        recorder.record(new TestEvent(0, 1, "a"));
+        recorder.record(new TestEvent(10 * RrdEventRecorder.HOUR, 1, "a"));
+        recorder.record(new TestEvent(10, 1, "a"));
+        recorder.record(new TestEvent(20 * RrdEventRecorder.HOUR, 1, "a"));
+        recorder.record(new TestEvent(20, 1, "a"));
+        recorder.record(new TestEvent(30, 1, "a"));
+
+        final long now = 20 * RrdEventRecorder.HOUR;
+        assertEquals(2, recorder.getEventBuckets(SelfInstrumentation.TOO_OLD, now).get(1).getCount());
+        assertEquals(2, totalCount(recorder.getEventBuckets(SelfInstrumentation.TOO_OLD, now)));
+    }
+
+    @Test
+    public void doesNotInstrumentItselfByDefault() {
+        RrdEventRecorder recorder = new RrdEventRecorder(2, RrdEventRecorder.HOUR);
+        recorder.record(new TestEvent(0, 1, "a"));
+        recorder.record(new TestEvent(2 * RrdEventRecorder.HOUR, 1, "a"));
+        assertEquals(Collections.singletonList("a"), recorder.getNames());
+    }
+
     @Test
     public void canClearEvents() {
         List<Event> events1 = createShuffledHourlyEvents("1");
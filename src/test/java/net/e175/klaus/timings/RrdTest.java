@@ -5,8 +5,11 @@ import org.junit.Test;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class RrdTest {
@@ -301,6 +304,198 @@ public class RrdTest {
         assertEquals(0, buckets.get(0).getCount());
     }
 
+    @Test
+    public void collectsOnlyModifiedBuckets() {
+        AtomicLong clock = new AtomicLong();
+        RRD recorder = new RRD("", new RRD.Options(10, RrdEventRecorder.SECOND).versionClock(clock));
+        recorder.addToBuckets(new TestEvent(3500, 1));
+        recorder.addToBuckets(new TestEvent(4500, 1));
+
+        List<EventBucket> modified = new ArrayList<>();
+        recorder.collectBucketsModifiedSince(0, modified);
+        assertEquals(2, modified.size());
+        assertEquals(3000, modified.get(0).getIntervalStart());
+        assertEquals(4000, modified.get(1).getIntervalStart());
+
+        long since = clock.incrementAndGet();
+        modified.clear();
+        recorder.collectBucketsModifiedSince(since, modified);
+        assertEquals(0, modified.size());
+
+        recorder.addToBuckets(new TestEvent(3600, 1));
+        recorder.addToBuckets(new TestEvent(9500, 1));
+        recorder.collectBucketsModifiedSince(since, modified);
+        assertEquals(2, modified.size());
+        assertEquals(3000, modified.get(0).getIntervalStart());
+        assertEquals(2, modified.get(0).getCount());
+        assertEquals(9000, modified.get(1).getIntervalStart());
+    }
+
+    @Test
+    public void doesNotCollectBucketsOutsideWindow() {
+        AtomicLong clock = new AtomicLong();
+        RRD recorder = new RRD("", new RRD.Options(10, RrdEventRecorder.SECOND).versionClock(clock));
+        recorder.addToBuckets(new TestEvent(3500, 1));
+        recorder.addToBuckets(new TestEvent(20500, 1));
+
+        List<EventBucket> modified = new ArrayList<>();
+        recorder.collectBucketsModifiedSince(0, modified);
+        assertEquals(1, modified.size());
+        assertEquals(20000, modified.get(0).getIntervalStart());
+    }
+
+    @Test
+    public void mergesPartialBuckets() {
+        RRD recorder = new RRD(10, RrdEventRecorder.SECOND, "");
+        recorder.addToBuckets(new TestEvent(3500, 1));
+        MutableBucket partial = new MutableBucket(3000, 4000, new TestEvent(3000, 5));
+        partial.addEvent(new TestEvent(3000, 3));
+        recorder.addBucket(partial);
+        recorder.addBucket(new ImmutableBucket(4000, 5000, new TestEvent(4000, 2)));
+        recorder.addBucket(new ImmutableBucket(5000, 6000, null));
+
+        List<EventBucket> buckets = recorder.getEventBuckets();
+        assertEquals(3, buckets.get(8).getCount());
+        assertEquals(3, buckets.get(8).getMeanValue(), 1e-6);
+        assertEquals(1, buckets.get(9).getCount());
+        assertEquals(4000, buckets.get(9).getIntervalStart());
+    }
+
+    @Test
+    public void forwardsToAttachedGroups() {
+        RRD member = new RRD(10, RrdEventRecorder.SECOND, "a");
+        RRD group = new RRD(10, RrdEventRecorder.SECOND, "*");
+        member.addToBuckets(new TestEvent(3500, 1));
+
+        member.attachGroup(group);
+        member.attachGroup(group);
+        member.addToBuckets(new TestEvent(3600, 3));
+
+        List<EventBucket> buckets = group.getEventBuckets();
+        assertEquals(10, buckets.size());
+        assertEquals(2, buckets.get(9).getCount());
+        assertEquals(2, buckets.get(9).getMeanValue(), 1e-6);
+    }
+
+    @Test
+    public void singleBucketRollsOverAtIntervalEnd() {
+        SimpleListener listener = new SimpleListener();
+        RRD recorder = new RRD(1, RrdEventRecorder.SECOND, "", listener);
+        recorder.addToBuckets(new TestEvent(1500, 1));
+        recorder.addToBuckets(new TestEvent(2000, 2));
+
+        List<EventBucket> buckets = recorder.getEventBuckets();
+        assertEquals(2000, buckets.get(0).getIntervalStart());
+        assertEquals(1, buckets.get(0).getCount());
+        assertEquals(2, buckets.get(0).getMeanValue(), 1e-6);
+
+        assertEquals(1, listener.count);
+        assertEquals(1000, listener.events.get(0).getIntervalStart());
+        assertEquals(1, listener.events.get(0).getMeanValue(), 1e-6);
+    }
+
+    @Test
+    public void handlesPowerOfTwoSizedRings() {
+        RRD recorder = new RRD(16, RrdEventRecorder.SECOND, "");
+        RRD reference = new RRD(15, RrdEventRecorder.SECOND, "");
+        for (int i = 0; i < 100; i++) {
+            recorder.addToBuckets(new TestEvent(i * 700, i));
+            reference.addToBuckets(new TestEvent(i * 700, i));
+        }
+
+        List<EventBucket> buckets = recorder.getEventBuckets();
+        List<EventBucket> referenceBuckets = reference.getEventBuckets();
+        assertEquals(16, buckets.size());
+        checkThatEventBucketsAreContiguous(buckets, RrdEventRecorder.SECOND);
+        for (int i = 1; i < 16; i++) {
+            assertEquals(referenceBuckets.get(i - 1).toString(), buckets.get(i).toString());
+        }
+    }
+
+    @Test
+    public void mergesDistinctKeysIntoGroups() {
+        RRD member = new RRD("a", new RRD.Options(10, RrdEventRecorder.SECOND).distinctCountPrecision(10));
+        RRD group = new RRD("*", new RRD.Options(10, RrdEventRecorder.SECOND).distinctCountPrecision(10));
+        member.addToBuckets(new RrdEventRecorderTest.KeyedTestEvent(1000, "a", 1));
+        member.attachGroup(group);
+        member.addToBuckets(new RrdEventRecorderTest.KeyedTestEvent(1000, "a", 2));
+        member.addToBuckets(new RrdEventRecorderTest.KeyedTestEvent(2000, "a", 2));
+
+        List<Long> counts = group.getDistinctCounts();
+        assertEquals(2L, (long) counts.get(8));
+        assertEquals(1L, (long) counts.get(9));
+        assertEquals(member.getDistinctCounts(), counts);
+
+        HyperLogLog union = new HyperLogLog(10);
+        group.mergeDistinctKeysInto(union, Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(2, union.estimate());
+    }
+
+    @Test
+    public void resetsReusedBuckets() {
+        RRD recorder = new RRD(2, RrdEventRecorder.SECOND, "");
+        recorder.addToBuckets(new TestEvent(0, 10));
+        recorder.addToBuckets(new TestEvent(500, 20));
+        recorder.addToBuckets(new TestEvent(1000, 1));
+        recorder.addToBuckets(new TestEvent(2000, 5));
+
+        List<EventBucket> buckets = recorder.getEventBuckets();
+        assertEquals(2000, buckets.get(1).getIntervalStart());
+        assertEquals(1, buckets.get(1).getCount());
+        assertEquals(5, buckets.get(1).getMinValue(), 1e-6);
+        assertEquals(5, buckets.get(1).getMaxValue(), 1e-6);
+        assertEquals(5, buckets.get(1).getMeanValue(), 1e-6);
+    }
+
+    @Test
+    public void allocatesLongRingsOnlyWhereUsed() {
+        final int numberOfBuckets = 1440;
+        RRD recorder = new RRD(numberOfBuckets, RrdEventRecorder.MINUTE, "");
+        assertEquals(0, recorder.getAllocatedBucketSlots());
+
+        // a short burst occupies a single chunk
+        for (int i = 0; i < 10; i++) {
+            recorder.addToBuckets(new TestEvent(i * RrdEventRecorder.MINUTE, i));
+        }
+        assertEquals(RRD.CHUNK_SIZE, recorder.getAllocatedBucketSlots());
+
+        // another burst much later, but still within the window
+        recorder.addToBuckets(new TestEvent(1000 * RrdEventRecorder.MINUTE, 1));
+        assertEquals(2 * RRD.CHUNK_SIZE, recorder.getAllocatedBucketSlots());
+        List<EventBucket> buckets = recorder.getEventBuckets();
+        assertEquals(numberOfBuckets, buckets.size());
+        checkThatEventBucketsAreContiguous(buckets, RrdEventRecorder.MINUTE);
+        assertEquals(1, buckets.get(numberOfBuckets - 1001).getCount());
+        assertEquals(1, buckets.get(numberOfBuckets - 1).getCount());
+
+        // the first burst drops out of the window, its chunk is released
+        recorder.addToBuckets(new TestEvent(2000 * RrdEventRecorder.MINUTE, 1));
+        assertEquals(2 * RRD.CHUNK_SIZE, recorder.getAllocatedBucketSlots());
+        buckets = recorder.getEventBuckets();
+        checkThatEventBucketsAreContiguous(buckets, RrdEventRecorder.MINUTE);
+        long total = 0;
+        for (EventBucket b : buckets) {
+            total += b.getCount();
+        }
+        assertEquals(2, total);
+    }
+
+    @Test
+    public void handlesRingsWithPartialChunks() {
+        final int numberOfBuckets = RRD.CHUNK_SIZE * 2 + 3;
+        RRD recorder = new RRD(numberOfBuckets, RrdEventRecorder.SECOND, "");
+        for (int i = 0; i < numberOfBuckets * 3; i++) {
+            recorder.addToBuckets(new TestEvent(i * RrdEventRecorder.SECOND, i));
+        }
+        assertEquals(numberOfBuckets, recorder.getAllocatedBucketSlots());
+
+        List<EventBucket> buckets = recorder.getEventBuckets();
+        checkThatEventBucketsAreContiguous(buckets, RrdEventRecorder.SECOND);
+        for (int i = 0; i < numberOfBuckets; i++) {
+            assertEquals(numberOfBuckets * 2 + i, buckets.get(i).getMeanValue(), 1e-6);
+        }
+    }
+
     List<Event> createShuffledHourlyEvents() {
         List<Event> events = createHourlyEvents();
 
@@ -324,4 +519,126 @@ public class RrdTest {
         return events;
     }
 
+
+    private static RRD compressingRRD(final int numberOfBuckets, final long bucketWidth,
+                                      final FootprintCounter footprint) {
+        return new RRD("", new RRD.Options(numberOfBuckets, bucketWidth)
+                .footprint(footprint)
+                .compressOlderBuckets(true));
+    }
+
+    @Test
+    public void summarizesNothingWithoutEvents() {
+        assertNull(new RRD(60, RrdEventRecorder.SECOND, "").getWindowSummary());
+    }
+
+    @Test
+    public void summarizesWindow() {
+        for (final int numberOfBuckets : new int[]{1, 60, 100}) {
+            for (final boolean compress : new boolean[]{false, true}) {
+                final RRD rrd = new RRD("", new RRD.Options(numberOfBuckets, RrdEventRecorder.SECOND)
+                        .footprint(new FootprintCounter())
+                        .compressOlderBuckets(compress));
+                final Random random = new Random(numberOfBuckets);
+                long time = 0;
+                for (int i = 0; i < 20000; i++) {
+                    // mostly steady, with an occasional gap longer than the window
+                    time += random.nextInt(1000) == 0 ? random.nextInt(200000) : random.nextInt(100);
+                    final long eventTime = random.nextInt(20) == 0 ? Math.max(0, time - random.nextInt(80000)) : time;
+                    rrd.addToBuckets(new TestEvent(eventTime, random.nextInt(100000) / 100.0));
+                    if (i % 97 == 0) {
+                        assertSummary(rrd.getEventBuckets(), rrd.getWindowSummary());
+                    }
+                }
+            }
+        }
+    }
+
+    private static void assertSummary(final List<EventBucket> buckets, final EventBucket summary) {
+        long count = 0;
+        double sum = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (final EventBucket bucket : buckets) {
+            if (!bucket.isEmpty()) {
+                count += bucket.getCount();
+                sum += bucket.getMeanValue() * bucket.getCount();
+                min = Math.min(min, bucket.getMinValue());
+                max = Math.max(max, bucket.getMaxValue());
+            }
+        }
+
+        assertEquals(buckets.get(0).getIntervalStart(), summary.getIntervalStart());
+        assertEquals(buckets.get(buckets.size() - 1).getIntervalEnd(), summary.getIntervalEnd());
+        assertEquals(count, summary.getCount());
+        assertEquals(min, summary.getMinValue(), 1e-6);
+        assertEquals(max, summary.getMaxValue(), 1e-6);
+        assertEquals(sum / count, summary.getMeanValue(), 1e-6);
+    }
+
+    @Test
+    public void compressesOlderBucketsTransparently() {
+        // a week of one minute buckets
+        final int numberOfBuckets = 7 * 24 * 60;
+        final AtomicLong clock = new AtomicLong();
+        final FootprintCounter plainFootprint = new FootprintCounter();
+        final FootprintCounter compressedFootprint = new FootprintCounter();
+        RRD plain = new RRD("", new RRD.Options(numberOfBuckets, RrdEventRecorder.MINUTE)
+                .versionClock(clock)
+                .footprint(plainFootprint));
+        RRD compressed = new RRD("", new RRD.Options(numberOfBuckets, RrdEventRecorder.MINUTE)
+                .versionClock(clock)
+                .footprint(compressedFootprint)
+                .compressOlderBuckets(true));
+
+        final Random random = new Random(42);
+        long time = 0;
+        for (int i = 0; i < 200000; i++) {
+            time += random.nextInt(6000);
+            // some events arrive late, some of them for compressed buckets
+            final long eventTime = random.nextInt(100) == 0
+                    ? Math.max(0, time - random.nextInt((int) (3 * RrdEventRecorder.HOUR))) : time;
+            final TestEvent event = new TestEvent(eventTime, random.nextInt(10000) / 10.0);
+            plain.addToBuckets(event);
+            compressed.addToBuckets(event);
+            if (i % 10000 == 0) {
+                clock.incrementAndGet();
+            }
+        }
+
+        assertEquals(plain.getEventBuckets().toString(), compressed.getEventBuckets().toString());
+        assertEquals(plain.getEventBuckets(time - RrdEventRecorder.DAY).toString(),
+                compressed.getEventBuckets(time - RrdEventRecorder.DAY).toString());
+
+        final List<EventBucket> plainModified = new ArrayList<>();
+        final List<EventBucket> compressedModified = new ArrayList<>();
+        plain.collectBucketsModifiedSince(clock.get() - 5, plainModified);
+        compressed.collectBucketsModifiedSince(clock.get() - 5, compressedModified);
+        assertEquals(plainModified.toString(), compressedModified.toString());
+
+        // values with random fractions are about the worst case
+        assertTrue(compressedFootprint.getBytes() * 2 < plainFootprint.getBytes());
+    }
+
+    @Test
+    public void releasesCompressedChunks() {
+        final FootprintCounter footprint = new FootprintCounter();
+        RRD recorder = compressingRRD(1000, RrdEventRecorder.SECOND, footprint);
+        for (int i = 0; i < 1000; i++) {
+            recorder.addToBuckets(new TestEvent(i * RrdEventRecorder.SECOND, i));
+        }
+        assertTrue(recorder.getAllocatedBuckets() < 3 * RRD.CHUNK_SIZE);
+
+        // everything drops out of the window
+        recorder.addToBuckets(new TestEvent(10000 * RrdEventRecorder.SECOND, 1));
+        List<EventBucket> buckets = recorder.getEventBuckets();
+        long total = 0;
+        for (EventBucket b : buckets) {
+            total += b.getCount();
+        }
+        assertEquals(1, total);
+        assertEquals(1, footprint.getBuckets());
+        // one bucket, plus the objects reused for decoding
+        assertTrue(footprint.getBytes() < 2 * RRD.CHUNK_SIZE * RRD.MUTABLE_BUCKET_BYTES);
+    }
 }
@@ -0,0 +1,161 @@
+package net.e175.klaus.timings;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SamplingEventRecorderTest {
+
+    public static final double MAXDELTA = 1e-6;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMissingTarget() {
+        new SamplingEventRecorder(null, 10, SamplingEventRecorder.Mode.RANDOM);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSillyRate() {
+        new SamplingEventRecorder(new RrdEventRecorder(), 0, SamplingEventRecorder.Mode.RANDOM);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSillyMaxNames() {
+        new SamplingEventRecorder(new RrdEventRecorder(), 10, SamplingEventRecorder.Mode.RANDOM, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeTriggerTimes() {
+        new SamplingEventRecorder(new RrdEventRecorder(), 10, SamplingEventRecorder.Mode.RANDOM)
+                .record(new TestEvent(-1, 1, "A"));
+    }
+
+    @Test
+    public void silentlyIgnoresNullEvents() {
+        new SamplingEventRecorder(new RrdEventRecorder(), 10, SamplingEventRecorder.Mode.RANDOM).record(null);
+    }
+
+    @Test
+    public void passesOnEverythingAtRateOne() {
+        RrdEventRecorder target = new RrdEventRecorder(10, RrdEventRecorder.SECOND);
+        SamplingEventRecorder recorder = new SamplingEventRecorder(target, 1, SamplingEventRecorder.Mode.RANDOM);
+        recorder.record(new TestEvent(1100, 1, "A"));
+        recorder.record(new TestEvent(1200, 3, "A"));
+
+        EventBucket bucket = target.getEventBuckets("A").get(9);
+        assertEquals(2, bucket.getCount());
+        assertEquals(2, bucket.getMeanValue(), MAXDELTA);
+    }
+
+    @Test
+    public void samplesEveryNthEventWithScaledCounts() {
+        RrdEventRecorder target = new RrdEventRecorder(10, RrdEventRecorder.SECOND);
+        SamplingEventRecorder recorder = new SamplingEventRecorder(target, 10, SamplingEventRecorder.Mode.EVERY_NTH);
+        for (int i = 0; i < 100; i++) {
+            recorder.record(new TestEvent(1000 + i, i, "A"));
+        }
+        for (int i = 0; i < 5; i++) {
+            recorder.record(new TestEvent(1000 + i, i, "B"));
+        }
+
+        EventBucket bucket = target.getEventBuckets("A").get(9);
+        assertEquals(100, bucket.getCount());
+        // samples are events 9, 19, ... 99
+        assertEquals(54, bucket.getMeanValue(), MAXDELTA);
+        // extremes come from all events
+        assertEquals(0, bucket.getMinValue(), MAXDELTA);
+        assertEquals(99, bucket.getMaxValue(), MAXDELTA);
+
+        assertTrue(target.getEventBuckets("B").isEmpty());
+    }
+
+    @Test
+    public void startsNewExtremesPerInterval() {
+        RrdEventRecorder target = new RrdEventRecorder(10, RrdEventRecorder.SECOND);
+        SamplingEventRecorder recorder = new SamplingEventRecorder(target, 2, SamplingEventRecorder.Mode.EVERY_NTH);
+        recorder.record(new TestEvent(1000, -100, "A"));
+        recorder.record(new TestEvent(2000, 5, "A"));
+        recorder.record(new TestEvent(2001, 7, "A"));
+        recorder.record(new TestEvent(2002, 6, "A"));
+
+        List<EventBucket> buckets = target.getEventBuckets("A");
+        assertEquals(4, buckets.get(9).getCount());
+        assertEquals(5, buckets.get(9).getMinValue(), MAXDELTA);
+        assertEquals(7, buckets.get(9).getMaxValue(), MAXDELTA);
+        assertEquals(0, buckets.get(8).getCount());
+    }
+
+    @Test
+    public void startsExtremesInIntervalStartingAtMinusOne() {
+        RrdEventRecorder target = new RrdEventRecorder.Builder(10, RrdEventRecorder.SECOND)
+                .alignmentOffset(RrdEventRecorder.SECOND - 1)
+                .build();
+        SamplingEventRecorder recorder = new SamplingEventRecorder(target, 2, SamplingEventRecorder.Mode.EVERY_NTH);
+        recorder.record(new TestEvent(0, 5, "A"));
+        recorder.record(new TestEvent(1, 7, "A"));
+
+        EventBucket bucket = target.getEventBuckets("A").get(9);
+        assertEquals(-1, bucket.getIntervalStart());
+        assertEquals(5, bucket.getMinValue(), MAXDELTA);
+        assertEquals(7, bucket.getMaxValue(), MAXDELTA);
+    }
+
+    @Test
+    public void samplesRandomlyWithScaledCounts() {
+        RrdEventRecorder target = new RrdEventRecorder(10, RrdEventRecorder.SECOND);
+        SamplingEventRecorder recorder = new SamplingEventRecorder(target, 100, SamplingEventRecorder.Mode.RANDOM);
+        final int events = 200000;
+        for (int i = 0; i < events; i++) {
+            recorder.record(new TestEvent(1000, i % 1000, "A"));
+        }
+
+        EventBucket bucket = target.getEventBuckets("A").get(9);
+        assertEquals(0, bucket.getCount() % 100);
+        assertEquals(events, bucket.getCount(), events * 0.15);
+        assertEquals(499.5, bucket.getMeanValue(), 50);
+        assertEquals(0, bucket.getMinValue(), MAXDELTA);
+        assertEquals(999, bucket.getMaxValue(), MAXDELTA);
+    }
+
+    @Test
+    public void samplesMoreNamesThanFitPerThread() {
+        RrdEventRecorder target = new RrdEventRecorder(10, RrdEventRecorder.SECOND);
+        SamplingEventRecorder recorder = new SamplingEventRecorder(target, 128, SamplingEventRecorder.Mode.EVERY_NTH);
+        final int names = 100;
+        final int rounds = 1280;
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < names; i++) {
+                recorder.record(new TestEvent(1000, 1, "n" + i));
+            }
+        }
+
+        long total = 0;
+        for (int i = 0; i < names; i++) {
+            List<EventBucket> buckets = target.getEventBuckets("n" + i);
+            if (!buckets.isEmpty()) {
+                total += buckets.get(9).getCount();
+            }
+        }
+        // at most one unfinished countdown per name state
+        assertEquals(names * rounds, total, SamplingEventRecorder.DEFAULT_MAX_NAMES * 128);
+    }
+
+    @Test
+    public void keepsStateForConfiguredNumberOfNames() {
+        RrdEventRecorder target = new RrdEventRecorder(10, RrdEventRecorder.SECOND);
+        SamplingEventRecorder recorder =
+                new SamplingEventRecorder(target, 128, SamplingEventRecorder.Mode.EVERY_NTH, 100);
+        assertEquals(100, recorder.getMaxNames());
+        for (int round = 0; round < 1280; round++) {
+            for (int i = 0; i < 100; i++) {
+                recorder.record(new TestEvent(1000, 1, "n" + i));
+            }
+        }
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(1280, target.getEventBuckets("n" + i).get(9).getCount());
+        }
+    }
+}
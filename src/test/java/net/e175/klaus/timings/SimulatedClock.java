@@ -0,0 +1,44 @@
+package net.e175.klaus.timings;
+
+/**
+ * A clock for tests that only moves when told to, standing in for
+ * System.currentTimeMillis() and System.nanoTime() when creating TimerStarts
+ * and TimedEvents, so timed workloads are fully deterministic.
+ */
+final class SimulatedClock {
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private long nanos;
+
+    SimulatedClock(final long startMillis) {
+        nanos = startMillis * NANOS_PER_MILLI;
+    }
+
+    long currentTimeMillis() {
+        return Math.floorDiv(nanos, NANOS_PER_MILLI);
+    }
+
+    long nanoTime() {
+        return nanos;
+    }
+
+    void advanceNanos(final long delta) {
+        assert delta >= 0;
+        nanos += delta;
+    }
+
+    void advanceMillis(final long delta) {
+        advanceNanos(delta * NANOS_PER_MILLI);
+    }
+
+    TimerStart start() {
+        return new TimerStart(nanos);
+    }
+
+    /**
+     * Like {@link TimerStart#stop(String)}, but at the simulated time.
+     */
+    TimedEvent stop(final TimerStart start, final String name) {
+        return new TimedEvent(currentTimeMillis(), nanos - start.getStartNanoseconds(), name);
+    }
+}
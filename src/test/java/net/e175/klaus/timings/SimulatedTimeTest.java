@@ -0,0 +1,143 @@
+package net.e175.klaus.timings;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks RrdEventRecorder against the naive {@link ReferenceRecorder} on
+ * simulated workloads, for a range of ring sizes, bucket widths and
+ * alignment offsets, with and without compression. Results must match bit
+ * for bit, so any change to the storage engine that alters results shows up
+ * here, along with the seed and settings to reproduce it.
+ */
+public class SimulatedTimeTest {
+    private static final int[] NUMBERS_OF_BUCKETS = {1, 7, 64, 100, 129};
+    private static final long[] BUCKET_WIDTHS = {1, 7, 1000, 60000};
+    private static final String GROUP = "name*";
+
+    @Test
+    public void clockDrivesTimedEvents() {
+        final SimulatedClock clock = new SimulatedClock(5000);
+        final TimerStart start = clock.start();
+        clock.advanceNanos(1500000);
+        final TimedEvent event = clock.stop(start, "test");
+
+        assertEquals(5001, event.getTriggerTime());
+        assertEquals(1.5, event.getValue(), 0);
+        assertEquals(5001500000L, clock.nanoTime());
+    }
+
+    @Test
+    public void workloadsAreReproducible() {
+        final List<Event> first = new SimulatedWorkload(42, 1000, 10, 5, 0.1)
+                .generate(new SimulatedClock(0), 1000);
+        final List<Event> second = new SimulatedWorkload(42, 1000, 10, 5, 0.1)
+                .generate(new SimulatedClock(0), 1000);
+
+        assertEquals(first.size(), second.size());
+        for (int i = 0; i < first.size(); i++) {
+            assertEquals(first.get(i).getName(), second.get(i).getName());
+            assertEquals(first.get(i).getTriggerTime(), second.get(i).getTriggerTime());
+            assertEquals(Double.doubleToLongBits(first.get(i).getValue()),
+                    Double.doubleToLongBits(second.get(i).getValue()));
+        }
+    }
+
+    @Test
+    public void matchesReferenceModel() {
+        long seed = 1;
+        for (final int numberOfBuckets : NUMBERS_OF_BUCKETS) {
+            for (final long bucketWidth : BUCKET_WIDTHS) {
+                for (final long offset : new long[]{0, bucketWidth / 3}) {
+                    for (final boolean compress : new boolean[]{false, true}) {
+                        check(seed++, numberOfBuckets, bucketWidth, offset, compress, 0.1);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void matchesReferenceModelWithMostlyLateEvents() {
+        check(4711, 64, 1000, 0, true, 0.9);
+        check(4712, 129, 7, 3, false, 0.9);
+    }
+
+    private static void check(final long seed, final int numberOfBuckets, final long bucketWidth, final long offset,
+                              final boolean compress, final double lateFraction) {
+        final String setup = "seed " + seed + ", " + numberOfBuckets + " x " + bucketWidth + "ms, offset " + offset
+                + (compress ? ", compressed" : "");
+
+        final RrdEventRecorder recorder = new RrdEventRecorder.Builder(numberOfBuckets, bucketWidth)
+                .compressOlderBuckets(compress)
+                .alignmentOffset(offset)
+                .build();
+        final ReferenceRecorder reference = new ReferenceRecorder(numberOfBuckets, bucketWidth, offset);
+        // create the group first, so it sees every single Event
+        assertTrue(recorder.getGroupEventBuckets(GROUP).isEmpty());
+        assertNull(recorder.getGroupWindowSummary(GROUP));
+
+        final SimulatedClock clock = new SimulatedClock(1000000000L + seed);
+        final List<Event> events = new SimulatedWorkload(seed, bucketWidth, numberOfBuckets, 20, lateFraction)
+                .generate(clock, 4000);
+        for (int i = 0; i < events.size(); i++) {
+            recorder.record(events.get(i));
+            reference.record(events.get(i));
+            reference.record(GROUP, events.get(i));
+
+            if (i % 500 == 499) {
+                compare(setup + ", after " + (i + 1) + " events", recorder, reference);
+            }
+        }
+        compare(setup, recorder, reference);
+    }
+
+    private static void compare(final String setup, final RrdEventRecorder recorder,
+                                final ReferenceRecorder reference) {
+        for (final String key : reference.getKeys()) {
+            final boolean group = GROUP.equals(key);
+            final List<EventBucket> expected = reference.getEventBuckets(key);
+            final List<EventBucket> actual = group ? recorder.getGroupEventBuckets(key) : recorder.getEventBuckets(key);
+            assertEquals(setup + ", " + key, expected.size(), actual.size());
+
+            long count = 0;
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            double sum = 0;
+            for (int i = 0; i < expected.size(); i++) {
+                final EventBucket e = expected.get(i);
+                final EventBucket a = actual.get(i);
+                final String where = setup + ", " + key + ", bucket " + i;
+                assertEquals(where, e.getIntervalStart(), a.getIntervalStart());
+                assertEquals(where, e.getIntervalEnd(), a.getIntervalEnd());
+                assertEquals(where, e.getCount(), a.getCount());
+                assertEquals(where, Double.doubleToLongBits(e.getMinValue()), Double.doubleToLongBits(a.getMinValue()));
+                assertEquals(where, Double.doubleToLongBits(e.getMeanValue()),
+                        Double.doubleToLongBits(a.getMeanValue()));
+                assertEquals(where, Double.doubleToLongBits(e.getMaxValue()), Double.doubleToLongBits(a.getMaxValue()));
+
+                if (!e.isEmpty()) {
+                    count += e.getCount();
+                    min = Math.min(min, e.getMinValue());
+                    max = Math.max(max, e.getMaxValue());
+                    sum += e.getMeanValue() * e.getCount();
+                }
+            }
+
+            // summaries are aggregated in a different order, so only the mean may differ slightly
+            final EventBucket summary = group ? recorder.getGroupWindowSummary(key) : recorder.getWindowSummary(key);
+            final String where = setup + ", " + key + ", summary";
+            assertEquals(where, count, summary.getCount());
+            if (count > 0) {
+                assertEquals(where, min, summary.getMinValue(), 0);
+                assertEquals(where, max, summary.getMaxValue(), 0);
+                assertEquals(where, sum / count, summary.getMeanValue(), 1e-9 * Math.abs(sum / count));
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package net.e175.klaus.timings;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates randomized, but reproducible workloads of TimedEvents on a
+ * {@link SimulatedClock}, mixing phases of steady traffic, bursts of events
+ * within the same millisecond and "rollover storms" of jumps over one or
+ * more buckets (up to several times the window). Some events arrive late,
+ * some of them too late for the window, so events are returned in arrival
+ * order rather than in the order of their trigger times.
+ */
+final class SimulatedWorkload {
+    private final Random random;
+    private final long bucketWidth;
+    private final int numberOfBuckets;
+    private final int names;
+    private final double lateFraction;
+
+    private static final class Arrival {
+        private final long time;
+        private final int sequence;
+        private final Event event;
+
+        private Arrival(final long time, final int sequence, final Event event) {
+            this.time = time;
+            this.sequence = sequence;
+            this.event = event;
+        }
+    }
+
+    /**
+     * @param seed            Seed; the same seed and settings give the same workload.
+     * @param bucketWidth     Bucket width of the recorder under test, to scale time steps.
+     * @param numberOfBuckets Number of buckets of the recorder under test, to scale jumps and delays.
+     * @param names           Number of distinct names, used with a skewed distribution.
+     * @param lateFraction    Fraction of events arriving late.
+     */
+    SimulatedWorkload(final long seed, final long bucketWidth, final int numberOfBuckets, final int names,
+                      final double lateFraction) {
+        this.random = new Random(seed);
+        this.bucketWidth = bucketWidth;
+        this.numberOfBuckets = numberOfBuckets;
+        this.names = names;
+        this.lateFraction = lateFraction;
+    }
+
+    /**
+     * @return count events in arrival order.
+     */
+    List<Event> generate(final SimulatedClock clock, final int count) {
+        final List<Arrival> arrivals = new ArrayList<>(count);
+        final long windowWidth = numberOfBuckets * bucketWidth;
+        int phase = 0;
+        for (int i = 0; i < count; i++) {
+            if (random.nextInt(200) == 0) {
+                phase = random.nextInt(3);
+            }
+
+            switch (phase) {
+                case 0: // steady
+                    clock.advanceNanos(random.nextInt(1000000) + random.nextInt((int) Math.min(bucketWidth, 1000))
+                            * 250000L);
+                    break;
+                case 1: // rollover storm
+                    clock.advanceMillis(bucketWidth * (1 + random.nextInt(3 * numberOfBuckets))
+                            + random.nextInt((int) Math.min(bucketWidth, Integer.MAX_VALUE)));
+                    break;
+                default: // burst within the same millisecond
+                    clock.advanceNanos(random.nextInt(1000));
+                    break;
+            }
+
+            final TimerStart start = clock.start();
+            final long elapsed = (long) (random.nextDouble() * random.nextDouble() * 5000000);
+            clock.advanceNanos(elapsed);
+            final double r = random.nextDouble();
+            final TimedEvent event = clock.stop(start, "name" + (int) (names * r * r));
+
+            long delay = 0;
+            if (random.nextDouble() < lateFraction) {
+                // up to twice the window, so some events are too late
+                delay = (long) (random.nextDouble() * 2 * windowWidth);
+            }
+            arrivals.add(new Arrival(event.getTriggerTime() + delay, i, event));
+        }
+
+        Collections.sort(arrivals, new Comparator<Arrival>() {
+            @Override
+            public int compare(final Arrival a, final Arrival b) {
+                final int byTime = Long.compare(a.time, b.time);
+                return byTime != 0 ? byTime : Integer.compare(a.sequence, b.sequence);
+            }
+        });
+        final List<Event> events = new ArrayList<>(count);
+        for (final Arrival arrival : arrivals) {
+            events.add(arrival.event);
+        }
+        return events;
+    }
+}
@@ -0,0 +1,165 @@
+package net.e175.klaus.timings;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SketchEventRecorderTest {
+
+    public static final double MAXDELTA = 1e-6;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSillyBucketWidth() {
+        new SketchEventRecorder(10, 0, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSillySketchDepth() {
+        new SketchEventRecorder(10, 1000, 0, 100, null, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeTriggerTimes() {
+        new SketchEventRecorder(10, 1000, null).record(new TestEvent(-1, 1, "A"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAlignmentOffsetBeyondBucketWidth() {
+        new SketchEventRecorder(10, 1000, 4, 100, null, 1000);
+    }
+
+    @Test
+    public void silentlyIgnoresNullEvents() {
+        new SketchEventRecorder(10, 1000, null).record(null);
+    }
+
+    @Test
+    public void countsExactlyWithoutCollisions() {
+        SketchEventRecorder recorder = new SketchEventRecorder(10, RrdEventRecorder.SECOND, null);
+
+        recorder.record(new TestEvent(1100, 1, "A"));
+        recorder.record(new TestEvent(2100, 2, "A"));
+        recorder.record(new TestEvent(2200, 5, "B"));
+
+        assertEquals(2, recorder.getEstimatedCount("A"));
+        assertEquals(3, recorder.getEstimatedSum("A"), MAXDELTA);
+        assertEquals(1, recorder.getEstimatedCount("B"));
+        assertEquals(5, recorder.getEstimatedSum("B"), MAXDELTA);
+        assertEquals(0, recorder.getEstimatedCount("C"));
+        assertEquals(3, recorder.getTotalCount());
+    }
+
+    @Test
+    public void neverUnderestimatesWithManyNames() {
+        SketchEventRecorder recorder = new SketchEventRecorder(5, RrdEventRecorder.SECOND, 4, 256, null, 0);
+        final int names = 10000;
+        for (int i = 0; i < names; i++) {
+            for (int j = 0; j <= i % 3; j++) {
+                recorder.record(new TestEvent(1000 + i % 5000, 1, "customer" + i));
+            }
+        }
+
+        long overestimated = 0;
+        for (int i = 0; i < names; i++) {
+            final long estimate = recorder.getEstimatedCount("customer" + i);
+            assertTrue(estimate >= i % 3 + 1);
+            overestimated += estimate - (i % 3 + 1);
+        }
+        // average error must stay well below the count of all events per bucket
+        assertTrue(overestimated / names < recorder.getTotalCount() / 5);
+    }
+
+    @Test
+    public void forgetsEventsOutsideWindow() {
+        SketchEventRecorder recorder = new SketchEventRecorder(3, RrdEventRecorder.SECOND, null);
+
+        recorder.record(new TestEvent(1000, 1, "A"));
+        recorder.record(new TestEvent(2000, 1, "A"));
+        recorder.record(new TestEvent(3000, 1, "A"));
+        assertEquals(3, recorder.getEstimatedCount("A"));
+
+        recorder.record(new TestEvent(4000, 1, "B"));
+        assertEquals(2, recorder.getEstimatedCount("A"));
+
+        // too old: dropped
+        recorder.record(new TestEvent(1500, 1, "A"));
+        assertEquals(2, recorder.getEstimatedCount("A"));
+        assertEquals(3, recorder.getTotalCount());
+    }
+
+    @Test
+    public void tracksHotNamesExactly() {
+        SketchEventRecorder recorder = new SketchEventRecorder(10, RrdEventRecorder.SECOND, 1, 1,
+                new HashSet<>(Collections.singletonList("hot")), 0);
+
+        recorder.record(new TestEvent(1100, 2, "hot"));
+        recorder.record(new TestEvent(1200, 4, "hot"));
+        recorder.record(new TestEvent(1300, 100, "cold1"));
+        recorder.record(new TestEvent(1400, 100, "cold2"));
+
+        assertEquals(2, recorder.getEstimatedCount("hot"));
+        assertEquals(6, recorder.getEstimatedSum("hot"), MAXDELTA);
+        // a 1x1 sketch can't tell names apart
+        assertEquals(2, recorder.getEstimatedCount("cold1"));
+        assertEquals(2, recorder.getTotalCount());
+
+        List<EventBucket> buckets = recorder.getHotNameRecorder().getEventBuckets("hot");
+        assertEquals(3, buckets.get(9).getMeanValue(), MAXDELTA);
+        assertEquals(2, recorder.getEstimatedCount("unused"));
+    }
+
+    @Test
+    public void clearsEverything() {
+        SketchEventRecorder recorder = new SketchEventRecorder(10, RrdEventRecorder.SECOND,
+                new HashSet<>(Collections.singletonList("hot")));
+        recorder.record(new TestEvent(1100, 2, "hot"));
+        recorder.record(new TestEvent(1100, 2, "cold"));
+
+        recorder.clear();
+        assertEquals(0, recorder.getEstimatedCount("hot"));
+        assertEquals(0, recorder.getEstimatedCount("cold"));
+        assertEquals(0, recorder.getTotalCount());
+
+        recorder.record(new TestEvent(100, 2, "cold"));
+        assertEquals(1, recorder.getEstimatedCount("cold"));
+    }
+
+    @Test
+    public void hashesUtf8WithMurmur3() {
+        assertEquals(0, SketchEventRecorder.hash(""));
+        assertEquals(0xe34bbc7bbc071b6cL, SketchEventRecorder.hash("The quick brown fox jumps over the lazy dog"));
+        assertEquals(0x2c9b73b5df3996f6L, SketchEventRecorder.hash("\u00e4\u00f6\u00fc-0123456789abcdef"));
+    }
+
+    @Test
+    public void separatesNamesWithEqualStringHashCodes() {
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        SketchEventRecorder recorder = new SketchEventRecorder(10, RrdEventRecorder.SECOND, null);
+
+        for (int i = 0; i < 10; i++) {
+            recorder.record(new TestEvent(1100, 1, "Aa"));
+        }
+        assertEquals(10, recorder.getEstimatedCount("Aa"));
+        assertEquals(0, recorder.getEstimatedCount("BB"));
+    }
+
+    @Test
+    public void alignsBucketsToOffset() {
+        SketchEventRecorder recorder = new SketchEventRecorder(3, RrdEventRecorder.SECOND, 4, 256,
+                new HashSet<>(Collections.singletonList("hot")), 500);
+        assertEquals(500, recorder.getAlignmentOffset());
+
+        recorder.record(new TestEvent(1400, 1, "A"));
+        recorder.record(new TestEvent(3600, 1, "A"));
+        recorder.record(new TestEvent(3600, 1, "hot"));
+
+        // buckets start at 1500, 2500 and 3500, so 1400 has dropped out of the window
+        assertEquals(1, recorder.getEstimatedCount("A"));
+        assertEquals(3500, recorder.getHotNameRecorder().getEventBuckets("hot").get(2).getIntervalStart());
+    }
+}
@@ -0,0 +1,58 @@
+package net.e175.klaus.timings;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RrdEventRecorderVirtualThreadsTest {
+
+    private static final long BASE_TIME = RrdEventRecorder.DAY;
+
+    @Test
+    public void countsExactlyWithSingleHotName() throws Exception {
+        RrdEventRecorder recorder = new RrdEventRecorder(1, RrdEventRecorder.HOUR);
+
+        VirtualThreadLoadHarness.Result result = new VirtualThreadLoadHarness().threads(2000).eventsPerThread(500)
+                .names(1, VirtualThreadLoadHarness.NameDistribution.SINGLE).timeSkew(BASE_TIME, 0).run(recorder);
+
+        assertEquals(1000000, result.events());
+        assertEquals(result.expectedCounts(), VirtualThreadLoadHarness.recordedCounts(recorder));
+    }
+
+    @Test
+    public void countsExactlyWithSkewedNamesAndTimes() throws Exception {
+        RrdEventRecorder recorder = new RrdEventRecorder(60, RrdEventRecorder.SECOND);
+
+        VirtualThreadLoadHarness.Result result = new VirtualThreadLoadHarness().threads(5000).eventsPerThread(200)
+                .names(200, VirtualThreadLoadHarness.NameDistribution.ZIPF)
+                .timeSkew(BASE_TIME, 59 * RrdEventRecorder.SECOND).run(recorder);
+
+        assertEquals(result.expectedCounts(), VirtualThreadLoadHarness.recordedCounts(recorder));
+        assertTrue(result.latencyPercentileNanos(50) > 0);
+    }
+
+    @Test
+    public void countsExactlyWithUniformNamesAndGroups() throws Exception {
+        RrdEventRecorder recorder = new RrdEventRecorder(60, RrdEventRecorder.SECOND);
+        recorder.getGroupEventBuckets("N1*");
+
+        VirtualThreadLoadHarness.Result result = new VirtualThreadLoadHarness().threads(3000).eventsPerThread(200)
+                .names(50, VirtualThreadLoadHarness.NameDistribution.UNIFORM)
+                .timeSkew(BASE_TIME, 10 * RrdEventRecorder.SECOND).run(recorder);
+
+        assertEquals(result.expectedCounts(), VirtualThreadLoadHarness.recordedCounts(recorder));
+
+        long expectedGroupCount = 0;
+        for (String name : result.expectedCounts().keySet()) {
+            if (name.startsWith("N1")) {
+                expectedGroupCount += result.expectedCounts().get(name);
+            }
+        }
+        long groupCount = 0;
+        for (EventBucket b : recorder.getGroupEventBuckets("N1*")) {
+            groupCount += b.getCount();
+        }
+        assertEquals(expectedGroupCount, groupCount);
+    }
+}
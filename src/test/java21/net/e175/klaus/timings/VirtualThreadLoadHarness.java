@@ -0,0 +1,275 @@
+package net.e175.klaus.timings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Load generator driving an EventRecorder from many virtual threads at once, for correctness checks under
+ * realistic thread counts and for rough throughput/contention measurements.
+ * <p>
+ * Each thread records a fixed number of events with names drawn from a configurable distribution and trigger
+ * times spread out over a configurable skew into the past. The harness keeps its own per-name counts, so results
+ * can be checked exactly against the recorder afterwards. A sample of record() calls is timed into a log2
+ * histogram, which is where monitor contention shows up.
+ * <p>
+ * Sample usage:
+ * <pre>
+ * RrdEventRecorder recorder = new RrdEventRecorder(60, RrdEventRecorder.SECOND);
+ * VirtualThreadLoadHarness.Result result = new VirtualThreadLoadHarness()
+ *         .threads(10000).eventsPerThread(1000).names(100, NameDistribution.ZIPF).run(recorder);
+ * assertEquals(result.expectedCounts(), VirtualThreadLoadHarness.recordedCounts(recorder));
+ * </pre>
+ * Can also be run as an application: java VirtualThreadLoadHarness [threads] [eventsPerThread] [names].
+ */
+public final class VirtualThreadLoadHarness {
+
+    public enum NameDistribution {
+        /**
+         * Every thread uses the same name.
+         */
+        SINGLE,
+        /**
+         * Names are picked with equal probability.
+         */
+        UNIFORM,
+        /**
+         * Names are picked following Zipf's law (s = 1), so a few names are very hot.
+         */
+        ZIPF
+    }
+
+    public record Result(long events, long elapsedNanos, Map<String, Long> expectedCounts, long[] latencyHistogram) {
+
+        public double eventsPerSecond() {
+            return events * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * @return Upper bound (power of two, in nanoseconds) of the given percentile of sampled record() latencies.
+         */
+        public long latencyPercentileNanos(final double percentile) {
+            final long total = Arrays.stream(latencyHistogram).sum();
+            final long threshold = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < latencyHistogram.length; i++) {
+                seen += latencyHistogram[i];
+                if (seen >= threshold && seen > 0) {
+                    return 1L << i;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d events in %.1f ms: %.0f events/s, record() latency p50 <= %d ns, "
+                            + "p99 <= %d ns, p99.9 <= %d ns", events, elapsedNanos / 1e6, eventsPerSecond(),
+                    latencyPercentileNanos(50), latencyPercentileNanos(99), latencyPercentileNanos(99.9));
+        }
+    }
+
+    private int threads = 1000;
+    private long eventsPerThread = 1000;
+    private int nameCount = 10;
+    private NameDistribution distribution = NameDistribution.UNIFORM;
+    private long timeSkewMillis = 0;
+    private long baseTime = System.currentTimeMillis();
+    private int latencySampleRate = 64;
+    private long seed = 4711;
+
+    public VirtualThreadLoadHarness threads(final int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    public VirtualThreadLoadHarness eventsPerThread(final long eventsPerThread) {
+        this.eventsPerThread = eventsPerThread;
+        return this;
+    }
+
+    public VirtualThreadLoadHarness names(final int nameCount, final NameDistribution distribution) {
+        this.nameCount = distribution == NameDistribution.SINGLE ? 1 : nameCount;
+        this.distribution = distribution;
+        return this;
+    }
+
+    /**
+     * Spread trigger times randomly over [baseTime - timeSkewMillis, baseTime].
+     */
+    public VirtualThreadLoadHarness timeSkew(final long baseTime, final long timeSkewMillis) {
+        this.baseTime = baseTime;
+        this.timeSkewMillis = timeSkewMillis;
+        return this;
+    }
+
+    /**
+     * Time every n-th record() call (per thread).
+     */
+    public VirtualThreadLoadHarness latencySampleRate(final int latencySampleRate) {
+        this.latencySampleRate = latencySampleRate;
+        return this;
+    }
+
+    public VirtualThreadLoadHarness seed(final long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public Result run(final EventRecorder recorder) throws InterruptedException {
+        final String[] names = new String[nameCount];
+        for (int i = 0; i < nameCount; i++) {
+            names[i] = "N" + i;
+        }
+        final double[] cumulativeWeights = cumulativeWeights();
+
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Producer> producers = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            producers.add(new Producer(recorder, names, cumulativeWeights, new SplittableRandom(seed + t),
+                    ready, start));
+        }
+
+        final long elapsed;
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            producers.forEach(executor::execute);
+            ready.await();
+            final long startTime = System.nanoTime();
+            start.countDown();
+            executor.shutdown();
+            executor.close();
+            elapsed = System.nanoTime() - startTime;
+        }
+
+        final long[] counts = new long[nameCount];
+        final long[] histogram = new long[64];
+        for (final Producer p : producers) {
+            if (p.failure != null) {
+                throw new IllegalStateException("producer failed", p.failure);
+            }
+            for (int i = 0; i < nameCount; i++) {
+                counts[i] += p.counts[i];
+            }
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] += p.latencies[i];
+            }
+        }
+
+        final Map<String, Long> expected = new LinkedHashMap<>();
+        for (int i = 0; i < nameCount; i++) {
+            if (counts[i] > 0) {
+                expected.put(names[i], counts[i]);
+            }
+        }
+        return new Result(threads * eventsPerThread, elapsed, expected, histogram);
+    }
+
+    /**
+     * @return Total counts per name over all buckets currently held by the recorder, in the same form as
+     * {@link Result#expectedCounts()}.
+     */
+    public static Map<String, Long> recordedCounts(final RrdEventRecorder recorder) {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        for (final String name : recorder.getNames()) {
+            result.put(name, recorder.getEventBuckets(name).stream().mapToLong(EventBucket::getCount).sum());
+        }
+        return result;
+    }
+
+    private double[] cumulativeWeights() {
+        final double[] weights = new double[nameCount];
+        double sum = 0;
+        for (int i = 0; i < nameCount; i++) {
+            sum += distribution == NameDistribution.ZIPF ? 1.0 / (i + 1) : 1.0;
+            weights[i] = sum;
+        }
+        for (int i = 0; i < nameCount; i++) {
+            weights[i] /= sum;
+        }
+        return weights;
+    }
+
+    private final class Producer implements Runnable {
+        private final EventRecorder recorder;
+        private final String[] names;
+        private final double[] cumulativeWeights;
+        private final SplittableRandom random;
+        private final CountDownLatch ready;
+        private final CountDownLatch start;
+
+        private final long[] counts;
+        private final long[] latencies = new long[64];
+        private volatile Throwable failure;
+
+        Producer(final EventRecorder recorder, final String[] names, final double[] cumulativeWeights,
+                 final SplittableRandom random, final CountDownLatch ready, final CountDownLatch start) {
+            this.recorder = recorder;
+            this.names = names;
+            this.cumulativeWeights = cumulativeWeights;
+            this.random = random;
+            this.ready = ready;
+            this.start = start;
+            counts = new long[names.length];
+        }
+
+        @Override
+        public void run() {
+            try {
+                ready.countDown();
+                start.await();
+                generateEvents();
+            } catch (Throwable t) {
+                failure = t;
+            }
+        }
+
+        private void generateEvents() {
+            for (long i = 0; i < eventsPerThread; i++) {
+                final int nameIndex = pickName();
+                final long triggerTime = timeSkewMillis > 0 ? baseTime - random.nextLong(timeSkewMillis + 1)
+                        : baseTime;
+                final Event e = new TestEvent(triggerTime, random.nextDouble() * 100, names[nameIndex]);
+
+                if (i % latencySampleRate == 0) {
+                    final long t0 = System.nanoTime();
+                    recorder.record(e);
+                    final long latency = System.nanoTime() - t0;
+                    latencies[64 - Long.numberOfLeadingZeros(Math.max(latency, 1) - 1)]++;
+                } else {
+                    recorder.record(e);
+                }
+                counts[nameIndex]++;
+            }
+        }
+
+        private int pickName() {
+            if (names.length == 1) {
+                return 0;
+            }
+            final int index = Arrays.binarySearch(cumulativeWeights, random.nextDouble());
+            return Math.min(index >= 0 ? index : -index - 1, names.length - 1);
+        }
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        final long events = args.length > 1 ? Long.parseLong(args[1]) : 10000;
+        final int names = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+        for (final NameDistribution distribution : NameDistribution.values()) {
+            final RrdEventRecorder recorder = new RrdEventRecorder(60, RrdEventRecorder.SECOND);
+            final Result result = new VirtualThreadLoadHarness().threads(threads).eventsPerThread(events)
+                    .names(names, distribution).timeSkew(System.currentTimeMillis(), 30 * RrdEventRecorder.SECOND)
+                    .run(recorder);
+            final boolean exact = result.expectedCounts().equals(recordedCounts(recorder));
+            System.out.println(distribution + ": " + result + (exact ? "" : " -- COUNTS DIFFER"));
+        }
+    }
+}